@@ -9,8 +9,14 @@ import io.hyperfoil.tools.yaup.json.Json;
 import java.lang.invoke.MethodHandles;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 import java.util.function.Supplier;
 
@@ -18,7 +24,8 @@ import java.util.function.Supplier;
  * Container for all the coordination points between Cmds
  * Primarily used for the CountDownLatches that coordinate signal / waitFor commands
  * Also has counters that can increase / decrease depending on needs
- *
+ * Signals and counters can be shared with other qDup processes by connecting to a CoordinatorServer,
+ * waiters always stay in the local Coordinator
  */
 public class Coordinator {
 
@@ -29,6 +36,8 @@ public class Coordinator {
         Context context;
         Supplier<String> input;
         Cmd command;
+        //set by whichever of signal, timeout or removeWaiter gets to the waiter first
+        private final AtomicBoolean claimed = new AtomicBoolean(false);
         public Waiter( Cmd command, Context context, String input){
             this(command,context,()->input);
         }
@@ -51,6 +60,9 @@ public class Coordinator {
             }
             return false;
         }
+        boolean claim(){
+            return claimed.compareAndSet(false,true);
+        }
         public void next(){
             context.next(input.get());
         }
@@ -59,37 +71,203 @@ public class Coordinator {
         }
     }
 
-    private List<Consumer<String>> observers;
+    /**
+     * The count for a signal and the commands waiting for it to reach 0.
+     * Waiters are added before checking the count and signal checks the count after decrementing
+     * so a waiter cannot miss the signal that releases it.
+     */
+    class Latch {
+        private final AtomicInteger count;
+        private volatile long time = -1;//when count reached 0
+        private final Queue<Waiter> waiters = new ConcurrentLinkedQueue<>();
 
-    private Map<String,AtomicInteger> signalLatches;
-    private Map<String,Long> latchTimes;
-    private Map<String,List<Waiter>> waitFors;
+        Latch(int count){
+            this.count = new AtomicInteger(count);
+        }
+        int get(){return count.get();}
 
-    private Map<String,AtomicInteger> counters;
+        /**
+         * decrement the count unless it is already at or below 0
+         * @return true if this call moved the count to 0
+         */
+        boolean countDown(){
+            int current;
+            do {
+                current = count.get();
+                if (current <= 0) {
+                    return false;
+                }
+            } while (!count.compareAndSet(current, current - 1));
+            if (current == 1) {
+                time = System.currentTimeMillis();
+                return true;
+            }
+            return false;
+        }
+        void releaseWaiters(){
+            Waiter waiter;
+            while(count.get() <= 0 && (waiter = waiters.poll()) != null){
+                if(waiter.claim()){
+                    waiter.next();
+                }
+            }
+        }
+    }
+
+    private final List<Consumer<String>> observers;
+
+    private final Map<String,Latch> signalLatches;
+
+    private final Map<String,AtomicInteger> counters;
 
     private final Globals globals;
 
+    private volatile CoordinatorClient remote;
+    private volatile Executor remoteExecutor;
+    //sequence of the last signal event from the server and the number of events whose waiters have not been checked
+    private final AtomicLong remoteSequence = new AtomicLong(0);
+    private final AtomicInteger remotePending = new AtomicInteger(0);
+    //the sequence to report as idle, -1 when a script is active. reports are sent in order under reportLock
+    private volatile long idleReport = -1;
+    private long sentIdleReport = -1;
+    private final Object reportLock = new Object();
+    //sequence from the last idle event, -1 when there is none or it was taken
+    private volatile long allIdleSequence = -1;
+
     public Coordinator(Globals globals){
-        signalLatches = new HashMap<>();
-        latchTimes = new LinkedHashMap<>();
-        counters = new HashMap<>();
-        observers = new LinkedList<>();
-        waitFors = new ConcurrentHashMap<>();
+        signalLatches = new ConcurrentHashMap<>();
+        counters = new ConcurrentHashMap<>();
+        observers = new CopyOnWriteArrayList<>();
         this.globals = globals;
     }
 
-    public List<Waiter> ensureWaitFor(String name){
-        waitFors.putIfAbsent(name,Collections.synchronizedList(new LinkedList<>()));
-        return waitFors.get(name);
+    /**
+     * Use the server behind the client for signals and counters.
+     * The signal counts are mirrored locally from the server events so wait-for does not need a request.
+     * The observers and waiters for a remote signal run on executor because they can make requests to the server
+     * and the client reader thread has to stay free to read the responses.
+     */
+    public void connect(CoordinatorClient client, Executor executor){
+        this.remoteExecutor = executor;
+        client.setEventListener(this::onRemoteSignal);
+        this.remote = client;
+        remoteSequence.accumulateAndGet(client.requestLatches(),Math::max);
+    }
+    public boolean isRemote(){
+        return remote != null;
+    }
+
+    void onRemoteSignal(Json event){
+        if("idle".equals(event.getString("event"))){
+            allIdleSequence = event.getLong("sequence",-1);
+            return;
+        }
+        String name = event.getString("name");
+        if(event.getBoolean("exists",false)){
+            int count = (int)event.getLong("count",0);
+            Latch latch = signalLatches.computeIfAbsent(name,n->new Latch(count));
+            synchronized (latch){
+                latch.count.set(count);
+                latch.time = event.getLong("time",-1);
+            }
+        }
+        if(!event.getBoolean("snapshot",false)){
+            //counted before the sequence changes so reportIdle does not see the sequence before its waiters run
+            remotePending.incrementAndGet();
+            remoteSequence.accumulateAndGet(event.getLong("sequence",0),Math::max);
+            try {
+                remoteExecutor.execute(() -> {
+                    try {
+                        checkWatchers(name);
+                    } finally {
+                        remotePending.decrementAndGet();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                remotePending.decrementAndGet();
+                logger.warn("signal {} could not be dispatched, executor is shutting down",name);
+            }
+        }
+    }
+
+    /**
+     * Tell the server if all the local scripts are waiting for signals. Only sends a request when the report changes.
+     * The server sends an idle event once every connected process is waiting, see takeAllIdle
+     */
+    public void reportIdle(boolean idle){
+        CoordinatorClient remote = this.remote;
+        if(remote == null){
+            return;
+        }
+        long sequence = remoteSequence.get();
+        long report = idle && remotePending.get() == 0 ? sequence : -1;
+        if(report == idleReport){
+            return;
+        }
+        idleReport = report;
+        try {
+            remoteExecutor.execute(() -> {
+                synchronized (reportLock){
+                    long latest = idleReport;
+                    if(latest != sentIdleReport){
+                        sentIdleReport = latest;
+                        remote.idle(latest);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            logger.debug("idle report could not be sent, executor is shutting down");
+        }
+    }
+
+    /**
+     * @return true once if every process connected to the server reported it is waiting and no signal arrived since
+     */
+    public boolean takeAllIdle(){
+        long sequence = allIdleSequence;
+        if(sequence < 0 || sequence != remoteSequence.get() || remotePending.get() > 0){
+            return false;
+        }
+        allIdleSequence = -1;
+        //the server cleared the reports when it sent the idle event
+        synchronized (reportLock){
+            idleReport = -1;
+            sentIdleReport = -1;
+        }
+        return true;
     }
 
     public Map<String,Integer> getLatches(){
         Map<String,Integer> rtrn = new HashMap<>();
-        signalLatches.forEach((k, v)->rtrn.put(k,v.intValue()));
+        signalLatches.forEach((k, v)->rtrn.put(k,v.get()));
         return rtrn;
     }
-    public Map<String,Long> getLatchTimes(){return Collections.unmodifiableMap(latchTimes);}
+
+    /**
+     * @return the time each signal reached 0, in the order they were reached
+     */
+    public Map<String,Long> getLatchTimes(){
+        List<Map.Entry<String,Long>> reached = new ArrayList<>();
+        signalLatches.forEach((name,latch)->{
+            long time = latch.time;
+            if(time >= 0){
+                reached.add(new AbstractMap.SimpleEntry<>(name,time));
+            }
+        });
+        reached.sort(Map.Entry.comparingByValue());
+        Map<String,Long> rtrn = new LinkedHashMap<>();
+        reached.forEach(entry->rtrn.put(entry.getKey(),entry.getValue()));
+        return Collections.unmodifiableMap(rtrn);
+    }
+    long getLatchTime(String name){
+        Latch latch = signalLatches.get(name);
+        return latch == null ? -1 : latch.time;
+    }
     public Map<String,Integer> getCounters(){
+        CoordinatorClient remote = this.remote;
+        if(remote != null){
+            return remote.getCounters();
+        }
         Map<String,Integer> rtrn = new LinkedHashMap<>();
         counters.forEach((key,value)->{
             rtrn.put(key,value.get());
@@ -106,10 +284,13 @@ public class Coordinator {
 
     public Json getWaitJson(){
         Json rtrn = new Json(false);
-        waitFors.keySet().forEach(key->{
+        signalLatches.forEach((key,latch)->{
+            if(latch.waiters.isEmpty()){
+                return;
+            }
             Json entry = new Json();
             rtrn.set(key,entry);
-            waitFors.get(key).forEach(waiter->{
+            latch.waiters.forEach(waiter->{
                 Cmd head = waiter.getCommand().getHead();
                 Host host = waiter.getContext().getHost();
                 entry.add(head.toString()+"-"+head.getUid()+"@"+host.getShortHostName());
@@ -119,122 +300,191 @@ public class Coordinator {
     }
 
     public void setCounter(String name, int value){
+        CoordinatorClient remote = this.remote;
+        if(remote != null){
+            remote.setCounter(name,value);
+            return;
+        }
         counters.put(name,new AtomicInteger(value));
     }
     public int increase(String name){
-        if(!counters.containsKey(name)){
-            counters.put(name,new AtomicInteger(0));
+        CoordinatorClient remote = this.remote;
+        if(remote != null){
+            return remote.increase(name);
         }
-        return counters.get(name).incrementAndGet();
+        return counters.computeIfAbsent(name,n->new AtomicInteger(0)).incrementAndGet();
     }
     public int decrease(String name, int initialValue){
-        if(!counters.containsKey(name)){
-            counters.put(name,new AtomicInteger(initialValue));
+        CoordinatorClient remote = this.remote;
+        if(remote != null){
+            return remote.decrease(name,initialValue);
         }
-        return counters.get(name).decrementAndGet();
+        return counters.computeIfAbsent(name,n->new AtomicInteger(initialValue)).decrementAndGet();
     }
     public int getCounter(String name){
-        if(!counters.containsKey(name)){
-            counters.put(name,new AtomicInteger(0));
+        CoordinatorClient remote = this.remote;
+        if(remote != null){
+            return remote.getCounter(name);
         }
-        return counters.get(name).get();
+        return counters.computeIfAbsent(name,n->new AtomicInteger(0)).get();
+    }
 
+    /**
+     * set the count only if the signal does not exist yet.
+     * Used for the signal counts of the run config because every connected process sets the same counts.
+     */
+    public void initSignal(String name, int count){
+        CoordinatorClient remote = this.remote;
+        if(remote != null){
+            remote.initSignal(name,count);
+            return;
+        }
+        setSignal(name,count);
     }
     public void setSignal(String name, int count){
         setSignal(name,count,false);
     }
     public void setSignal(String name, int count,boolean force){
-        if(signalLatches.containsKey(name) && signalLatches.get(name).get()>0 && !force){
-            logger.warn("duplicate setSignal for {}, using previous VALUE {} not new VALUE {}",name, signalLatches.get(name).get(),count);
+        CoordinatorClient remote = this.remote;
+        if(remote != null){
+            remote.setSignal(name,count,force);
             return;
         }
-        AtomicInteger latch = new AtomicInteger(count);
-        signalLatches.put(name,latch);
-        checkWatchers(name);
+        if(updateSignal(name,count,force)){
+            checkWatchers(name);
+        }
+    }
+
+    /**
+     * @return false if the count was not changed because of a duplicate setSignal
+     */
+    boolean updateSignal(String name, int count,boolean force){
+        Latch latch = signalLatches.putIfAbsent(name,new Latch(count));
+        if(latch != null){//replace the count of the existing latch to keep its waiters
+            synchronized (latch){
+                int current = latch.get();
+                if(current > 0 && !force){
+                    logger.warn("duplicate setSignal for {}, using previous VALUE {} not new VALUE {}",name, current,count);
+                    return false;
+                }
+                latch.count.set(count);
+            }
+        }
+        return true;
     }
     public boolean hasSignal(String name){
         return signalLatches.containsKey(name);
     }
     public int getSignalCount(String name){
-        if(!signalLatches.containsKey(name)){
+        Latch latch = signalLatches.get(name);
+        if(latch == null){
             logger.error("signal {} missing latch, defaulting to 0",name);
             return 0;
         }
-        return signalLatches.get(name).get();
+        return latch.get();
     }
     public int getWaitCount(String name){
-        if(!waitFors.containsKey(name)){
-            return 0;
-        }
-        return waitFors.get(name).size();
+        Latch latch = signalLatches.get(name);
+        return latch == null ? 0 : latch.waiters.size();
     }
 
     public void clearWaiters(){
-        waitFors.clear();
+        signalLatches.values().forEach(latch->latch.waiters.clear());
     }
     private void checkWatchers(String name){
         //TODO this should not signal missing once we correctly find singals inside for-each
-        if( !signalLatches.containsKey(name) || signalLatches.get(name).get()<=0  ) {//signal for a missing latch
-            if(signalLatches.containsKey(name) && signalLatches.get(name).get() < 0){
-                logger.error("Latch {} went below zero to {}",name, signalLatches.get(name).get());
+        Latch latch = signalLatches.get(name);
+        if( latch == null || latch.get()<=0  ) {//signal for a missing latch
+            if(latch != null && latch.get() < 0){
+                logger.error("Latch {} went below zero to {}",name, latch.get());
             }
             if(!observers.isEmpty()){
                 for(Consumer<String> observer : observers){
                     observer.accept(name);
                 }
             }
-            List<Waiter> waiters = ensureWaitFor(name);
-            for(Waiter waiter: waiters){
-                waiter.next();
+            if(latch != null){
+                latch.releaseWaiters();
             }
-            waiters.clear();
         }
     }
     public void signal(String name){
+        CoordinatorClient remote = this.remote;
+        if(remote != null){
+            remote.signal(name);
+            return;
+        }
+        countDown(name);
+        checkWatchers(name);
+    }
 
-        if(!signalLatches.containsKey(name)){
+    /**
+     * decrement the local count without notifying the observers or waiters
+     */
+    void countDown(String name){
+        Latch latch = signalLatches.get(name);
+        if(latch == null){
             logger.warn("signal {} missing latch, ignoring",name);
             //return;
-        }else if( signalLatches.get(name).get() > 0 ){
-            signalLatches.get(name).decrementAndGet();
-            if(signalLatches.get(name).get()==0){
-                latchTimes.put(name,System.currentTimeMillis());
-            }
+        }else{
+            latch.countDown();
         }
-
-        checkWatchers(name);
     }
     public void waitFor(String name, Cmd command, Context context, String input){
         Waiter waiter = new Waiter(command,context,input);
         waitFor(name,waiter);
     }
-    private void waitFor(String name,Waiter waiter){
-        if(!signalLatches.containsKey(name)){
+    private Latch waitFor(String name,Waiter waiter){
+        Latch latch = signalLatches.get(name);
+        if(latch == null){
             logger.error("waitFor {} missing latch, using default latch WITH count=0",name);
-            waiter.next();
-        }else {
-            //TODO this is a race condition, need a check after adding to the list as well. Refactor out of signal to use same check code
-            if(signalLatches.get(name).get() <=0){
-                logger.debug("waitFor {} count = {}, invoking next",name, signalLatches.get(name).get());
+            if(waiter.claim()) {
                 waiter.next();
-            }else {
-                logger.debug("waitFor {} count = {}, queueing",name, signalLatches.get(name).get());
-                ensureWaitFor(name).add(waiter);
             }
+            return null;
+        }else if(latch.get() <= 0){
+            logger.debug("waitFor {} count = {}, invoking next",name, latch.get());
+            if(waiter.claim()) {
+                waiter.next();
+            }
+            return null;
+        }else {
+            logger.debug("waitFor {} count = {}, queueing",name, latch.get());
+            latch.waiters.add(waiter);
+            //the latch may have reached 0 before the waiter was added
+            if(latch.get() <= 0){
+                latch.releaseWaiters();
+            }
+            return latch;
         }
     }
     public void removeWaiter(String name,Cmd command){
-        waitFors.getOrDefault(name,new ArrayList<>()).removeIf((w)->w.hashCode() == command.hashCode());
+        Latch latch = signalLatches.get(name);
+        if(latch != null){
+            latch.waiters.removeIf((w)->w.hashCode() == command.hashCode() && w.claim());
+        }
     }
     public void waitFor(String name,Cmd command,Context context,Supplier<String> input){
 
         Waiter waiter = new Waiter(command,context,input);
         waitFor(name,waiter);
     }
+
+    /**
+     * wait for the signal but skip the command if the signal does not reach 0 before the timeout
+     */
     public void waitFor(String name,Cmd command,Context context,String input, long timeout, TimeUnit unit){
-        //TODO use scheduled task to implement timeout
         Waiter waiter = new Waiter(command,context,input);
-        waitFor(name,waiter);
+        Latch latch = waitFor(name,waiter);
+        if(latch != null){
+            context.schedule(()->{
+                if(waiter.claim()){
+                    latch.waiters.removeIf(w -> w == waiter);
+                    logger.debug("waitFor {} timed out after {} {}",name,timeout,unit);
+                    waiter.skip();
+                }
+            },unit.toMillis(timeout));
+        }
     }
 
     public List<String> getJsSnippetContents(){
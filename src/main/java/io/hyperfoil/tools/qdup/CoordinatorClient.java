@@ -0,0 +1,229 @@
+package io.hyperfoil.tools.qdup;
+
+import io.hyperfoil.tools.yaup.json.Json;
+import org.slf4j.ext.XLogger;
+import org.slf4j.ext.XLoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.invoke.MethodHandles;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Connection from a Coordinator to a CoordinatorServer.
+ * Requests block until the server responds. Events from the server are passed to the event listener on the reader thread
+ * before the response that follows them, so the listener must not make requests and must hand any work that can to
+ * another thread.
+ */
+public class CoordinatorClient implements AutoCloseable {
+
+    final static XLogger logger = XLoggerFactory.getXLogger(MethodHandles.lookup().lookupClass());
+
+    public static final long DEFAULT_REQUEST_TIMEOUT_MS = 60_000;
+
+    /**
+     * @param address host:port, the host defaults to localhost and the port to CoordinatorServer.DEFAULT_PORT
+     */
+    public static CoordinatorClient connect(String address) throws IOException {
+        String host = "localhost";
+        int port = CoordinatorServer.DEFAULT_PORT;
+        if (address != null && !address.isEmpty()) {
+            int index = address.lastIndexOf(':');
+            if (index < 0) {
+                host = address;
+            } else {
+                if (index > 0) {
+                    host = address.substring(0, index);
+                }
+                port = Integer.parseInt(address.substring(index + 1));
+            }
+        }
+        return new CoordinatorClient(host, port);
+    }
+
+    private final Socket socket;
+    private final Writer writer;
+    private final AtomicLong ids = new AtomicLong(0);
+    private final Map<Long, CompletableFuture<Json>> pending = new ConcurrentHashMap<>();
+    private volatile Consumer<Json> eventListener;
+    private volatile boolean closed = false;
+
+    public CoordinatorClient(String host, int port) throws IOException {
+        this.socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        this.writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+        Thread readThread = new Thread(this::read, "qdup-coordinator-client-" + host + ":" + port);
+        readThread.setDaemon(true);
+        readThread.start();
+    }
+
+    public void setEventListener(Consumer<Json> eventListener){
+        this.eventListener = eventListener;
+    }
+
+    public boolean isClosed(){
+        return closed;
+    }
+
+    @Override
+    public void close(){
+        closed = true;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            //already closed
+        }
+    }
+
+    private void read(){
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                Json json = Json.fromString(line);
+                if (json.has("event")) {
+                    Consumer<Json> listener = eventListener;
+                    if (listener != null) {
+                        try {
+                            listener.accept(json);
+                        } catch (RuntimeException e) {
+                            logger.error("coordinator event failed: " + line, e);
+                        }
+                    }
+                } else {
+                    CompletableFuture<Json> future = pending.remove(json.getLong("id", -1));
+                    if (future != null) {
+                        future.complete(json);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            if (!closed) {
+                logger.error("lost connection to coordinator server: {}", e.getMessage());
+            }
+        } finally {
+            closed = true;
+            IOException disconnected = new IOException("disconnected from coordinator server");
+            pending.values().forEach(future -> future.completeExceptionally(disconnected));
+            pending.clear();
+        }
+    }
+
+    private static Json request(String op, String name){
+        Json request = new Json();
+        request.set("op", op);
+        if (name != null) {
+            request.set("name", name);
+        }
+        return request;
+    }
+
+    /**
+     * @return the value from the server response, null if the request failed
+     */
+    private Object send(Json request){
+        String op = request.getString("op");
+        String name = request.getString("name", "");
+        if (closed) {
+            logger.error("cannot {} {}, coordinator client is closed", op, name);
+            return null;
+        }
+        long id = ids.incrementAndGet();
+        request.set("id", id);
+        CompletableFuture<Json> future = new CompletableFuture<>();
+        pending.put(id, future);
+        try {
+            synchronized (writer) {
+                writer.write(request.toString());
+                writer.write('\n');
+                writer.flush();
+            }
+            Json response = future.get(DEFAULT_REQUEST_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            if (response.has("error")) {
+                logger.error("coordinator {} {} failed: {}", op, name, response.getString("error"));
+                return null;
+            }
+            return response.get("value");
+        } catch (IOException | ExecutionException | TimeoutException e) {
+            logger.error("coordinator {} {} failed: {}", op, name, e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            pending.remove(id);
+        }
+        return null;
+    }
+    private int sendForInt(Json request){
+        Object rtrn = send(request);
+        return rtrn instanceof Number ? ((Number) rtrn).intValue() : 0;
+    }
+
+    /**
+     * ask the server to send the current signals as events
+     * @return the sequence of the last signal event
+     */
+    public long requestLatches(){
+        Object rtrn = send(request("latches", null));
+        return rtrn instanceof Number ? ((Number) rtrn).longValue() : 0;
+    }
+    /**
+     * @param sequence the last signal event sequence if all the scripts are waiting, -1 otherwise
+     */
+    public void idle(long sequence){
+        Json request = request("idle", null);
+        request.set("sequence", sequence);
+        send(request);
+    }
+    public void initSignal(String name, int count){
+        Json request = request("initSignal", name);
+        request.set("count", count);
+        send(request);
+    }
+    public void setSignal(String name, int count, boolean force){
+        Json request = request("setSignal", name);
+        request.set("count", count);
+        request.set("force", force);
+        send(request);
+    }
+    public void signal(String name){
+        send(request("signal", name));
+    }
+    public void setCounter(String name, int value){
+        Json request = request("setCounter", name);
+        request.set("value", value);
+        send(request);
+    }
+    public int increase(String name){
+        return sendForInt(request("increase", name));
+    }
+    public int decrease(String name, int initialValue){
+        Json request = request("decrease", name);
+        request.set("value", initialValue);
+        return sendForInt(request);
+    }
+    public int getCounter(String name){
+        return sendForInt(request("getCounter", name));
+    }
+    public Map<String, Integer> getCounters(){
+        Map<String, Integer> rtrn = new LinkedHashMap<>();
+        Object value = send(request("getCounters", null));
+        if (value instanceof Json) {
+            Json json = (Json) value;
+            json.keySet().forEach(key -> rtrn.put(key.toString(), (int) json.getLong(key, 0)));
+        }
+        return rtrn;
+    }
+}
@@ -0,0 +1,329 @@
+package io.hyperfoil.tools.qdup;
+
+import io.hyperfoil.tools.yaup.json.Json;
+import org.slf4j.ext.XLogger;
+import org.slf4j.ext.XLoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.invoke.MethodHandles;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shares the signals and counters of a Coordinator between several qDup processes.
+ * Each connection sends one json request per line and gets a response with the same id.
+ * Every change to a signal is sent to all the connections as an event before the response,
+ * the events are sent in the same order to every connection.
+ * A process reports when all its scripts are waiting, the server sends an idle event once every connected process is
+ * waiting and none of them has a signal event left to handle.
+ */
+public class CoordinatorServer {
+
+    final static XLogger logger = XLoggerFactory.getXLogger(MethodHandles.lookup().lookupClass());
+
+    public static final int DEFAULT_PORT = 31338;
+
+    //a connection that falls this many messages behind is closed instead of holding the messages for a stalled process
+    public static final int MAX_PENDING_MESSAGES = 100_000;
+
+    private class Connection implements Runnable {
+        private final Socket socket;
+        private final Writer writer;
+        //messages are queued in order under the server lock and written to the socket by the connection's writer thread
+        private final BlockingQueue<String> outbox = new LinkedBlockingQueue<>();
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+        //the signal sequence the process reported all its scripts waiting at, -1 while it has active scripts. guarded by the server lock
+        private long idleSequence = -1;
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+        }
+
+        /**
+         * queue json for the writer thread, never blocks on the socket
+         */
+        void send(Json json){
+            if (closed.get()) {
+                return;
+            }
+            if (outbox.size() >= MAX_PENDING_MESSAGES) {
+                logger.warn("closing {}, it stopped reading coordinator messages", socket.getRemoteSocketAddress());
+                close();
+                return;
+            }
+            outbox.add(json.toString());
+        }
+
+        void write(){
+            try {
+                while (!closed.get()) {
+                    String message = outbox.take();
+                    if (message.isEmpty()) {//queued by close
+                        break;
+                    }
+                    writer.write(message);
+                    writer.write('\n');
+                    if (outbox.isEmpty()) {
+                        writer.flush();
+                    }
+                }
+            } catch (IOException e) {
+                logger.debug("failed to send to {}: {}", socket.getRemoteSocketAddress(), e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                close();
+            }
+        }
+
+        @Override
+        public void run() {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.isEmpty()) {
+                        continue;
+                    }
+                    Json request = Json.fromString(line);
+                    Json response = new Json();
+                    response.set("id", request.getLong("id", -1));
+                    try {
+                        Object value = handle(this, request);
+                        if (value != null) {
+                            response.set("value", value);
+                        }
+                    } catch (RuntimeException e) {
+                        logger.error("coordinator request failed: " + line, e);
+                        response.set("error", "" + e.getMessage());
+                    }
+                    send(response);
+                }
+            } catch (IOException e) {
+                if (running) {
+                    logger.debug("connection from {} closed: {}", socket.getRemoteSocketAddress(), e.getMessage());
+                }
+            } finally {
+                close();
+                //the processes that are still connected can all be waiting
+                checkIdle();
+            }
+        }
+
+        void close(){
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            outbox.add("");
+            try {
+                socket.close();
+            } catch (IOException e) {
+                //already closed
+            }
+            if (connections.remove(this)) {
+                synchronized (connections) {
+                    connections.notifyAll();
+                }
+            }
+        }
+    }
+
+    private final InetAddress bindAddress;
+    private final int port;
+    private final Coordinator coordinator;
+    private final List<Connection> connections = new CopyOnWriteArrayList<>();
+    private final AtomicInteger threadCounter = new AtomicInteger(0);
+    private ServerSocket serverSocket;
+    private volatile boolean running = false;
+    //counts the signal events, guarded by the server lock
+    private long sequence = 0;
+
+    public CoordinatorServer(){
+        this(DEFAULT_PORT);
+    }
+
+    /**
+     * listen on the loopback address, the server does not authenticate requests
+     * @param port the port to listen on, 0 picks a free port
+     */
+    public CoordinatorServer(int port){
+        this(InetAddress.getLoopbackAddress(), port);
+    }
+
+    /**
+     * @param bindAddress the address to listen on, anyone who can reach it can change the signals and counters of the run
+     * @param port the port to listen on, 0 picks a free port
+     */
+    public CoordinatorServer(InetAddress bindAddress, int port){
+        this.bindAddress = bindAddress;
+        this.port = port;
+        this.coordinator = new Coordinator(new Globals());
+    }
+
+    public synchronized void start() throws IOException {
+        if (running) {
+            return;
+        }
+        serverSocket = new ServerSocket(port, 50, bindAddress);
+        running = true;
+        Thread acceptThread = new Thread(this::accept, "qdup-coordinator-server");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+        logger.info("coordinator server listening on {}:{}", bindAddress.getHostAddress(), getPort());
+    }
+
+    public int getPort(){
+        return serverSocket == null ? port : serverSocket.getLocalPort();
+    }
+
+    public int getConnectionCount(){
+        return connections.size();
+    }
+
+    /**
+     * wait until every process disconnected or the timeout expires
+     * @return true if there are no connections
+     */
+    public boolean awaitDisconnect(long timeoutMs) throws InterruptedException {
+        long end = System.currentTimeMillis() + timeoutMs;
+        synchronized (connections) {
+            long remaining;
+            while (!connections.isEmpty() && (remaining = end - System.currentTimeMillis()) > 0) {
+                connections.wait(remaining);
+            }
+            return connections.isEmpty();
+        }
+    }
+
+    public synchronized void stop(){
+        running = false;
+        if (serverSocket != null) {
+            try {
+                serverSocket.close();
+            } catch (IOException e) {
+                logger.debug("failed to close coordinator server: {}", e.getMessage());
+            }
+        }
+        connections.forEach(Connection::close);
+    }
+
+    private void accept(){
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                Connection connection = new Connection(socket);
+                connections.add(connection);
+                int id = threadCounter.getAndIncrement();
+                Thread thread = new Thread(connection, "qdup-coordinator-" + id);
+                thread.setDaemon(true);
+                thread.start();
+                Thread writeThread = new Thread(connection::write, "qdup-coordinator-write-" + id);
+                writeThread.setDaemon(true);
+                writeThread.start();
+            } catch (IOException e) {
+                if (running) {
+                    logger.error("coordinator server failed to accept a connection", e);
+                }
+            }
+        }
+    }
+
+    private Json signalEvent(String name){
+        Json event = new Json();
+        event.set("event", "signal");
+        event.set("name", name);
+        event.set("sequence", sequence);
+        boolean exists = coordinator.hasSignal(name);
+        event.set("exists", exists);
+        if (exists) {
+            event.set("count", coordinator.getSignalCount(name));
+            event.set("time", coordinator.getLatchTime(name));
+        }
+        return event;
+    }
+
+    private void broadcast(Json event){
+        connections.forEach(connection -> connection.send(event));
+    }
+
+    private void broadcastSignal(String name){
+        sequence++;
+        broadcast(signalEvent(name));
+    }
+
+    /**
+     * tell every process to end its phase once they all reported their scripts waiting for the latest signal event
+     */
+    private synchronized void checkIdle(){
+        if (connections.isEmpty() || connections.stream().anyMatch(connection -> connection.idleSequence != sequence)) {
+            return;
+        }
+        logger.info("all {} connected processes are waiting for signals", connections.size());
+        connections.forEach(connection -> connection.idleSequence = -1);
+        Json event = new Json();
+        event.set("event", "idle");
+        event.set("sequence", sequence);
+        broadcast(event);
+    }
+
+    //synchronized so every connection sees the events in the same order, send only queues so a slow connection cannot hold the lock
+    private synchronized Object handle(Connection connection, Json request){
+        String op = request.getString("op", "");
+        String name = request.getString("name", "");
+        switch (op) {
+            case "latches":
+                coordinator.getLatches().keySet().forEach(latchName -> {
+                    Json event = signalEvent(latchName);
+                    event.set("snapshot", true);
+                    connection.send(event);
+                });
+                return sequence;
+            case "initSignal":
+                if (!coordinator.hasSignal(name)) {
+                    coordinator.updateSignal(name, (int) request.getLong("count", 0), false);
+                    broadcastSignal(name);
+                }
+                return null;
+            case "setSignal":
+                if (coordinator.updateSignal(name, (int) request.getLong("count", 0), request.getBoolean("force", false))) {
+                    broadcastSignal(name);
+                }
+                return null;
+            case "signal":
+                coordinator.countDown(name);
+                broadcastSignal(name);
+                return null;
+            case "idle":
+                connection.idleSequence = request.getLong("sequence", -1);
+                checkIdle();
+                return null;
+            case "setCounter":
+                coordinator.setCounter(name, (int) request.getLong("value", 0));
+                return null;
+            case "increase":
+                return coordinator.increase(name);
+            case "decrease":
+                return coordinator.decrease(name, (int) request.getLong("value", 0));
+            case "getCounter":
+                return coordinator.getCounter(name);
+            case "getCounters":
+                return Json.fromMap(coordinator.getCounters());
+            default:
+                throw new IllegalArgumentException("unknown coordinator op " + op);
+        }
+    }
+}
@@ -45,6 +45,8 @@ import java.util.concurrent.atomic.AtomicReference;
 public class JsonServer implements RunObserver, ContextObserver {
     final static XLogger logger = XLoggerFactory.getXLogger(MethodHandles.lookup().lookupClass());
     public static int DEFAULT_PORT = 31337;
+    //the parse, js, and regex test endpoints only run against the end of the current output
+    private static final int SPY_OUTPUT_LINES = 1000;
     private int port;
     private Run run;
     private final Vertx vertx;
@@ -305,7 +307,7 @@ public class JsonServer implements RunObserver, ContextObserver {
                 response.set("parse",Json.isJsonLike(body) ? Json.fromString(body) : body);
 
                 SpyContext spyContext = new SpyContext(null,state,null);
-                String currentOutput = found.getSession().peekOutput();
+                String currentOutput = found.getSession().peekOutput(SPY_OUTPUT_LINES);
                 toRun.run(currentOutput,spyContext);
 
                 if(spyContext.getErrors().size()>0){
@@ -344,7 +346,7 @@ public class JsonServer implements RunObserver, ContextObserver {
 
 
                     SpyContext spyContext = new SpyContext(null,state,null);
-                    String currentOutput = found.getSession().peekOutput();
+                    String currentOutput = found.getSession().peekOutput(SPY_OUTPUT_LINES);
                     toRun.run(currentOutput,spyContext);
                     Json response = new Json();
                     if(!state.toOwnJson().isEmpty()){
@@ -383,7 +385,7 @@ public class JsonServer implements RunObserver, ContextObserver {
                     state.addChild("clone","");
                     state.getChild("clone").load(found.getState().toJson());
                     SpyContext spyContext = new SpyContext(null,state,null);
-                    String currentOutput = found.getSession().peekOutput();
+                    String currentOutput = found.getSession().peekOutput(SPY_OUTPUT_LINES);
                     if(currentOutput == null || currentOutput.isEmpty()){
                         Cmd previous = found.getCurrentCmd() != null ? found.getCurrentCmd().getPrevious() : null;
                         String input = previous != null ? previous.getOutput() : "";
@@ -16,6 +16,7 @@ import io.hyperfoil.tools.yaup.StringUtil;
 
 import java.io.*;
 import java.lang.invoke.MethodHandles;
+import java.net.InetAddress;
 import java.net.URL;
 import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
@@ -46,11 +47,17 @@ public class QDup {
     private List<String> yamlPaths;
     private int scheduledThreads;
     private int commandThreads;
+    private boolean virtualThreads;
     private boolean test;
     private boolean yaml;
     private List<String> breakpoints;
     private boolean colorTerminal;
     private int jsonPort;
+    private String coordinator;
+    private int coordinatorServerPort;
+    private String coordinatorBind;
+    private int shardIndex;
+    private int shardCount;
 
     private List<Stage> skipStages;
 
@@ -83,6 +90,10 @@ public class QDup {
         return commandThreads;
     }
 
+    public boolean useVirtualThreads() {
+        return virtualThreads;
+    }
+
     public String getKnownHosts() {
         return knownHosts;
     }
@@ -123,6 +134,16 @@ public class QDup {
         return outputPath;
     }
 
+    public boolean hasCoordinator() { return coordinator != null || hasCoordinatorServer(); }
+    public String getCoordinator() {
+        return coordinator != null ? coordinator : (coordinatorBind != null ? coordinatorBind : "localhost") + ":" + coordinatorServerPort;
+    }
+    public boolean hasCoordinatorServer() { return coordinatorServerPort >= 0; }
+    public int getCoordinatorServerPort() { return coordinatorServerPort; }
+    public String getCoordinatorBind() { return coordinatorBind; }
+    public int getShardIndex() { return shardIndex; }
+    public int getShardCount() { return shardCount; }
+
     public int getJsonPort() {
         return jsonPort;
     }
@@ -195,6 +216,13 @@ public class QDup {
                         .desc("number of threads for executing commands [24]")
                         .build()
         );
+        options.addOption(
+                Option.builder("V")
+                        .longOpt("virtualThreads")
+                        .hasArg(false)
+                        .desc("run commands on virtual threads instead of the commandPool, requires java 21+")
+                        .build()
+        );
 
         options.addOption(
                 Option.builder("t")
@@ -308,6 +336,41 @@ public class QDup {
                         .build()
         );
 
+        //multiple qDup processes sharing one run
+        options.addOption(
+                Option.builder()
+                        .longOpt("coordinator")
+                        .hasArg()
+                        .argName("host:port")
+                        .desc("share signals and counters through the coordinator server at host:port")
+                        .build()
+        );
+        options.addOption(
+                Option.builder()
+                        .longOpt("coordinatorServer")
+                        .hasArg()
+                        .argName("port")
+                        .type(Integer.class)
+                        .desc("start a coordinator server on port [" + CoordinatorServer.DEFAULT_PORT + "] and share signals and counters through it")
+                        .build()
+        );
+        options.addOption(
+                Option.builder()
+                        .longOpt("coordinatorBind")
+                        .hasArg()
+                        .argName("address")
+                        .desc("address for the coordinator server to listen on [loopback], the server does not authenticate requests")
+                        .build()
+        );
+        options.addOption(
+                Option.builder()
+                        .longOpt("shard")
+                        .hasArg()
+                        .argName("index/count")
+                        .desc("only run the hosts in this shard of the run, requires a coordinator")
+                        .build()
+        );
+
         //exit code checking
         options.addOption(
                 Option.builder("x")
@@ -376,6 +439,7 @@ public class QDup {
         passphrase = commandLine.getOptionValue("passphrase", RunConfigBuilder.DEFAULT_PASSPHRASE);
         timeout = Integer.parseInt(commandLine.getOptionValue("timeout", "" + RunConfigBuilder.DEFAULT_SSH_TIMEOUT));
         commandThreads = Integer.parseInt(commandLine.getOptionValue("commandPool", "24"));
+        virtualThreads = commandLine.hasOption("virtualThreads") || Dispatcher.useVirtualThreads();
         scheduledThreads = Integer.parseInt(commandLine.getOptionValue("scheduledPool", "24"));
         yamlPaths = commandLine.getArgList();
         stateProps = commandLine.getOptionProperties("S");
@@ -385,6 +449,25 @@ public class QDup {
         breakpoints = commandLine.hasOption("breakpoint") ? Arrays.asList(commandLine.getOptionValues("breakpoint")) : Collections.EMPTY_LIST;
         colorTerminal = commandLine.hasOption("colorTerminal");
         jsonPort = Integer.parseInt(commandLine.getOptionValue("jsonport", "" + JsonServer.DEFAULT_PORT));
+        coordinator = commandLine.getOptionValue("coordinator");
+        coordinatorServerPort = commandLine.hasOption("coordinatorServer") ? Integer.parseInt(commandLine.getOptionValue("coordinatorServer", "" + CoordinatorServer.DEFAULT_PORT)) : -1;
+        coordinatorBind = commandLine.getOptionValue("coordinatorBind");
+        shardIndex = 0;
+        shardCount = 1;
+        if (commandLine.hasOption("shard")) {
+            String[] shard = commandLine.getOptionValue("shard").split("/");
+            try {
+                shardIndex = Integer.parseInt(shard[0].trim());
+                shardCount = shard.length > 1 ? Integer.parseInt(shard[1].trim()) : 1;
+            } catch (NumberFormatException e) {
+                shardCount = 0;
+            }
+            if (shardCount < 1 || shardIndex < 0 || shardIndex >= shardCount) {
+                logger.error("invalid shard {}, expected index/count with 0 <= index < count", commandLine.getOptionValue("shard"));
+                shardIndex = 0;
+                shardCount = 1;
+            }
+        }
 
         exitCode = commandLine.hasOption("exitCode");
 
@@ -605,7 +688,15 @@ public class QDup {
                     rtrn.setUncaughtExceptionHandler(uncaughtExceptionHandler);
                     return rtrn;
                 };
-                ThreadPoolExecutor executor = new ThreadPoolExecutor(getCommandThreads() / 2, getCommandThreads(), 30, TimeUnit.MINUTES, workQueue, factory);
+                ExecutorService executor = useVirtualThreads() ? Dispatcher.newVirtualThreadExecutor() : null;
+                if (executor != null) {
+                    logger.info("running commands on virtual threads");
+                } else {
+                    if (useVirtualThreads()) {
+                        logger.warn("virtual threads are not supported by java {}, using a pool of {} command threads", System.getProperty("java.version"), getCommandThreads());
+                    }
+                    executor = new ThreadPoolExecutor(getCommandThreads() / 2, getCommandThreads(), 30, TimeUnit.MINUTES, workQueue, factory);
+                }
 
                 ScheduledThreadPoolExecutor scheduled = new ScheduledThreadPoolExecutor(getScheduledThreads(), runnable -> new Thread(runnable, "qdup-scheduled-" + scheduledCounter.getAndIncrement()));
 
@@ -620,6 +711,38 @@ public class QDup {
 
                 final Run run = new Run(getOutputPath(), config, dispatcher);
                 run.getRunLogger().info("Running qDup version {} @ {}", getVersion(), getHash());
+
+                CoordinatorServer coordinatorServer = null;
+                CoordinatorClient coordinatorClient = null;
+                if (hasCoordinator()) {
+                    try {
+                        if (hasCoordinatorServer()) {
+                            coordinatorServer = getCoordinatorBind() == null
+                                    ? new CoordinatorServer(getCoordinatorServerPort())
+                                    : new CoordinatorServer(InetAddress.getByName(getCoordinatorBind()), getCoordinatorServerPort());
+                            coordinatorServer.start();
+                        }
+                        coordinatorClient = CoordinatorClient.connect(getCoordinator());
+                        run.getCoordinator().connect(coordinatorClient, dispatcher::submit);
+                        logger.info("sharing signals through coordinator {}", getCoordinator());
+                    } catch (IOException | NumberFormatException e) {
+                        logger.error("failed to connect to coordinator {}: {}", getCoordinator(), e.getMessage());
+                        if (coordinatorServer != null) {
+                            coordinatorServer.stop();
+                        }
+                        dispatcher.shutdown();
+                        executor.shutdownNow();
+                        scheduled.shutdownNow();
+                        return false;
+                    }
+                }
+                if (getShardCount() > 1) {
+                    if (!hasCoordinator()) {
+                        logger.warn("running shard {}/{} without a coordinator, signals from other shards will not be received", getShardIndex(), getShardCount());
+                    }
+                    run.setShard(getShardIndex(), getShardCount());
+                    logger.info("running shard {}/{}", getShardIndex(), getShardCount());
+                }
                 logger.info("output path = " + run.getOutputPath());
                 if(checkExitCode()){
                     logger.info("checking sh exit codes");
@@ -649,7 +772,23 @@ public class QDup {
                 if (startJsonServer) {
                     jsonServer.stop();
                 }
+                if (coordinatorClient != null) {
+                    coordinatorClient.close();
+                }
+                if (coordinatorServer != null) {
+                    //other shards may still be waiting for signals
+                    try {
+                        if (!coordinatorServer.awaitDisconnect(TimeUnit.HOURS.toMillis(1))) {
+                            logger.warn("stopping coordinator server with {} connected processes", coordinatorServer.getConnectionCount());
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    coordinatorServer.stop();
+                }
                 dispatcher.shutdown();
+                SshConnections.closeAll();
+                SshClients.stop();
                 executor.shutdownNow();
                 scheduled.shutdownNow();
                 if(run.isAborted()){
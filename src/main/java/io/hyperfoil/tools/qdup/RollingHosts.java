@@ -0,0 +1,129 @@
+package io.hyperfoil.tools.qdup;
+
+import io.hyperfoil.tools.qdup.cmd.Dispatcher;
+import io.hyperfoil.tools.qdup.cmd.ScriptContext;
+import io.hyperfoil.tools.qdup.cmd.ScriptObserver;
+import org.slf4j.ext.XLogger;
+import org.slf4j.ext.XLoggerFactory;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Connects the hosts of a role with max-concurrent-hosts in waves.
+ * The first hosts connect with the other run-scripts and the next host connects once every run-script on an admitted host has stopped.
+ * The next host connects on the dispatcher executor and is a pending context of the dispatcher until its scripts are added,
+ * so the run stage does not end between waves.
+ */
+class RollingHosts implements ScriptObserver {
+
+    final static XLogger logger = XLoggerFactory.getXLogger(MethodHandles.lookup().lookupClass());
+
+    private final Run run;
+    private final String roleName;
+    private final int maxHosts;
+    private final Map<Host,List<Callable<Boolean>>> connects = new LinkedHashMap<>();
+    private final Queue<Host> pending = new ConcurrentLinkedQueue<>();
+    private final Map<ScriptContext,Host> contexts = new ConcurrentHashMap<>();
+    private final Map<Host,AtomicInteger> running = new ConcurrentHashMap<>();
+
+    RollingHosts(Run run,String roleName,int maxHosts){
+        this.run = run;
+        this.roleName = roleName;
+        this.maxHosts = maxHosts;
+    }
+
+    void add(Host host,Callable<Boolean> connect){
+        connects.computeIfAbsent(host,h->new ArrayList<>()).add(connect);
+    }
+
+    /**
+     * @return the connections for the first maxHosts hosts, the other hosts wait for an admitted host to finish
+     */
+    List<Callable<Boolean>> firstWave(){
+        List<Callable<Boolean>> rtrn = new ArrayList<>();
+        connects.forEach((host,hostConnects)->{
+            if(running.size() < maxHosts){
+                running.put(host,new AtomicInteger(0));
+                rtrn.addAll(hostConnects);
+            }else{
+                pending.add(host);
+            }
+        });
+        logger.info("{} running {} hosts at a time, {} hosts waiting",roleName,maxHosts,pending.size());
+        return rtrn;
+    }
+
+    void track(ScriptContext context,Host host){
+        running.computeIfAbsent(host,h->new AtomicInteger(0)).incrementAndGet();
+        contexts.put(context,host);
+    }
+
+    @Override
+    public void onStop(ScriptContext context){
+        Host host = contexts.remove(context);
+        if(host != null && running.get(host).decrementAndGet() == 0){
+            running.remove(host);
+            admitNext();
+        }
+    }
+
+    private void admitNext(){
+        Host host = run.isAborted() ? null : pending.poll();
+        if(host == null){
+            if(running.isEmpty()){
+                run.getDispatcher().removeScriptObserver(this);
+            }
+            return;
+        }
+        logger.info("{} connecting {}, {} hosts waiting",roleName,host.getShortHostName(),pending.size());
+        //hold one count until every script is connected so the first script to stop does not admit another host
+        AtomicInteger count = new AtomicInteger(1);
+        running.put(host,count);
+        Dispatcher dispatcher = run.getDispatcher();
+        dispatcher.addPendingContext();
+        try {
+            dispatcher.submit(()->connect(host,count));
+        } catch (RejectedExecutionException e) {
+            logger.warn("{} could not connect {}, dispatcher is shutting down",roleName,host.getShortHostName());
+            dispatcher.removePendingContext();
+        }
+    }
+
+    /**
+     * runs on the dispatcher executor so the observers of the stopped script do not wait for ssh
+     */
+    private void connect(Host host,AtomicInteger count){
+        try {
+            boolean ok = true;
+            for(Callable<Boolean> connect : connects.get(host)) {
+                try {
+                    ok = connect.call() && ok;
+                } catch (Exception e) {
+                    logger.error("failed to connect "+host.getSafeString(), e);
+                    ok = false;
+                }
+            }
+            if(!ok) {
+                run.getRunLogger().error("failed to connect all ssh sessions for {} on {}", roleName,host.getSafeString());
+                run.abort(false);
+            }else if(count.decrementAndGet() == 0) {
+                //every script on the host already stopped
+                running.remove(host);
+                admitNext();
+            }
+        } finally {
+            //the scripts are added or the next host is pending, the stage can end if neither
+            run.getDispatcher().removePendingContext();
+        }
+    }
+}
@@ -115,6 +115,10 @@ public class Run implements Runnable, DispatchObserver {
     FileAppender logAppender;
     private List<Stage> skipStages;
 
+    private int shardIndex = 0;
+    private int shardCount = 1;
+    private volatile Set<String> shardHosts;
+
     public Run(String outputPath,RunConfig config,Dispatcher dispatcher){
         if(config==null || dispatcher==null){
             throw new NullPointerException("Run config and dispatcher cannot be null");
@@ -457,6 +461,7 @@ public class Run implements Runnable, DispatchObserver {
             toWrite.set("latches",latches);
             toWrite.set("counters",counters);
             toWrite.set("profiles",getProfiles());
+            toWrite.set("ssh",SshClients.getMetrics());
 
             String filtered = getConfig().getState().getSecretFilter().filter(toWrite.toString(2));
 
@@ -491,10 +496,47 @@ public class Run implements Runnable, DispatchObserver {
     @Override
     public String toString(){return config.getName()+" -> "+outputPath;}
 
+    /**
+     * Only run the scripts for the hosts in this shard of the run.
+     * Hosts are sorted by name and every count-th host starting at index belongs to this shard.
+     * Shards need a coordinator shared through a CoordinatorServer because the signal counts include every host.
+     */
+    public void setShard(int index,int count){
+        if(count < 1 || index < 0 || index >= count){
+            throw new IllegalArgumentException("invalid shard "+index+"/"+count);
+        }
+        this.shardIndex = index;
+        this.shardCount = count;
+        this.shardHosts = null;
+    }
+    public int getShardIndex(){return shardIndex;}
+    public int getShardCount(){return shardCount;}
+
+    public boolean inShard(Host host){
+        if(shardCount <= 1){
+            return true;
+        }
+        Set<String> hosts = shardHosts;
+        if(hosts == null){
+            List<String> names = config.getRolesValues().stream()
+                    .flatMap(role->role.getHosts(config).stream())
+                    .map(Host::getSafeString)
+                    .distinct()
+                    .sorted()
+                    .collect(Collectors.toList());
+            hosts = new HashSet<>();
+            for(int i=shardIndex; i<names.size(); i+=shardCount){
+                hosts.add(names.get(i));
+            }
+            shardHosts = hosts;
+        }
+        return hosts.contains(host.getSafeString());
+    }
+
     //TODO separate coordinators for each stage?
     private boolean initializeCoordinator(){
         config.getSignalCounts().forEach((name,count)->{
-            coordinator.setSignal(name,count.intValue());
+            coordinator.initSignal(name,count.intValue());
         });
         return true;
     }
@@ -618,6 +660,7 @@ public class Run implements Runnable, DispatchObserver {
                     "",
                     getDispatcher().getScheduler(),
                     isTrace(name));
+                session.setSpillDirectory(Paths.get(getOutputPath()));
                 if ( session.isReady() ) {
                     //TODO configure session delay
                     //session.setDelay(SuffixStream.NO_DELAY);
@@ -670,6 +713,7 @@ public class Run implements Runnable, DispatchObserver {
                     config.getTimeout(),
                     "",getDispatcher().getScheduler(),
                     isTrace(name));
+                session.setSpillDirectory(Paths.get(getOutputPath()));
                 if ( session.isReady() ) {
                     //TODO configure session delay
                     //session.setDelay(SuffixStream.NO_DELAY);
@@ -730,7 +774,7 @@ public class Run implements Runnable, DispatchObserver {
                });
                setup.then(new RoleEnv(role,false));
 
-               role.getHosts(config).forEach(host->{
+               role.getHosts(config).stream().filter(this::inShard).forEach(host->{
                    connectSessions.add(()->{
                        String name = roleName+"-setup@"+host.getShortHostName()+"."+Cmd.populateStateVariables(config.getSettings().getString(RunConfig.TRACE_NAME),null,getConfig().getState(),getCoordinator(),Json.fromMap(getTimestamps()));
                        SshSession session = new SshSession(
@@ -742,6 +786,7 @@ public class Run implements Runnable, DispatchObserver {
                                config.getTimeout(),
                                "", getDispatcher().getScheduler(),
                                 isTrace(name));
+                       session.setSpillDirectory(Paths.get(getOutputPath()));
                        if ( session.isReady() ) {
                            //TODO configure session delay
                            //session.setDelay(SuffixStream.NO_DELAY);
@@ -788,8 +833,11 @@ public class Run implements Runnable, DispatchObserver {
         for(String roleName : config.getRoleNames()){
             Role role = config.getRole(roleName);
             if (!role.getRun().isEmpty()) {
+                List<Host> roleHosts = role.getHosts(config).stream().filter(this::inShard).collect(Collectors.toList());
+                int maxHosts = role.getMaxConcurrentHosts(roleHosts.size());
+                final RollingHosts rolling = maxHosts < roleHosts.size() ? new RollingHosts(this,roleName,maxHosts) : null;
                 for (ScriptCmd script : role.getRun()) {
-                    for (Host host : role.getHosts(config)) {
+                    for (Host host : roleHosts) {
                         State hostState = config.getState().getChild(host.getHostName(), State.HOST_PREFIX);
                         State scriptState = hostState.getChild(script.getName()).getChild("id=" + script.getUid());
                         SystemTimer timer = profiles.get(script.getName() + "-" + script.getUid() + "@" + host);
@@ -798,7 +846,7 @@ public class Run implements Runnable, DispatchObserver {
                             env.merge(allRole.getEnv(host));
                         }
                         String setupCommand = env.getDiff().getCommand();
-                        connectSessions.add(() -> {
+                        Callable<Boolean> connect = () -> {
                             String name = script.getName()+":"+script.getUid()+"@"+host.getShortHostName()+"."+Cmd.populateStateVariables(config.getSettings().getString(RunConfig.TRACE_NAME),null,getConfig().getState(),getCoordinator(),Json.fromMap(getTimestamps()));
                             timer.start("connect:" + host.toString());
                             SshSession session = new SshSession(
@@ -813,6 +861,7 @@ public class Run implements Runnable, DispatchObserver {
                                     isTrace(name)
 
                             );
+                            session.setSpillDirectory(Paths.get(getOutputPath()));
                             if (session.isReady()) {
                                 //session.setDelay(SuffixStream.NO_DELAY);
                                 timer.start("context:" + host.toString());
@@ -825,6 +874,9 @@ public class Run implements Runnable, DispatchObserver {
                                         (Boolean)config.getSetting("check-exit-code",false)
                                 );
 
+                                if(rolling != null){
+                                    rolling.track(scriptContext,host);
+                                }
                                 getDispatcher().addScriptContext(scriptContext);
                                 boolean rtrn = session.isOpen();
                                 timer.start("waiting for start");
@@ -839,9 +891,18 @@ public class Run implements Runnable, DispatchObserver {
                                 session.close();
                                 return false;
                             }
-                        });
+                        };
+                        if(rolling != null){
+                            rolling.add(host,connect);
+                        }else{
+                            connectSessions.add(connect);
+                        }
                     }
                 }
+                if(rolling != null){
+                    connectSessions.addAll(rolling.firstWave());
+                    getDispatcher().addScriptObserver(rolling);
+                }
             }
         }
         boolean ok = true;
@@ -893,7 +954,7 @@ public class Run implements Runnable, DispatchObserver {
                 role.getCleanup().forEach(cmd->{
                     cleanup.then(cmd);
                 });
-                role.getHosts(config).forEach(host->{
+                role.getHosts(config).stream().filter(this::inShard).forEach(host->{
                     String setupCommand = role.hasEnvironment(host) ? role.getEnv(host).getDiff().getCommand() : "";
                     connectSessions.add(()->{
                         String name = roleName + "-cleanup@"+host.getShortHostName()+"."+Cmd.populateStateVariables(config.getSettings().getString(RunConfig.TRACE_NAME),null,getConfig().getState(),getCoordinator(),Json.fromMap(getTimestamps()));
@@ -907,6 +968,7 @@ public class Run implements Runnable, DispatchObserver {
                                 setupCommand,
                                 getDispatcher().getScheduler(),
                                 isTrace(name));
+                        session.setSpillDirectory(Paths.get(getOutputPath()));
                         if ( session.isReady() ) {
 
                             //session.setDelay(SuffixStream.NO_DELAY);
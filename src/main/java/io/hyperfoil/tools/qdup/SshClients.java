@@ -0,0 +1,169 @@
+package io.hyperfoil.tools.qdup;
+
+import io.hyperfoil.tools.qdup.config.RunConfigBuilder;
+import io.hyperfoil.tools.yaup.json.Json;
+import org.apache.sshd.client.SshClient;
+import org.apache.sshd.common.io.nio2.Nio2ServiceFactoryFactory;
+import org.apache.sshd.common.util.GenericUtils;
+import org.apache.sshd.common.util.io.resource.URLResource;
+import org.apache.sshd.common.util.security.SecurityUtils;
+import org.apache.sshd.common.util.threads.CloseableExecutorService;
+import org.apache.sshd.common.util.threads.ThreadUtils;
+import org.apache.sshd.core.CoreModuleProperties;
+import org.slf4j.ext.XLogger;
+import org.slf4j.ext.XLoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandles;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process wide SshClient shared by every SshSession.
+ * Each session used to start its own client (and NIO worker pool) which does not scale past a few hundred hosts.
+ * Sessions now only create a ClientSession on the shared client and the client is stopped once at the end of the run.
+ */
+public class SshClients {
+
+    private static final XLogger logger = XLoggerFactory.getXLogger(MethodHandles.lookup().lookupClass());
+
+    public static final String NIO_WORKERS_PROPERTY = "qdup.ssh.nioWorkers";
+    public static final int DEFAULT_NIO_WORKERS = Runtime.getRuntime().availableProcessors() + 1;
+
+    private static final Object LOCK = new Object();
+    private static volatile SshClient client;
+    private static CloseableExecutorService nioPool;
+
+    private static final Map<String,KeyPair> identities = new ConcurrentHashMap<>();
+
+    private static final LongAdder connectCount = new LongAdder();
+    private static final LongAdder connectFailures = new LongAdder();
+    private static final LongAdder connectNanos = new LongAdder();
+    private static final AtomicLong connectMaxNanos = new AtomicLong();
+
+    private SshClients(){}
+
+    public static int getNioWorkers(){
+        return Integer.getInteger(NIO_WORKERS_PROPERTY, DEFAULT_NIO_WORKERS);
+    }
+
+    /**
+     * returns the started, shared client and creates it if necessary
+     */
+    public static SshClient get(){
+        SshClient rtrn = client;
+        if(rtrn == null || !rtrn.isStarted()){
+            synchronized (LOCK){
+                rtrn = client;
+                if(rtrn == null || !rtrn.isStarted()){
+                    rtrn = create(getNioWorkers());
+                    client = rtrn;
+                }
+            }
+        }
+        return rtrn;
+    }
+
+    private static SshClient create(int nioWorkers){
+        logger.trace("starting shared ssh client with {} nio workers",nioWorkers);
+        SshClient rtrn = SshClient.setUpDefaultClient();
+        CoreModuleProperties.IDLE_TIMEOUT.set(rtrn, Duration.ofSeconds(7*24*3600));
+        CoreModuleProperties.NIO2_READ_TIMEOUT.set(rtrn, Duration.ofSeconds(7*24*3600));
+        CoreModuleProperties.NIO_WORKERS.set(rtrn, nioWorkers);
+        nioPool = ThreadUtils.newFixedThreadPool("qdup-ssh-nio", nioWorkers);
+        final CloseableExecutorService pool = nioPool;
+        rtrn.setIoServiceFactoryFactory(new Nio2ServiceFactoryFactory(() -> pool));
+        // StrictHostKeyChecking=no
+        rtrn.setServerKeyVerifier((clientSession, remoteAddress, serverKey) -> {
+            logger.trace("accept server key for {}",remoteAddress);
+            return true;
+        });
+        rtrn.start();
+        return rtrn;
+    }
+
+    /**
+     * stops the shared client, the next call to get() will start a new client
+     */
+    public static void stop(){
+        synchronized (LOCK){
+            if(client != null){
+                if(client.isStarted()){
+                    client.stop();
+                }
+                client = null;
+                nioPool = null;
+            }
+        }
+    }
+
+    /**
+     * loads the identity KeyPair, parsed key pairs are cached per identity and passphrase
+     * @return null if the identity could not be loaded
+     */
+    public static KeyPair getIdentity(String identity, String passphrase) throws IOException, GeneralSecurityException {
+        String key = identity + (passphrase == RunConfigBuilder.DEFAULT_PASSPHRASE ? "" : "\u0000"+passphrase);
+        KeyPair rtrn = identities.get(key);
+        if(rtrn == null){
+            URLResource urlResource = new URLResource(Paths.get(identity).toUri().toURL());
+            try (InputStream inputStream = urlResource.openInputStream()) {
+                Iterable<KeyPair> keyPairs = SecurityUtils.loadKeyPairIdentities(
+                        null,
+                        urlResource,
+                        inputStream,
+                        (session, resourceKey, retryIndex) -> passphrase
+                );
+                rtrn = GenericUtils.head(keyPairs);
+            }
+            if(rtrn != null){
+                identities.putIfAbsent(key,rtrn);
+            }
+        }
+        return rtrn;
+    }
+
+    public static void recordConnect(long nanos, boolean connected){
+        connectCount.increment();
+        if(!connected){
+            connectFailures.increment();
+        }
+        connectNanos.add(nanos);
+        connectMaxNanos.accumulateAndGet(nanos,Math::max);
+    }
+    public static long getConnectCount(){return connectCount.sum();}
+    public static long getConnectFailures(){return connectFailures.sum();}
+    public static long getConnectMillis(){return connectNanos.sum() / 1_000_000;}
+    public static long getConnectMaxMillis(){return connectMaxNanos.get() / 1_000_000;}
+
+    /**
+     * @return the number of live threads in the shared NIO worker pool
+     */
+    public static int getThreadCount(){
+        CloseableExecutorService pool = nioPool;
+        if(pool instanceof ThreadPoolExecutor){
+            return ((ThreadPoolExecutor)pool).getPoolSize();
+        }
+        return 0;
+    }
+
+    public static Json getMetrics(){
+        Json rtrn = new Json();
+        long count = getConnectCount();
+        rtrn.set("connects",count);
+        rtrn.set("failures",getConnectFailures());
+        rtrn.set("connectMs",getConnectMillis());
+        rtrn.set("connectMaxMs",getConnectMaxMillis());
+        rtrn.set("connectAvgMs",count > 0 ? getConnectMillis() / count : 0);
+        rtrn.set("nioWorkers",getNioWorkers());
+        rtrn.set("nioThreads",getThreadCount());
+        return rtrn;
+    }
+}
@@ -0,0 +1,257 @@
+package io.hyperfoil.tools.qdup;
+
+import io.hyperfoil.tools.qdup.config.RunConfigBuilder;
+import org.apache.sshd.client.future.ConnectFuture;
+import org.apache.sshd.client.session.ClientSession;
+import org.apache.sshd.common.session.Session;
+import org.apache.sshd.common.session.SessionListener;
+import org.slf4j.ext.XLogger;
+import org.slf4j.ext.XLoggerFactory;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shares one authenticated ClientSession per host between SshSessions.
+ * Each SshSession opens its own ChannelShell on the shared connection so only the first session to a host pays for the
+ * TCP handshake, key exchange and authentication.
+ * A connection hands out at most getMaxChannels() leases and a new connection is opened once all the connections to a host
+ * are saturated or the server refuses to open another channel (MaxSessions).
+ */
+public class SshConnections {
+
+    private static final XLogger logger = XLoggerFactory.getXLogger(MethodHandles.lookup().lookupClass());
+
+    public static final String MAX_CHANNELS_PROPERTY = "qdup.ssh.maxChannels";
+    //OpenSSH defaults MaxSessions to 10, exec channels take a lease like shell channels
+    public static final int DEFAULT_MAX_CHANNELS = 9;
+
+    /**
+     * A channel reservation on a shared connection. Must be released exactly once.
+     */
+    public static class Lease {
+        private final HostConnections owner;
+        private final Connection connection;
+        private boolean released = false;
+
+        private Lease(HostConnections owner, Connection connection){
+            this.owner = owner;
+            this.connection = connection;
+        }
+        public ClientSession getSession(){return connection.session;}
+
+        /**
+         * release the lease after the server refused to open a channel.
+         * The connection will not receive new leases until one of the current leases is released.
+         */
+        public void saturated(){
+            synchronized (owner){
+                if(!released){
+                    connection.limit = Math.max(1,connection.leases - 1);
+                    logger.debug("{} connection saturated at {} channels",owner.host.getSafeString(),connection.leases);
+                }
+            }
+            release();
+        }
+        public void release(){
+            synchronized (owner){
+                if(!released){
+                    released = true;
+                    connection.leases--;
+                }
+            }
+        }
+    }
+
+    private static class Connection {
+        private final ClientSession session;
+        private int leases = 0;
+        private int limit;
+        private Connection(ClientSession session, int limit){
+            this.session = session;
+            this.limit = limit;
+        }
+    }
+
+    private static class HostConnections {
+        private final Host host;
+        private final List<Connection> connections = new ArrayList<>();
+        private CompletableFuture<Connection> connecting;//the connection being opened, null when no thread is connecting
+
+        private HostConnections(Host host){
+            this.host = host;
+        }
+
+        private Lease acquire(String identity, String passphrase, int timeout){
+            CompletableFuture<Connection> pending;
+            while(true){
+                synchronized (this){
+                    Connection found = null;
+                    for(Iterator<Connection> iter = connections.iterator(); iter.hasNext();){
+                        Connection connection = iter.next();
+                        if(!connection.session.isOpen() || connection.session.isClosing()){
+                            iter.remove();
+                        }else if (found == null && connection.leases < connection.limit){
+                            found = connection;
+                        }
+                    }
+                    if(found != null){
+                        found.leases++;
+                        return new Lease(this,found);
+                    }
+                    if(connecting == null){
+                        connecting = new CompletableFuture<>();
+                        pending = connecting;
+                        break;
+                    }
+                    pending = connecting;
+                }
+                //another thread is opening a connection, wait without holding the monitor then look for a free channel again
+                if(pending.join() == null){
+                    return null;
+                }
+            }
+            //connect outside the monitor so leases on the open connections are not blocked by the network
+            Connection created = null;
+            try {
+                ClientSession session = connect(host,identity,passphrase,timeout);
+                if(session != null){
+                    created = new Connection(session,getMaxChannels());
+                }
+            } finally {
+                synchronized (this){
+                    connecting = null;
+                    if(created != null){
+                        connections.add(created);
+                        created.leases++;
+                    }
+                }
+                pending.complete(created);
+            }
+            return created == null ? null : new Lease(this,created);
+        }
+
+        private synchronized void close(){
+            connections.forEach(connection -> {
+                try {
+                    connection.session.close();
+                } catch (IOException e) {
+                    logger.debug("{} exception closing connection {}",host.getSafeString(),e.getMessage());
+                }
+            });
+            connections.clear();
+        }
+    }
+
+    private static final Map<String,HostConnections> hosts = new ConcurrentHashMap<>();
+
+    private SshConnections(){}
+
+    public static int getMaxChannels(){
+        return Math.max(1,Integer.getInteger(MAX_CHANNELS_PROPERTY,DEFAULT_MAX_CHANNELS));
+    }
+
+    /**
+     * get a channel lease on an authenticated connection to host, opening a new connection if necessary
+     * @return null if a new connection could not be established
+     */
+    public static Lease acquire(Host host, String identity, String passphrase, int timeout){
+        HostConnections hostConnections = hosts.computeIfAbsent(host.toString()+"|"+identity,(key)->new HostConnections(host));
+        return hostConnections.acquire(identity,passphrase,timeout);
+    }
+
+    /**
+     * close all the shared connections, existing leases will be disconnected
+     */
+    public static void closeAll(){
+        hosts.values().forEach(HostConnections::close);
+        hosts.clear();
+    }
+
+    private static ClientSession connect(Host host, String identity, String passphrase, int timeout){
+        long connectStart = System.nanoTime();
+        ClientSession clientSession = null;
+        boolean authenticated = false;
+        try {
+            ConnectFuture future = SshClients.get().connect(host.getUserName(), host.getHostName(), host.getPort());
+            future.await(10, TimeUnit.SECONDS);
+            if (!future.isConnected()) {
+                logger.trace("{} client failed to connect before timeout", host.getHostName());
+                return null;
+            }
+            future = future.verify(timeout * 2_000);
+            future.await(10, TimeUnit.SECONDS);
+            if (!future.isConnected()) {
+                logger.trace("{} client failed to verify connection before timeout", host.getHostName());
+                return null;
+            }
+            clientSession = future.getSession();
+            clientSession.addSessionListener(new SessionListener() {
+                @Override
+                public void sessionException(Session session, Throwable t) {
+                    logger.trace("{} session exception: {}", host.getSafeString(), t.getMessage());
+                }
+
+                @Override
+                public void sessionDisconnect(Session session, int reason, String msg, String language, boolean initiator) {
+                    logger.trace("{} session disconnect", host.getSafeString());
+                }
+
+                @Override
+                public void sessionClosed(Session session) {
+                    logger.trace("{} session closed", host.getSafeString());
+                }
+            });
+
+            if (RunConfigBuilder.DEFAULT_PASSPHRASE == passphrase) {
+                logger.trace("{} using {} identity without passphrase", host.getSafeString(), identity);
+            } else {
+                logger.trace("{} using {} identity with a passphrase", host.getSafeString(), identity);
+            }
+            KeyPair keyPair = SshClients.getIdentity(identity, passphrase);
+            if (keyPair == null) {
+                if (passphrase == RunConfigBuilder.DEFAULT_PASSPHRASE) {
+                    logger.error("cannot connect {} using {} without a passphrase", host.getSafeString(), identity);
+                } else {
+                    logger.error("cannot connect {} using {} using the provided passphrase", host.getSafeString(), identity);
+                }
+                clientSession.close(true);
+                return null; // we failed to connect
+            }
+            clientSession.addPublicKeyIdentity(keyPair);
+            if (host.hasPassword()) {
+                logger.trace("{} adding password-identity", host.getSafeString());
+                clientSession.addPasswordIdentity(host.getPassword());
+            }
+            logger.trace("{} authenticating client session", host.getSafeString());
+            clientSession.auth().verify().await(timeout * 1_000);
+            logger.trace("{} waiting for authentication", host.getSafeString());
+            clientSession.waitFor(EnumSet.of(ClientSession.ClientSessionEvent.AUTHED), 0L);
+            authenticated = clientSession.isAuthenticated();
+            if (!authenticated) {
+                logger.error("{} failed to authenticate", host.getSafeString());
+                clientSession.close(true);
+                return null;
+            }
+            return clientSession;
+        } catch (GeneralSecurityException | IOException e) {
+            logger.debug("Exception while connecting to {}@{} using {}\n{}", host.getUserName(), host.getHostName(), identity, e.getMessage(), e);
+            if (clientSession != null) {
+                clientSession.close(true);
+            }
+            return null;
+        } finally {
+            SshClients.recordConnect(System.nanoTime() - connectStart, authenticated);
+        }
+    }
+}
@@ -5,38 +5,24 @@ import io.hyperfoil.tools.qdup.config.RunConfigBuilder;
 import io.hyperfoil.tools.qdup.stream.MultiStream;
 import io.hyperfoil.tools.qdup.stream.SessionStreams;
 import io.hyperfoil.tools.yaup.AsciiArt;
-import org.apache.sshd.client.SshClient;
 import org.apache.sshd.client.channel.ChannelExec;
 import org.apache.sshd.client.channel.ChannelShell;
 import org.apache.sshd.client.channel.ClientChannelEvent;
-import org.apache.sshd.client.future.ConnectFuture;
 import org.apache.sshd.client.session.ClientSession;
-import org.apache.sshd.common.NamedResource;
 import org.apache.sshd.common.channel.Channel;
 import org.apache.sshd.common.channel.ChannelListener;
 import org.apache.sshd.common.channel.PtyMode;
-import org.apache.sshd.common.kex.KexProposalOption;
-import org.apache.sshd.common.session.Session;
-import org.apache.sshd.common.session.SessionContext;
-import org.apache.sshd.common.session.SessionListener;
-import org.apache.sshd.common.util.GenericUtils;
-import org.apache.sshd.common.util.io.resource.URLResource;
-import org.apache.sshd.common.util.security.SecurityUtils;
-import org.apache.sshd.core.CoreModuleProperties;
 import org.slf4j.ext.XLogger;
 import org.slf4j.ext.XLoggerFactory;
 
 import java.io.*;
 import java.lang.invoke.MethodHandles;
-import java.nio.file.Paths;
-import java.security.GeneralSecurityException;
-import java.security.KeyPair;
-import java.time.Duration;
-import java.util.Arrays;
+import java.nio.file.Path;
 import java.util.EnumSet;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 import java.util.concurrent.locks.ReentrantLock;
@@ -76,6 +62,9 @@ public class SshSession {
         Consumer<String> callback;
         ByteArrayOutputStream baos;
         String name;
+        SshConnections.Lease lease;
+        private volatile boolean failed = false;
+        private final AtomicBoolean done = new AtomicBoolean(false);
 
         public ExecWatcher(String name, Runnable callback) {
             this.name = name;
@@ -89,6 +78,20 @@ public class SshSession {
             this.baos = baos;
         }
 
+        public ExecWatcher(String name, Consumer<String> callback, ByteArrayOutputStream baos, SshConnections.Lease lease) {
+            this(name, callback, baos);
+            this.lease = lease;
+        }
+
+        /**
+         * stop the watcher after the channel failed to open, the caller keeps the lease and reports the failure
+         * @return false if the channel already closed and called the callback
+         */
+        public boolean fail() {
+            failed = true;
+            return done.compareAndSet(false, true);
+        }
+
         @Override
         public void channelInitialized(Channel channel) {
         }
@@ -99,9 +102,7 @@ public class SshSession {
 
         @Override
         public void channelOpenFailure(Channel channel, Throwable reason) {
-            if (callback != null) {
-
-            }
+            failed = true;
         }
 
         @Override
@@ -110,8 +111,16 @@ public class SshSession {
 
         @Override
         public void channelClosed(Channel channel, Throwable reason) {
+            if (failed || !done.compareAndSet(false, true)) {
+                return;
+            }
+            if (lease != null) {
+                lease.release();
+            }
             String response = baos != null ? baos.toString() : "";
-            callback.accept(response);
+            if (callback != null) {
+                callback.accept(response);
+            }
         }
     }
 
@@ -218,8 +227,23 @@ public class SshSession {
     private static final XLogger logger = XLoggerFactory.getXLogger(MethodHandles.lookup().lookupClass());
 
     public static final String PROMPT = "<_#%@_qdup_@%#_> "; // a string unlikely to appear in the output of any command
+    //PS1 prefix that carries the exit code and working directory of the previous command so Sh does not need to ask the shell
+    public static final String PROMPT_ENVELOPE = "<_#%@_qdup_env_@%#_>";
+    public static final String PROMPT_ENVELOPE_PROPERTY = "qdup.prompt.envelope";
+    //each sh sets a new nonce that the prompt echoes back so the prompt can be confirmed without the SuffixStream delay
+    public static final String PROMPT_NONCE_PROPERTY = "qdup.prompt.nonce";
+    private static final String NONCE_VARIABLE = "__qdup_nonce";
+    //sets the nonce and returns its second argument so the command after it still sees the $? of the previous command
+    private static final String NONCE_FUNCTION = "__qdup_set_nonce";
+
+    private static boolean usePromptEnvelope(){
+        return Boolean.parseBoolean(System.getProperty(PROMPT_ENVELOPE_PROPERTY,"true"));
+    }
+    private static boolean usePromptNonce(){
+        return usePromptEnvelope() && Boolean.parseBoolean(System.getProperty(PROMPT_NONCE_PROPERTY,"true"));
+    }
 
-    private SshClient sshClient;
+    private SshConnections.Lease lease;
     private ClientSession clientSession;
     private ChannelShell channelShell;
 
@@ -236,18 +260,26 @@ public class SshSession {
     private int  timeout;
     private String setupCommand;
     private boolean trace;
+    private Path spillDirectory;
 
     private Consumer<String> semaphoreCallback;
     private Semaphore blockingSemaphore;
     private Consumer<String> blockingConsumer;
     private StringBuffer blockingResponse;
     private Map<String, Consumer<String>> lineObservers;
+    private Map<String, Consumer<CharSequence>> lineViewObservers;
     private Map<String, BiConsumer<String,String>> shObservers;
     private ScheduledThreadPoolExecutor executor;
 
     private String name = "";
     private String lastCommand = "";
 
+    private volatile String promptExitCode = null;
+    private volatile String promptCwd = null;
+    private volatile String promptNonce = null;
+    private volatile String lastPromptName = null;
+    private boolean promptNonceEnabled = false;
+
     private volatile Status status = Status.Initializing;
     private volatile ShAction currentAction = null;
 
@@ -271,6 +303,7 @@ public class SshSession {
         shellLock = new Semaphore(1);
 
         lineObservers = new ConcurrentHashMap<>();
+        lineViewObservers = new ConcurrentHashMap<>();
         shObservers = new ConcurrentHashMap<>();
 
         //for shSync
@@ -307,7 +340,19 @@ public class SshSession {
         }
     }
     public SshSession openCopy() {
-        return new SshSession(getName(),host, knownHosts, identity, passphrase, timeout, setupCommand, executor, trace);
+        SshSession copy = new SshSession(getName(),host, knownHosts, identity, passphrase, timeout, setupCommand, executor, trace);
+        copy.setSpillDirectory(spillDirectory);
+        return copy;
+    }
+
+    /**
+     * @param spillDirectory where command output larger than the memory limit is spilled, java.io.tmpdir if null
+     */
+    public void setSpillDirectory(Path spillDirectory) {
+        this.spillDirectory = spillDirectory;
+        if (sessionStreams != null) {
+            sessionStreams.setSpillDirectory(spillDirectory);
+        }
     }
 
     public void addLineObserver(String name, Consumer<String> consumer) {
@@ -318,8 +363,20 @@ public class SshSession {
         lineObservers.remove(name);
     }
 
+    /**
+     * the consumer gets a reused view of each line that is only valid during accept, call toString() to keep the line
+     */
+    public void addLineViewObserver(String name, Consumer<CharSequence> consumer) {
+        lineViewObservers.put(name, consumer);
+    }
+
+    public void removeLineViewObserver(String name) {
+        lineViewObservers.remove(name);
+    }
+
     public void clearLineObservers() {
         lineObservers.clear();
+        lineViewObservers.clear();
     }
 
     public boolean hasShObserver(String name){
@@ -335,10 +392,16 @@ public class SshSession {
         shObservers.remove(name);
     }
 
-    private void lineConsumers(String line) {
+    private void lineConsumers(CharSequence line) {
+        if (!lineViewObservers.isEmpty()) {
+            for (Consumer<CharSequence> consumer : lineViewObservers.values()) {
+                consumer.accept(line);
+            }
+        }
         if (!lineObservers.isEmpty()) {
+            String toEmit = line.toString();
             for (Consumer<String> consumer : lineObservers.values()) {
-                consumer.accept(line);
+                consumer.accept(toEmit);
             }
         }
     }
@@ -353,6 +416,63 @@ public class SshSession {
         });
     }
 
+    /**
+     * parses the exit code and working directory from the PROMPT_ENVELOPE content
+     */
+    private void setPromptStatus(String envelope){
+        String exitCode = null;
+        String cwd = null;
+        if(envelope != null && envelope.startsWith("nonce=") && envelope.indexOf(';') > 0){
+            envelope = envelope.substring(envelope.indexOf(';') + 1);
+        }
+        if(envelope != null && envelope.startsWith("ec=")){
+            int cwdIndex = envelope.indexOf(";cwd=");
+            if(cwdIndex > 3){
+                exitCode = envelope.substring(3,cwdIndex);
+                cwd = envelope.substring(cwdIndex + ";cwd=".length());
+                if(!exitCode.chars().allMatch(Character::isDigit)){
+                    exitCode = null;
+                    cwd = null;
+                }
+            }
+        }
+        promptExitCode = exitCode;
+        promptCwd = cwd;
+    }
+
+    /**
+     * @return true if the prompt envelope carries the nonce of the current command
+     */
+    private boolean isPromptConfirmed(String envelope){
+        String nonce = promptNonce;
+        return nonce != null && envelope.startsWith("nonce=" + nonce + ";");
+    }
+
+    /**
+     * The nonce prefix is only safe when the shell is sitting at the qDup PROMPT (not a custom prompt or a program reading input)
+     * and the command is a single line that produces a single prompt.
+     * @return the line to send to the shell for command
+     */
+    private String nonceCommand(String command){
+        if(promptNonceEnabled && isReady() && PROMPT.equals(lastPromptName) && !command.isEmpty()
+                && command.indexOf('\n') < 0 && command.indexOf('\r') < 0){
+            String nonce = Long.toHexString(ThreadLocalRandom.current().nextLong() | Long.MIN_VALUE);
+            promptNonce = nonce;
+            return NONCE_FUNCTION + " " + nonce + " $?; " + command;
+        }
+        promptNonce = null;
+        return command;
+    }
+
+    /**
+     * @return true if the exit code and working directory of the last command were read from the prompt
+     */
+    public boolean hasPromptStatus(){
+        return promptExitCode != null && promptCwd != null;
+    }
+    public String getPromptExitCode(){return promptExitCode;}
+    public String getPromptCwd(){return promptCwd;}
+
     public int permits() {
         return shellLock.availablePermits();
     }
@@ -361,13 +481,14 @@ public class SshSession {
         if(flush){
             sessionStreams.flushBuffer();
         }
-        String streamString = sessionStreams.currentOutput();
+        return sessionStreams.commandOutput();
+    }
 
-        String output = streamString
-                .replaceAll("^[\r\n]+", "")  //replace leading newlines
-                .replaceAll("[\r\n]+$", "") //replace trailing newlines
-                .replaceAll("\r\n", "\n"); //change \r\n to just \n
-        return output;
+    /**
+     * @return the size in bytes of the last output from getShOutput, before it was limited to -Dqdup.output.limit
+     */
+    public long getShOutputSize(){
+        return sessionStreams.getCommandOutputSize();
     }
 
     public boolean connect(long timeoutMillis, String setupCommand, boolean trace) {
@@ -380,187 +501,34 @@ public class SshSession {
         boolean rtrn = false;
         try {
             if(Status.Disconnected.equals(previousStatus)){
-                logger.trace("{} connect was disconnected, stopping previous client and shell",this.getName());
-                if(sshClient != null && sshClient.isStarted()){
-                    sshClient.stop();
-                }
-                if(clientSession!=null && clientSession.isOpen()){
-                    clientSession.close(true);
-                    clientSession.waitFor(EnumSet.of(ClientSession.ClientSessionEvent.CLOSED),0L);
-                }
+                logger.trace("{} connect was disconnected, stopping previous session and shell",this.getName());
                 if(channelShell != null && channelShell.isOpen()){
                     channelShell.close(true);
                     channelShell.waitFor(EnumSet.of(ClientChannelEvent.CLOSED),0L);
                 }
-            }
-            sshClient = SshClient.setUpDefaultClient();
-            sshClient.addSessionListener(new SessionListener() {
-                @Override
-                public void sessionEstablished(Session session) {
-                    logger.trace("{} client established",SshSession.this.getName());
-                }
-
-                @Override
-                public void sessionCreated(Session session) {
-                    logger.trace("{} client created",SshSession.this.getName());
-                }
-
-                @Override
-                public void sessionDisconnect(Session session, int reason, String msg, String language, boolean initiator) {
-                    logger.trace("{} client disconnected",SshSession.this.getName());
-                }
-
-                @Override
-                public void sessionClosed(Session session) {
-                    logger.trace("{} client disconnected",SshSession.this.getName());
+                if(lease != null){
+                    lease.release();
+                    lease = null;
                 }
-            });
-            CoreModuleProperties.IDLE_TIMEOUT.set(sshClient, Duration.ofSeconds(7*24*3600));
-            CoreModuleProperties.NIO2_READ_TIMEOUT.set(sshClient, Duration.ofSeconds(7*24*3600));
-            CoreModuleProperties.NIO_WORKERS.set(sshClient, 1);
-            // StrictHostKeyChecking=no
-            //        sshConfig = new Properties();
-            //        sshConfig.put("StrictHostKeyChecking", "no");
-            sshClient.setServerKeyVerifier((clientSession1, remoteAddress, serverKey) -> {
-                logger.trace("{} accept server key for {}",SshSession.this.getName(),remoteAddress);
-                return true;
-            });
-            if(host.hasPassword()){
-                logger.trace("{} setting client password provider {}",getName(),identity);
-                sshClient.setPasswordIdentityProvider((sc) -> Arrays.asList(host.getPassword()));
             }
-            if(passphrase != RunConfigBuilder.DEFAULT_PASSPHRASE){
-                logger.trace("{} setting client passphrase",getName());
-                sshClient.setFilePasswordProvider((SessionContext sessionContext, NamedResource namedResource, int i)->{
-                    return passphrase;
-                });
-            }
-            if(!RunConfigBuilder.DEFAULT_IDENTITY.equals(identity)){
-                logger.trace("{} setting client identity {}",getName(),identity);
-                URLResource urlResource = new URLResource(Paths.get(identity).toUri().toURL());
-                try (InputStream inputStream = urlResource.openInputStream()) {
-                    Iterable<KeyPair> keyPairs = SecurityUtils.loadKeyPairIdentities(
-                            clientSession,
-                            urlResource,
-                            inputStream,
-                            (session, resourceKey, retryIndex) -> passphrase
-                    );
-                    KeyPair keyPair = GenericUtils.head(keyPairs);
-                    if(keyPair == null){
-                        if(passphrase == RunConfigBuilder.DEFAULT_PASSPHRASE){
-                            logger.error("{} cannot set client identity {} without a passphrase",getName(),identity);
-                        }else{
-                            logger.error("{} cannot set client identity {} using the provided passphrase",getName(),identity);
-                        }
-                        return false; // we failed to connect
-                    }
-                    sshClient.setKeyIdentityProvider((sessionContext -> {return keyPairs;}));
-                }
-            }
-            sshClient.start();
-
-            ConnectFuture future = sshClient.connect(host.getUserName(), host.getHostName(), host.getPort());
-            future.await(10,TimeUnit.SECONDS);
-            if(!future.isConnected()){
-                logger.trace("{} client failed to connect before timeout",SshSession.this.getHost().getHostName());
+            lease = SshConnections.acquire(host,identity,passphrase,timeout);
+            if(lease == null){
+                logger.trace("{} failed to connect",getName());
                 return false;
             }
-            future = future.verify(this.timeout * 2_000);
-            future.await(10,TimeUnit.SECONDS);
-            if(!future.isConnected()){
-                logger.trace("{} client failed to verify connection before timeout",SshSession.this.getHost().getHostName());
-                return false;
-            }
-            clientSession = future.getSession();
-            clientSession.addSessionListener(new SessionListener() {
-                @Override
-                public void sessionEstablished(Session session) {
-                    logger.trace("{} session established",SshSession.this.getName());
-                }
-
-                @Override
-                public void sessionCreated(Session session) {
-                    logger.trace("{} session created",SshSession.this.getName());
-                }
-
-                @Override
-                public void sessionPeerIdentificationReceived(Session session, String version, List<String> extraLines) {
-                    logger.trace("{} session identification received",SshSession.this.getName());
-                }
-
-                @Override
-                public void sessionNegotiationStart(Session session, Map<KexProposalOption, String> clientProposal, Map<KexProposalOption, String> serverProposal) {
-                    logger.trace("{} session negotiation start",SshSession.this.getName());
-                }
-
-                @Override
-                public void sessionNegotiationEnd(Session session, Map<KexProposalOption, String> clientProposal, Map<KexProposalOption, String> serverProposal, Map<KexProposalOption, String> negotiatedOptions, Throwable reason) {
-                    logger.trace("{} session negotiation end",SshSession.this.getName());
-                }
-
-                @Override
-                public void sessionEvent(Session session, Event event) {
-
-                }
-
-                @Override
-                public void sessionException(Session session, Throwable t) {
-                    logger.trace("{} session exception: {}",SshSession.this.getName(),t.getMessage());
-                }
-
-                @Override
-                public void sessionDisconnect(Session session, int reason, String msg, String language, boolean initiator) {
-                    logger.trace("{} session disconnect",SshSession.this.getName());
-                }
-
-                @Override
-                public void sessionClosed(Session session) {
-                    logger.trace("{} session closed",SshSession.this.getName());
-                }
-            });
-
-            if(RunConfigBuilder.DEFAULT_PASSPHRASE==passphrase){
-                logger.trace("{} using {} identity without passphrase",getName(),identity);
-            }else{
-                logger.trace("{} using {} identity with a passphrase",getName(),identity);
-            }
-            URLResource urlResource = new URLResource(Paths.get(identity).toUri().toURL());
-            try (InputStream inputStream = urlResource.openInputStream()) {
-                Iterable<KeyPair> keyPairs = SecurityUtils.loadKeyPairIdentities(
-                        clientSession,
-                        urlResource,
-                        inputStream,
-                        (session, resourceKey, retryIndex) -> passphrase
-                );
-                KeyPair keyPair = GenericUtils.head(keyPairs);
-                if(keyPair == null){
-                    if(passphrase == RunConfigBuilder.DEFAULT_PASSPHRASE){
-                        logger.error("cannot connect {} using {} without a passphrase",getName(),identity);
-                    }else{
-                        logger.error("cannot connect {} using {} using the provided passphrase",getName(),identity);
-                    }
-                    return false; // we failed to connect
-                }
-                clientSession.addPublicKeyIdentity(keyPair);
-            }
-            if (host.hasPassword()) {
-                logger.trace("{} adding password-identity",SshSession.this.getName());
-                clientSession.addPasswordIdentity(host.getPassword());
-            }
-            //clientSession.auth().verify(this.timeout * 1_000);
-            logger.trace("{} authenticating client session",getName());
-            boolean sessionResponse = clientSession.auth().verify().await(this.timeout * 1_000);
-            logger.trace("{} waiting for authentication",getName());
-            clientSession.waitFor(EnumSet.of(ClientSession.ClientSessionEvent.AUTHED), 0L);
+            clientSession = lease.getSession();
 
             //setup all the streams
             //the output of the current sh command
             if (sessionStreams != null) {
                 sessionStreams.close();
             }
-            sessionStreams = new SessionStreams(getName(), executor);
+            sessionStreams = SessionStreams.create(getName(), executor);
+            sessionStreams.setSpillDirectory(spillDirectory);
             semaphoreCallback = (name) -> {
                 String output = getShOutput(true);
+                setPromptStatus(PROMPT.equals(name) ? sessionStreams.getPromptEnvelope() : null);
+                lastPromptName = name;
                 //TODO use atomic boolean to set expecting response and check for true bfore release?
                 if(permits() == 0) {
                     shellLock.release();
@@ -582,40 +550,46 @@ public class SshSession {
                 }
             };
             sessionStreams.addPrompt(PROMPT, PROMPT, "");
+            boolean promptEnvelope = host.isSh() && usePromptEnvelope();
+            promptNonceEnabled = promptEnvelope && usePromptNonce();
+            promptNonce = null;
+            if(promptEnvelope){
+                sessionStreams.addPromptEnvelope(PROMPT, PROMPT_ENVELOPE);
+                if(promptNonceEnabled){
+                    sessionStreams.setPromptConfirmation(this::isPromptConfirmed);
+                }
+            }
             if(host.hasPrompt()){
                 sessionStreams.addPrompt(host.getPrompt(),host.getPrompt(),"");
             }
             sessionStreams.addPromptCallback(this.semaphoreCallback);
 
-            logger.trace("{} creating channel shell",getName());
-            channelShell = clientSession.createShellChannel();
-
-            channelShell.getPtyModes().put(PtyMode.ECHO, 1);//need echo for \n from real SH but adds gargage chars for test :(
-            channelShell.setPtyType("vt100"); // channelShell.setPtyType("xterm");
-            channelShell.setPtyColumns(10 * 1024);//hack to get around " \r" when line is longer than shell width
-            channelShell.setPtyWidth(10 * 1024);//TODO add " \r" to the suffix stream?
-            channelShell.setPtyHeight(80);
-            channelShell.setPtyLines(80);
-            channelShell.setUsePty(true);
-
-            channelShell.setOut(sessionStreams);//efs or ss
-            channelShell.setErr(sessionStreams);//PROMPT goes to error stream so have to listen there too
-            channelShell.addChannelListener(new SessionWatcher());
-
             setTrace(trace);
 
-            if (timeoutMillis > 0) {
-                logger.trace("{} opening and verifying channel shell with {} timeout",getName(),timeoutMillis);
-                boolean response = channelShell.open().verify().await(timeoutMillis);
-                //channelShell.open().verify(timeoutMillis).isOpened();
-
-            } else {
-                logger.trace("{} opening and verifying channel shell",getName());
-                channelShell.open().verify().isOpened();
+            boolean opened = openShell(timeoutMillis);
+            if(!opened && lease != null){
+                //the server can refuse more channels on a shared connection (MaxSessions), retry on a new connection
+                logger.debug("{} failed to open channel shell on shared connection, opening a new connection",getName());
+                lease.saturated();
+                lease = SshConnections.acquire(host,identity,passphrase,timeout);
+                if(lease == null){
+                    logger.trace("{} failed to connect",getName());
+                    return false;
+                }
+                clientSession = lease.getSession();
+                opened = openShell(timeoutMillis);
+            }
+            if(!opened){
+                logger.error("{} failed to open channel shell",getName());
+                lease.release();
+                lease = null;
+                return false;
             }
             commandStream = new PrintStream(channelShell.getInvertedIn());
             if(host.isSh()) {
-                shConnecting("unset PROMPT_COMMAND; export PS1='" + PROMPT + "'; set +o history; export HISTCONTROL=\"ignoreboth\"");
+                String ps1 = promptEnvelope ? PROMPT_ENVELOPE + (promptNonceEnabled ? "nonce=${"+NONCE_VARIABLE+"};" : "") + "ec=$?;cwd=$PWD" + PROMPT : PROMPT;
+                shConnecting("unset PROMPT_COMMAND; export PS1='" + ps1 + "'; set +o history; export HISTCONTROL=\"ignoreboth\""
+                        + (promptNonceEnabled ? "; " + NONCE_FUNCTION + "(){ " + NONCE_VARIABLE + "=$1; return $2; }" : ""));
             }
             if (setupCommand != null && !setupCommand.trim().isEmpty()) {
                 shConnecting(setupCommand);
@@ -643,7 +617,7 @@ public class SshSession {
             }
             if (sessionStreams != null) { //sessionStreams can be null if an exception was thrown trying to connect
                 //allow session to be fully setup before adding watcher support to lineEmittingStream
-                sessionStreams.addLineConsumer(this::lineConsumers);
+                sessionStreams.addLineViewConsumer(this::lineConsumers);
             } else {
                 logger.error("failed to setup terminal streams for {}", host);
             }
@@ -651,7 +625,7 @@ public class SshSession {
             sessionStreams.flush(); //to remove any motd that may be in the stream
             sessionStreams.reset(); //to remove any motd that may be in the stream
 
-        } catch (GeneralSecurityException | IOException e) {
+        } catch (IOException e) {
             //e.printStackTrace();
             logger.debug("Exception while connecting to {}@{} using {}\n{}", host.getUserName(), host.getHostName(), identity, e.getMessage(), e);
         } finally {
@@ -661,6 +635,11 @@ public class SshSession {
                     channelShell == null ? "false" : channelShell.isOpen()
             );
             rtrn = isOpen();
+            if(!rtrn && lease != null){
+                //do not keep a channel on the shared connection for a shell that failed to connect
+                lease.release();
+                lease = null;
+            }
         }
         logger.trace("{} connect returning {}",
                 this.getName(),
@@ -668,6 +647,36 @@ public class SshSession {
         );
         return rtrn;
     }
+    private boolean openShell(long timeoutMillis) throws IOException {
+        logger.trace("{} creating channel shell",getName());
+        channelShell = clientSession.createShellChannel();
+
+        channelShell.getPtyModes().put(PtyMode.ECHO, 1);//need echo for \n from real SH but adds gargage chars for test :(
+        channelShell.setPtyType("vt100"); // channelShell.setPtyType("xterm");
+        channelShell.setPtyColumns(10 * 1024);//hack to get around " \r" when line is longer than shell width
+        channelShell.setPtyWidth(10 * 1024);//TODO add " \r" to the suffix stream?
+        channelShell.setPtyHeight(80);
+        channelShell.setPtyLines(80);
+        channelShell.setUsePty(true);
+
+        channelShell.setOut(sessionStreams);//efs or ss
+        channelShell.setErr(sessionStreams);//PROMPT goes to error stream so have to listen there too
+        channelShell.addChannelListener(new SessionWatcher());
+
+        try {
+            if (timeoutMillis > 0) {
+                logger.trace("{} opening and verifying channel shell with {} timeout", getName(), timeoutMillis);
+                channelShell.open().verify().await(timeoutMillis);
+            } else {
+                logger.trace("{} opening and verifying channel shell", getName());
+                channelShell.open().verify();
+            }
+        }catch (IOException e){
+            logger.trace("{} exception opening channel shell {}",getName(),e.getMessage());
+            channelShell.close(true);
+        }
+        return channelShell.isOpen();
+    }
     public boolean waitForReady(){
         while(!Status.Ready.equals(status)){
 //            try {
@@ -885,6 +894,8 @@ public class SshSession {
                 //moved stream reset to after acquiring lock
                 sessionStreams.reset();
             }
+            promptExitCode = null;
+            promptCwd = null;
             removeShObserver(SH_CALLBACK);
             if (callback != null) {
                 //addShObserver(SH_CALLBACK, callback);
@@ -892,14 +903,15 @@ public class SshSession {
             }
             boolean sendCommand = ensureConnected();
             if (sendCommand) {
-                if (!command.isEmpty()) {
+                String toSend = nonceCommand(command);
+                if (!toSend.isEmpty()) {
                     // race between this and FilteredStream.write before we changed FilterStream to copy the keys into a new Set
                     // Are we releasing the lock too soon in the stream chain?
                     // test with a stream that sleeps in the write?
-                    sessionStreams.setCommand(command);
+                    sessionStreams.setCommand(toSend);
                 }
                 actionUpdater.set(this,newAction);
-                commandStream.println(command);
+                commandStream.println(toSend);
                 commandStream.flush();
             } else {
                 //TODO abort run if sh isn't open or try reconnect
@@ -916,19 +928,16 @@ public class SshSession {
 
         if (Status.Disconnected.equals(status)){
                 //connectingSemaphore.acquire();
+                //the write lock is the only guard, reconnect sleeps between attempts and a monitor would pin a virtual thread
                 long lock = connectingLock.writeLock();
-                synchronized (this) {
-                        try {
-                            if (Status.Disconnected.equals(status)) { //double check status before proceeding with
-                                rtrn = reconnect();
-                            }
-                        } finally {
-                            //connectingSemaphore.release();
-                            connectingLock.unlockWrite(lock);
-                        }
-
+                try {
+                    if (Status.Disconnected.equals(status)) { //double check status before proceeding with
+                        rtrn = reconnect();
+                    }
+                } finally {
+                    //connectingSemaphore.release();
+                    connectingLock.unlockWrite(lock);
                 }
-
         }
         if (Status.Connecting.equals(status)){
             waitForReady();
@@ -976,36 +985,101 @@ public class SshSession {
         exec(command, null);
     }
 
+    /**
+     * run command on an exec channel, callback receives the output or an empty String if the channel could not be opened.
+     * The exec channel takes its own lease so it counts against the channels on the shared connection.
+     */
     public void exec(String command, Consumer<String> callback) {
-        if (isOpen()) {
-            try {
-                ChannelExec channelExec = clientSession.createExecChannel(command);
-                if (callback != null) {
-                    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                    ExecWatcher watcher = new ExecWatcher(command, callback, baos);
-                    MultiStream stream = new MultiStream();
-                    stream.addStream("baos", baos);
-                    //stream.addStream("sout", System.err);
-                    channelExec.setOut(stream);
-                    //channelExec.setErr(baos); //added to try and catch echo output
-                    channelExec.addChannelListener(watcher);
-                }
-                channelExec.open().verify(9L, TimeUnit.SECONDS);
-            } catch (IOException e) {
+        if (!isOpen()) {
+            logger.error("{} cannot exec {} when the session is not open", getName(), command);
+            if (callback != null) {
+                callback.accept("");
+            }
+            return;
+        }
+        SshConnections.Lease execLease = SshConnections.acquire(host, identity, passphrase, timeout);
+        boolean opened = execLease != null && openExec(execLease, command, callback);
+        if (!opened && execLease != null) {
+            //the server can refuse more channels on a shared connection (MaxSessions), retry on a new connection
+            logger.debug("{} failed to open exec channel on shared connection, opening a new connection", getName());
+            execLease.saturated();
+            execLease = SshConnections.acquire(host, identity, passphrase, timeout);
+            opened = execLease != null && openExec(execLease, command, callback);
+            if (!opened && execLease != null) {
+                execLease.release();
+            }
+        }
+        if (!opened) {
+            logger.error("{} failed to open exec channel for {}", getName(), command);
+            if (callback != null) {
+                callback.accept("");
             }
         }
     }
 
+    /**
+     * @return true if the channel opened or already called the callback
+     */
+    private boolean openExec(SshConnections.Lease execLease, String command, Consumer<String> callback) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ExecWatcher watcher = new ExecWatcher(command, callback, baos, execLease);
+        ChannelExec channelExec = null;
+        try {
+            channelExec = execLease.getSession().createExecChannel(command);
+            if (callback != null) {
+                MultiStream stream = new MultiStream();
+                stream.addStream("baos", baos);
+                //stream.addStream("sout", System.err);
+                channelExec.setOut(stream);
+                //channelExec.setErr(baos); //added to try and catch echo output
+            }
+            channelExec.addChannelListener(watcher);
+            channelExec.open().verify(9L, TimeUnit.SECONDS);
+            return true;
+        } catch (IOException e) {
+            logger.debug("{} exception opening exec channel {}", getName(), e.getMessage());
+            boolean failed = watcher.fail();
+            if (channelExec != null) {
+                channelExec.close(true);
+            }
+            return !failed;
+        }
+    }
+
     public String peekOutput() {
         return sessionStreams.currentOutput();
     }
 
+    /**
+     * @return the last lines of the current output without reading output that was spilled to disk
+     */
+    public String peekOutput(int lines) {
+        return sessionStreams.tail(lines);
+    }
+
     public String peekOutputTail() {
-        String rtrn = peekOutput().replaceAll("[\r\n]+$", ""); //replace trailing newlines;
-        if (rtrn.lastIndexOf("\n") > -1) {
-            rtrn = rtrn.substring(rtrn.lastIndexOf("\n"));
-        }
-        return rtrn;
+        return sessionStreams.lastLine();
+    }
+
+    /**
+     * search the current output without copying it into a String
+     */
+    public boolean outputContains(String value) {
+        return sessionStreams.outputContains(value);
+    }
+
+    /**
+     * search the current output that was not spilled to disk
+     */
+    public boolean tailContains(String value) {
+        return sessionStreams.tailContains(value);
+    }
+
+    /**
+     * @return a stream over the full output of the current command, for commands that do not need the output as a String
+     */
+    public InputStream openOutput() {
+        return sessionStreams.openOutput();
     }
 
     public void close() {
@@ -1034,8 +1108,10 @@ public class SshSession {
                 statusUpdater.set(this,Status.Closing);
                 sessionStreams.close();
                 channelShell.close();
-                clientSession.close();
-                sshClient.stop();
+                if(lease != null){
+                    lease.release();
+                    lease = null;
+                }
             } catch (IOException e) {
                 e.printStackTrace();
                 return false;
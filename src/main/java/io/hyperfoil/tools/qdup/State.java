@@ -7,6 +7,10 @@ import io.hyperfoil.tools.yaup.json.Json;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.regex.Pattern;
 
 /**
@@ -24,6 +28,11 @@ import java.util.regex.Pattern;
  *     All KEY's will match the prefix check so no set(KEY,VALUE) operations will modify a parent State.
  *   A State with a null prefix will never match a prefix check so it becomes read only from a child perspective but the parents are still mutable.
  *
+ * Each State guards its own values with a read write lock so scripts on different hosts do not wait for each other.
+ * Lookups only hold the lock of one State at a time while they walk up the parents.
+ *
+ * A clone shares the values with the original State. The first change to either State copies the Json objects on the
+ * path of the changed key, so cloning is cheap even for a big State (e.g. for each async script).
  */
 public class State {
 
@@ -34,12 +43,19 @@ public class State {
     public static final String RUN_PREFIX = "RUN"+CHILD_DELIMINATOR;
     public static final String HOST_PREFIX = "HOST"+CHILD_DELIMINATOR;
 
+    static final int MAX_CACHED_MISSES = 1024;
 
     private State parent;
     private Json json;
     private Map<String,State> childStates;
     private String prefix;
     private SecretFilter secretFilter;
+    //incremented after each change to json so a lookup can tell if a cached miss is still a miss
+    private final AtomicLong version;
+    private final Map<String,Long> misses;
+    private final ReadWriteLock lock;
+    //Json objects this State copied since it started sharing json with a clone, null when json is not shared
+    private Set<Json> owned;
 
     public static class CmdState extends State {
         private final Cmd cmd;
@@ -60,6 +76,10 @@ public class State {
         public void set(String key,Object value){
             parent().set(key,value);
         }
+        @Override
+        public State targetOf(String key){
+            return parent().targetOf(key);
+        }
     }
     public static String removeStatePrefix(String input){
         if(input == null || input.isEmpty()){
@@ -114,17 +134,31 @@ public class State {
         this.json = new Json();
         this.childStates = new ConcurrentHashMap<>();
         this.prefix = prefix;
+        this.version = new AtomicLong(0);
+        this.misses = new ConcurrentHashMap<>();
+        this.lock = new ReentrantReadWriteLock();
     }
 
     public SecretFilter getSecretFilter(){return secretFilter;}
 
     public void merge(State state){
         if(this.prefix == state.prefix){
-            state.getKeys().forEach(key->{
-                if(!this.json.has(key)){
-                    this.json.set(key,state.get(key));
-                }
-            });
+            //read the other State before locking this one so the two locks are never held together
+            Map<String,Object> values = new LinkedHashMap<>();
+            state.getKeys().forEach(key->values.put(key,state.get(key)));
+            Lock write = lock.writeLock();
+            write.lock();
+            try {
+                ownRoot();
+                values.forEach((key,value)->{
+                    if(!this.json.has(key)){
+                        this.json.set(key,value);
+                    }
+                });
+                changed();
+            } finally {
+                write.unlock();
+            }
             state.getChildNames().forEach(childName->{
                 State childState = state.getChild(childName);
                 addChild(childName,childState.prefix).merge(childState);
@@ -185,7 +219,13 @@ public class State {
     }
 
     public Map<Object,Object> getOwnState(){
-        return Collections.unmodifiableMap(Json.toObjectMap(json));
+        Lock read = lock.readLock();
+        read.lock();
+        try {
+            return Collections.unmodifiableMap(Json.toObjectMap(json));
+        } finally {
+            read.unlock();
+        }
     }
     public Map<Object,Object> getFullState(){
         Map<Object,Object> rtrn = new HashMap<>();
@@ -218,7 +258,29 @@ public class State {
         this.set( key, value, true);
     }
 
+    /**
+     * @return the State that set(key,value) changes
+     */
+    public State targetOf(String key){
+        if(key.startsWith(SecretFilter.SECRET_NAME_PREFIX)){
+            key = key.substring(SecretFilter.SECRET_NAME_PREFIX.length());
+        }
+        State target = this;
+        do {
+            if (target.prefix != null && key.startsWith(target.prefix)) {
+                return target;
+            }
+        } while ((target = target.parent) != null);
+        for(String childName : childStates.keySet()){
+            if(key.startsWith(childName+CHILD_DELIMINATOR)){
+                return childStates.get(childName).targetOf(key.substring(childName.length()+CHILD_DELIMINATOR.length()));
+            }
+        }
+        return this;
+    }
+
     public void set(String key, Object value, boolean autoConvert){
+        //parse the value before taking the lock of the target State
         if (autoConvert) {
             value = convertType(value);
         }else if (Json.isJsonLike(value.toString())){
@@ -237,9 +299,7 @@ public class State {
             do {
                 if (target.prefix != null && key.startsWith(target.prefix)) {
                     String newKey = key.substring(target.prefix.length());
-                    //use chain set to break .'s into child objects
-                    Json.chainSet(target.json,newKey,value);
-                    target.scanSecrets();
+                    target.chainSet(newKey,value);
                     return;
                 }
             } while ((target = target.parent) != null);
@@ -253,8 +313,20 @@ public class State {
             }
         }
         //at this point there wasn't a prefix match
-        Json.chainSet(this.json,key,value);
-        scanSecrets();
+        chainSet(key,value);
+    }
+    private void chainSet(String key,Object value){
+        Lock write = lock.writeLock();
+        write.lock();
+        try {
+            ownPath(key);
+            //use chain set to break .'s into child objects
+            Json.chainSet(json,key,value);
+            scanSecrets();
+            changed();
+        } finally {
+            write.unlock();
+        }
     }
     public void set(Json json){
         for(Object key : json.keys()){
@@ -273,6 +345,10 @@ public class State {
         if(key==null){
             return false;
         }
+        long stamp = stamp();
+        if(isCachedMiss(key,stamp)){
+            return false;
+        }
         boolean rtrn = false;
         State target = this;
         String currentKey = key;//once we remove the prefixes it can match any scope above the current scope
@@ -280,15 +356,18 @@ public class State {
             if(target.prefix!=null && currentKey.startsWith(target.prefix)){
                 currentKey = currentKey.substring(target.prefix.length());
             }
-            rtrn = target.json.has(currentKey) || Json.find(target.json,currentKey.startsWith("$") ? currentKey : "$." + currentKey)!=null;
+            rtrn = target.contains(currentKey);
             if(!rtrn && Json.isJsonSearchPath(currentKey)){
                 String keyPrefix = Json.getPreSearchPath(currentKey);
                 if(!keyPrefix.isBlank()){
-                    rtrn = target.json.has(keyPrefix) || Json.find(target.json,keyPrefix.startsWith("$") ? keyPrefix : "$." + keyPrefix)!=null;
+                    rtrn = target.contains(keyPrefix);
                 }
             }
             target = target.parent;
         }
+        if(!rtrn){
+            cacheMiss(key,stamp);
+        }
         return rtrn;
     }
     public boolean remove(String key){
@@ -299,22 +378,35 @@ public class State {
         do {
             if(target.prefix!=null && currentKey.startsWith(target.prefix)){
                 currentKey = currentKey.substring(target.prefix.length());
-                if(target.json.has(currentKey)){
-                    rtrn = true;
-                    target.json.remove(currentKey);
-                }
+                rtrn = target.removeOwn(currentKey);
             }
         }while((target=target.parent)!=null && !rtrn);
 
         if(!rtrn){
-            if(this.json.has(key)){
-                rtrn = true;
-                this.json.remove(key);
-            }
+            rtrn = removeOwn(key);
         }
         return rtrn;
     }
+    private boolean removeOwn(String key){
+        Lock write = lock.writeLock();
+        write.lock();
+        try {
+            if(json.has(key)){
+                ownRoot();
+                json.remove(key);
+                changed();
+                return true;
+            }
+            return false;
+        } finally {
+            write.unlock();
+        }
+    }
     public Object get(String key){
+        long stamp = stamp();
+        if(isCachedMiss(key,stamp)){
+            return null;
+        }
         State target = this;
         Object rtrn = null;
         String currentKey = key;
@@ -322,8 +414,7 @@ public class State {
         do {
             if(target.prefix!=null && currentKey.startsWith(target.prefix)){
                 currentKey = currentKey.substring(target.prefix.length());
-                String searchKey = currentKey.startsWith("$") ? currentKey : "$."+currentKey;
-                rtrn = target.json.has(currentKey) ? target.json.get(currentKey) : Json.find(target.json,searchKey);
+                rtrn = target.lookup(currentKey);
             }
         }while( (target=target.parent)!=null && rtrn==null);
 
@@ -335,17 +426,162 @@ public class State {
                 if(target.prefix!=null && currentKey.startsWith(target.prefix)){
                     currentKey = currentKey.substring(target.prefix.length());
                 }
-                rtrn = target.json.has(currentKey) ? target.json.get(currentKey) : Json.find(target.json,currentKey.startsWith("$") ? currentKey : "$."+currentKey);
+                rtrn = target.lookup(currentKey);
                 if(rtrn == null && Json.isJsonSearchPath(currentKey)){
                     String keyPrefix = Json.getPreSearchPath(currentKey);
                     if(!keyPrefix.isBlank()){
-                        rtrn = Json.find(target.json,keyPrefix.startsWith("$") ? keyPrefix : "$." + keyPrefix);
+                        rtrn = target.find(keyPrefix);
                     }
                 }
             } while (rtrn == null && (target = target.parent) != null);
+            if(rtrn == null){
+                cacheMiss(key,stamp);
+            }
         }
         return rtrn;
     }
+
+    //the value for the key in this State, null if it is missing
+    private Object lookup(String key){
+        Lock read = lock.readLock();
+        read.lock();
+        try {
+            return json.has(key) ? json.get(key) : StatePath.of(key).find(json);
+        } finally {
+            read.unlock();
+        }
+    }
+    private Object find(String key){
+        Lock read = lock.readLock();
+        read.lock();
+        try {
+            return StatePath.of(key).find(json);
+        } finally {
+            read.unlock();
+        }
+    }
+    private boolean contains(String key){
+        Lock read = lock.readLock();
+        read.lock();
+        try {
+            return json.has(key) || StatePath.of(key).find(json) != null;
+        } finally {
+            read.unlock();
+        }
+    }
+    private boolean hasOwn(String key){
+        Lock read = lock.readLock();
+        read.lock();
+        try {
+            return json.has(key);
+        } finally {
+            read.unlock();
+        }
+    }
+    private void changed(){
+        version.incrementAndGet();
+    }
+    //copy on write for the top level values, call with the write lock
+    private void ownRoot(){
+        if(owned != null){
+            json = own(json);
+        }
+    }
+    //copy on write for every Json that chainSet can change for the key, call with the write lock
+    private void ownPath(String key){
+        if(owned == null){
+            return;
+        }
+        json = own(json);
+        String[] names = StatePath.of(key).getNames();
+        Json current = json;
+        //chainSet replaces the last value without changing it
+        for(int i=0; names != null && i<names.length - 1; i++){
+            if(current.isArray()){
+                names = null;
+            }else{
+                Object child = current.get(names[i]);
+                if(!(child instanceof Json)){
+                    return;
+                }
+                Json copy = own((Json)child);
+                if(copy != child){
+                    current.set(names[i],copy);
+                }
+                current = copy;
+            }
+        }
+        if(names == null){
+            //leave other key syntax to chainSet on a full copy
+            json = json.clone();
+            owned = null;
+        }
+    }
+    private Json own(Json value){
+        if(owned.contains(value)){
+            return value;
+        }
+        Json rtrn = new Json(value.isArray());
+        if(value.isArray()){
+            for(int i=0; i<value.size(); i++){
+                rtrn.add(value.get(i));
+            }
+        }else{
+            value.forEach((k,v)->rtrn.set(k,v));
+        }
+        owned.add(rtrn);
+        return rtrn;
+    }
+    //the sum of the versions up to the root, it changes whenever a State used by get or has changes
+    private long stamp(){
+        long rtrn = 0;
+        State target = this;
+        do {
+            rtrn += target.version.get();
+        } while ((target = target.parent) != null);
+        return rtrn;
+    }
+    private boolean isCachedMiss(String key,long stamp){
+        if(key == null){
+            return false;
+        }
+        Long cached = misses.get(key);
+        return cached != null && cached == stamp;
+    }
+    //only caches a miss when no State has the first name of the key
+    //values under an existing name can be changed through the returned Json without calling set
+    private void cacheMiss(String key,long stamp){
+        if(key == null){
+            return;
+        }
+        State target = this;
+        String currentKey = key;
+        do {
+            if(target.prefix!=null && currentKey.startsWith(target.prefix)){
+                currentKey = currentKey.substring(target.prefix.length());
+            }
+            String root = StatePath.of(currentKey).getRoot();
+            if(root == null || target.hasOwn(root) || target.hasOwn(currentKey)){
+                return;
+            }
+        } while ((target = target.parent) != null);
+        if(misses.size() >= MAX_CACHED_MISSES){
+            misses.clear();
+        }
+        misses.put(key,stamp);
+    }
+    /**
+     * @return the value for the key in this State without checking prefixes, parents, children or json paths
+     */
+    public Object getOwn(String key){
+        Lock read = lock.readLock();
+        read.lock();
+        try {
+            return json.get(key);
+        } finally {
+            read.unlock();
+        }
+    }
     public String getString(String key){
         return getString(key,"");
     }
@@ -379,11 +615,17 @@ public class State {
     }
     public String getPrefix(){return prefix;}
     public List<String> getKeys(){
-        return Collections.unmodifiableList(
-            Arrays.asList(
-                json.keySet().toArray(new String[0])
-            )
-        );
+        Lock read = lock.readLock();
+        read.lock();
+        try {
+            return Collections.unmodifiableList(
+                Arrays.asList(
+                    json.keySet().toArray(new String[0])
+                )
+            );
+        } finally {
+            read.unlock();
+        }
     }
     public List<String> getChildNames(){
         return Collections.unmodifiableList(
@@ -403,9 +645,14 @@ public class State {
     }
     public Json toJson(){
         Json rtrn = new Json(false);
-
-        for(Object key : json.keySet()){
-            rtrn.set(key,json.get(key));
+        Lock read = lock.readLock();
+        read.lock();
+        try {
+            for(Object key : json.keySet()){
+                rtrn.set(key,json.get(key));
+            }
+        } finally {
+            read.unlock();
         }
         for(String child : childStates.keySet()){
             rtrn.set(child,childStates.get(child).toJson());
@@ -413,11 +660,17 @@ public class State {
         return rtrn;
     }
     public Json toOwnJson(){
-        return json.clone();
+        Lock read = lock.readLock();
+        read.lock();
+        try {
+            return json.clone();
+        } finally {
+            read.unlock();
+        }
     }
     public void tree(int indent,StringBuilder sb){
         int space = indent>0? indent:1;
-        Json toUse = filter(json.clone());
+        Json toUse = filter(toOwnJson());
         for(String key : getKeys()){
             sb.append(String.format("%"+space+"s%s = %s%n","",key, toUse.get(key)));
         }
@@ -443,9 +696,16 @@ public class State {
     public State clone(boolean deep){
         State rtrn = new State(this.parent,this.prefix);
         //break abstraction to avoid prefix checks
-        this.json.forEach((k,v)->{
-            rtrn.json.set(k,v);
-        });
+        Lock write = lock.writeLock();
+        write.lock();
+        try {
+            //both States copy what they change from now on
+            rtrn.json = this.json;
+            rtrn.owned = Collections.newSetFromMap(new IdentityHashMap<>());
+            this.owned = Collections.newSetFromMap(new IdentityHashMap<>());
+        } finally {
+            write.unlock();
+        }
         this.childStates.forEach((k,v)->{
             rtrn.childStates.put(k,deep ? v.clone() : v);
         });
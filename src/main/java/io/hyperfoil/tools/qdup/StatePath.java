@@ -0,0 +1,98 @@
+package io.hyperfoil.tools.qdup;
+
+import io.hyperfoil.tools.yaup.json.Json;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A State key compiled for lookups in the State's json.
+ * Keys that are only . separated names (foo.bar) are read by walking the json objects, other keys use the same json path
+ * search as Json.find. Paths are cached by key because State.get and State.has are called with the same keys for every command.
+ */
+final class StatePath {
+
+    static final int MAX_CACHE_SIZE = 4096;
+
+    private static final Map<String,StatePath> cache = new ConcurrentHashMap<>();
+
+    static StatePath of(String key){
+        StatePath rtrn = cache.get(key);
+        if(rtrn == null){
+            rtrn = new StatePath(key);
+            //keys can come from populated patterns so do not let the cache grow without a limit
+            if(cache.size() >= MAX_CACHE_SIZE){
+                cache.clear();
+            }
+            cache.put(key,rtrn);
+        }
+        return rtrn;
+    }
+
+    //the . separated names or null if the key uses other json path syntax
+    private static String[] names(String key){
+        List<String> rtrn = new ArrayList<>();
+        int start = 0;
+        for(int i=0; i<=key.length(); i++){
+            if(i == key.length() || key.charAt(i) == '.'){
+                if(i == start){
+                    return null;
+                }
+                rtrn.add(key.substring(start,i));
+                start = i + 1;
+            }else{
+                char c = key.charAt(i);
+                if(!Character.isLetterOrDigit(c) && c != '_' && c != '-'){
+                    return null;
+                }
+            }
+        }
+        return rtrn.toArray(new String[0]);
+    }
+
+    private final String searchKey;
+    private final String[] names;
+
+    private StatePath(String key){
+        this.searchKey = key.startsWith("$") ? key : "$." + key;
+        this.names = names(key);
+    }
+
+    /**
+     * @return the . separated names in a simple key, null otherwise
+     */
+    String[] getNames(){
+        return names;
+    }
+
+    /**
+     * @return the first name in a simple key, null otherwise
+     */
+    String getRoot(){
+        return names == null ? null : names[0];
+    }
+
+    /**
+     * @return the same value as Json.find(json,"$."+key)
+     */
+    Object find(Json json){
+        if(names == null){
+            return Json.find(json,searchKey);
+        }
+        Object target = json;
+        for(int i=0; i<names.length && target != null; i++){
+            if(!(target instanceof Json)){
+                return null;
+            }
+            Json current = (Json)target;
+            if(current.isArray()){
+                //leave array indexing rules to the json path search
+                return Json.find(json,searchKey);
+            }
+            target = current.get(names[i]);
+        }
+        return target;
+    }
+}
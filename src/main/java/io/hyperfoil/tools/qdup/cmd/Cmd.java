@@ -553,14 +553,14 @@ public abstract class Cmd {
       if(!hasStateReference(command,cmd)){
          return command;
       }
+      //the template is parsed once and shared by every command that uses the same string
+      PatternTemplate template = cmd != null ?
+              PatternTemplate.get(command,cmd.getPatternPrefix(),cmd.getPatternSeparator(),cmd.getPatternSuffix(),cmd.getPatternJavascriptPrefix()) :
+              PatternTemplate.get(command);
       PatternValuesMap map = new PatternValuesMap(cmd,state,coordinator,timestamps,ref);
       try {
          Collection<String> jsSnippets = (coordinator != null && coordinator.getJsSnippetContents() != null) ? coordinator.getJsSnippetContents() : new ArrayList<>();
-         if(cmd!=null){
-            return StringUtil.populatePattern(command,map,jsSnippets,cmd.getPatternPrefix(),cmd.getPatternSeparator(),cmd.getPatternSuffix(),cmd.getPatternJavascriptPrefix());
-         }else {
-            return StringUtil.populatePattern(command, map,jsSnippets, StringUtil.PATTERN_PREFIX, StringUtil.PATTERN_DEFAULT_SEPARATOR, StringUtil.PATTERN_SUFFIX, StringUtil.PATTERN_JAVASCRIPT_PREFIX);
-         }
+         return template.populate(map,jsSnippets);
       } catch (PopulatePatternException pe){
          if(pe.isJsFailure()){
             logger.error(pe.getMessage());// warn when js evaluation fails
@@ -579,6 +579,8 @@ public abstract class Cmd {
    //private int thenIndex = 0;
    protected Thens thens;
    private LinkedList<Cmd> watchers;
+   private volatile WatcherFilter watcherFilter;
+   private volatile boolean watcherFilterBuilt = false;
    private HashedLists<Long, Cmd> timers;
    private HashedLists<String, Cmd> onSignal;
 
@@ -618,6 +620,10 @@ public abstract class Cmd {
       this.stateScan = stateScan;
    }
    public boolean isStateScan(){return stateScan;}
+   /**
+    * @return true if run does not block and calls next or skip before returning, so the context can run it on the current thread
+    */
+   public boolean isInline(){return false;}
    public boolean hasCustomIdleTimer(){return idleTimer!=DEFAULT_IDLE_TIMER;}
    public boolean hasIdleTimer(){return idleTimer > 0;}
    public long getIdleTimer(){return idleTimer;}
@@ -908,6 +914,7 @@ public abstract class Cmd {
    public Cmd watch(Cmd command) {
       command.stateParent = this;
       this.watchers.add(command);
+      watcherFilterBuilt = false;
       return this;
    }
 
@@ -927,6 +934,17 @@ public abstract class Cmd {
       return Collections.unmodifiableList(this.watchers);
    }
 
+   /**
+    * @return the filter for lines that cannot match the watchers, null if every watcher needs every line
+    */
+   public WatcherFilter getWatcherFilter() {
+      if (!watcherFilterBuilt) {
+         watcherFilter = hasWatchers() ? WatcherFilter.of(getWatchers()) : null;
+         watcherFilterBuilt = true;
+      }
+      return watcherFilter;
+   }
+
    public boolean hasVariablePatternInWith(){
       return Cmd.hasStateReference(withDef.toString(0),this);
    }
@@ -1,5 +1,6 @@
 package io.hyperfoil.tools.qdup.cmd;
 
+import io.hyperfoil.tools.qdup.Coordinator;
 import io.hyperfoil.tools.qdup.SshSession;
 import io.hyperfoil.tools.qdup.cmd.impl.RepeatUntilSignal;
 import io.hyperfoil.tools.qdup.cmd.impl.Sh;
@@ -51,6 +52,43 @@ public class Dispatcher {
 
     private static final String CLOSE_QUEUE = "CLOSE_QUEUE_OBSERVER_"+System.currentTimeMillis();
     private static final String QUEUE_OBSERVER = "QUEUE_OBSERVER";
+    //getActiveJson only includes the end of the output so large outputs are not copied on each request
+    private static final int ACTIVE_OUTPUT_LINES = 1000;
+
+    public static final String VIRTUAL_THREADS_PROPERTY = "qdup.dispatcher.virtual";
+
+    /**
+     * Creates an executor that starts a virtual thread for each task.
+     * Uses reflection so qDup still builds and runs on jdks without virtual threads.
+     * @return null if the jvm does not support virtual threads
+     */
+    public static ExecutorService newVirtualThreadExecutor(){
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            //missing before jdk 19 and a preview api that fails without --enable-preview on jdk 19 and 20
+            logger.debug("virtual threads are not available: {}",e.getMessage());
+            return null;
+        }
+    }
+    public static boolean useVirtualThreads(){
+        return Boolean.getBoolean(VIRTUAL_THREADS_PROPERTY);
+    }
+    private static ExecutorService defaultExecutor(){
+        ExecutorService rtrn = useVirtualThreads() ? newVirtualThreadExecutor() : null;
+        if(rtrn == null){
+            rtrn = new ThreadPoolExecutor(Runtime.getRuntime().availableProcessors(), Runtime.getRuntime().availableProcessors(), 30, TimeUnit.MINUTES, new LinkedBlockingQueue<>(), new ThreadFactory() {
+                AtomicInteger count = new AtomicInteger(0);
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread rtrn = new Thread(runnable,"execute-"+count.getAndAdd(1));
+                    rtrn.setUncaughtExceptionHandler(DefaultUncaughtExceptionHandler);
+                    return rtrn;
+                }
+            });
+        }
+        return rtrn;
+    }
 
     //Result called by watchers which will just invoke the next watcher on the current thread
 
@@ -61,17 +99,26 @@ public class Dispatcher {
     private final List<DispatchObserver> dispatchObservers;
     private final List<ContextObserver> contextObservers;
 
-    private final ThreadPoolExecutor executor;
+    private final ExecutorService executor;
     private final ScheduledThreadPoolExecutor scheduler;
+    private final TimingWheel timingWheel;
+    private final Map<ScriptContext,TimingWheel.Timeout> idleChecks;
     private ScheduledFuture<?> nannyFuture;
     private final AtomicBoolean isRunning;
     private final AtomicBoolean isStopping;
+    //script contexts that are still connecting, the dispatcher does not stop while any are pending
+    private final AtomicInteger pendingContexts;
     private final Consumer<Long> nannyTask;
 
     private final boolean autoClose;
 
     private final ContextObserver observer = new ContextObserver() {
 
+        @Override
+        public boolean observesUpdates(){
+            return hasContextObserver();
+        }
+
         @Override
         public void onUpdate(Context context, Cmd command, String output){
             if(hasContextObserver()){
@@ -83,6 +130,9 @@ public class Dispatcher {
 
         @Override
         public void preStart(Context context,Cmd command){
+            if(context instanceof ScriptContext){
+                scheduleIdleCheck((ScriptContext)context,command);
+            }
             if(hasContextObserver()){
                 for(ContextObserver o : contextObservers){
                     o.preStart(context,command);
@@ -124,6 +174,7 @@ public class Dispatcher {
             if(context instanceof ScriptContext){
                 ScriptContext scriptContext = (ScriptContext)context;
                 scriptContext.getContextTimer().stop(); //fix bug where last timer has stop = 0
+                cancelIdleCheck(scriptContext);
 
                 scriptContexts.remove(scriptContext.getRootCmd());
                 scriptObservers.forEach(observer -> observer.onStop(scriptContext));
@@ -165,7 +216,7 @@ public class Dispatcher {
             entry.set("script",rootCmd.getUid()+":"+rootCmd.toString());
             if(currentCmd instanceof Sh){
                 entry.set("input",currentCmd.getPrevious()!=null?currentCmd.getPrevious().getOutput():"");
-                entry.set("output",context.getSession().peekOutput());
+                entry.set("output",context.getSession().peekOutput(ACTIVE_OUTPUT_LINES));
             }
             entry.set("startTime",context.getStartTime());
             entry.set("runTime",(System.currentTimeMillis()-context.getStartTime()));
@@ -180,15 +231,7 @@ public class Dispatcher {
 
     public Dispatcher(){
         this(
-                new ThreadPoolExecutor(Runtime.getRuntime().availableProcessors(), Runtime.getRuntime().availableProcessors(), 30, TimeUnit.MINUTES, new LinkedBlockingQueue<>(), new ThreadFactory() {
-                    AtomicInteger count = new AtomicInteger(0);
-                    @Override
-                    public Thread newThread(Runnable runnable) {
-                        Thread rtrn = new Thread(runnable,"execute-"+count.getAndAdd(1));
-                        rtrn.setUncaughtExceptionHandler(DefaultUncaughtExceptionHandler);
-                        return rtrn;
-                    }
-                }),
+                defaultExecutor(),
                 new ScheduledThreadPoolExecutor(Runtime.getRuntime().availableProcessors()/2,new ThreadFactory() {
                     AtomicInteger count = new AtomicInteger(0);
                     @Override
@@ -199,17 +242,22 @@ public class Dispatcher {
                 true
         );
     }
-    public Dispatcher(ThreadPoolExecutor executor, ScheduledThreadPoolExecutor scheduler) {
+    /**
+     * @param executor runs each ScriptContext step, a ThreadPoolExecutor or the executor from newVirtualThreadExecutor
+     */
+    public Dispatcher(ExecutorService executor, ScheduledThreadPoolExecutor scheduler) {
         this(executor,scheduler,false);
     }
-    private Dispatcher(ThreadPoolExecutor executor, ScheduledThreadPoolExecutor scheduler, boolean autoClose){
+    private Dispatcher(ExecutorService executor, ScheduledThreadPoolExecutor scheduler, boolean autoClose){
         this.executor = executor;
         this.scheduler = scheduler;
+        this.timingWheel = new TimingWheel(scheduler);
+        this.idleChecks = new ConcurrentHashMap<>();
         this.autoClose=autoClose;
 
         this.scriptContexts = new ConcurrentHashMap<>();
         this.contextById = new ConcurrentHashMap<>();
-        this.scriptObservers = new LinkedList<>();
+        this.scriptObservers = new CopyOnWriteArrayList<>();
         this.dispatchObservers = new LinkedList<>();
         this.contextObservers = new LinkedList<>();
 
@@ -242,60 +290,112 @@ public class Dispatcher {
                     }
                 }
 
-                //check for idle sh
-
-                if(command.hasIdleTimer() &&  timestamp - lastUpdate > command.getIdleTimer()){
-                    if(command instanceof Sh){
-                        String output = context.getSession().peekOutput();
-                        boolean hasPrompt = output.contains(SshSession.PROMPT);
-                        boolean moreInput = output.endsWith("> ");
-                        String parentName = null;
-                        if (command.getParent() instanceof Script)
-                            parentName = ((Script) (command).getParent()).getName();
-                        if(!command.isSilent()){
-                            logger.warn("{}Nanny found idle{}\n  command={}\n  host={}\n  contextId={} script={}\n  idle={}\n  lastLine={}"
-                                    + (hasPrompt ? "\n  output includes qdup prompt, a background or child process may be running independent of the current command" : "")
-                                    + (moreInput ? "\n terminal is waiting for input, a quote may not be closed":""),
-                                    context.isColorTerminal() ? AsciiArt.ANSI_RED : "",
-                                    context.isColorTerminal() ? AsciiArt.ANSI_RESET : "",
-                                    command,
-                                    context.getSession().getHost().getHostName(),
-                                    context.getContextId(),
-                                    script + (parentName.equals(null)? "" : ":" + parentName),
-                                    String.format("%5.2f", (1.0 * timestamp - lastUpdate) / 1_000),
-                                    context.getSession().peekOutputTail());
-                        }
-
-
-                    }
-                }
             });
-            if(nonWaitingContexts.get() == 0){
-                if(!scriptContexts.isEmpty()){
-
-                    if(logger.isTraceEnabled()){
-                        logger.trace("ending phase with {} active idle waiting scripts\n{}",
-                           scriptContexts.size(),
-                           getActiveJson()
-                        );
-                    }else{
-                        logger.info("ending phase with {} active idle waiting scripts\n{}",
-                           scriptContexts.size(),
-                           getActiveJson().toString(2)
-                        );
-                    }
-                    ScriptContext first = scriptContexts.values().iterator().next();
-                    first.done();//use context.done to also stop the waiters
+            ScriptContext waiting = scriptContexts.isEmpty() ? null : scriptContexts.values().iterator().next();
+            boolean allWaiting = nonWaitingContexts.get() == 0;
+            if(waiting != null && waiting.getRun() != null && waiting.getCoordinator().isRemote()){
+                //the signals can come from another qDup process, the coordinator server knows when every process is waiting
+                Coordinator coordinator = waiting.getCoordinator();
+                if(allWaiting && coordinator.takeAllIdle()){
+                    endWaitingPhase(waiting);
+                }else{
+                    coordinator.reportIdle(allWaiting);
                 }
+            }else if(allWaiting && waiting != null){
+                endWaitingPhase(waiting);
             }
 
         };
         this.isRunning = new AtomicBoolean(false);
         this.isStopping = new AtomicBoolean(false);
+        this.pendingContexts = new AtomicInteger(0);
+    }
+
+    private void endWaitingPhase(ScriptContext waiting){
+        if(logger.isTraceEnabled()){
+            logger.trace("ending phase with {} active idle waiting scripts\n{}",
+               scriptContexts.size(),
+               getActiveJson()
+            );
+        }else{
+            logger.info("ending phase with {} active idle waiting scripts\n{}",
+               scriptContexts.size(),
+               getActiveJson().toString(2)
+            );
+        }
+        waiting.done();//use context.done to also stop the waiters
     }
 
     public ScheduledThreadPoolExecutor getScheduler(){return scheduler;}
 
+    /**
+     * @return the timing wheel for command timers and idle checks
+     */
+    public TimingWheel getTimingWheel(){return timingWheel;}
+
+    /**
+     * check if command is idle once its idle timer expires, replaces any check for the previous command of context
+     */
+    private void scheduleIdleCheck(ScriptContext context,Cmd command){
+        TimingWheel.Timeout previous;
+        if(command instanceof Sh && command.hasIdleTimer()){
+            previous = idleChecks.put(context,timingWheel.schedule(()->checkIdle(context,command),command.getIdleTimer(),TimeUnit.MILLISECONDS));
+        }else{
+            previous = idleChecks.remove(context);
+        }
+        if(previous!=null){
+            previous.cancel();
+        }
+    }
+    private void cancelIdleCheck(ScriptContext context){
+        TimingWheel.Timeout previous = idleChecks.remove(context);
+        if(previous!=null){
+            previous.cancel();
+        }
+    }
+    private void checkIdle(ScriptContext context,Cmd command){
+        if(!isRunning.get() || context.getCurrentCmd()!=command || !idleChecks.containsKey(context)){
+            return;
+        }
+        long timestamp = System.currentTimeMillis();
+        long lastUpdate = context.getUpdateTime();
+        long idle = timestamp - lastUpdate;
+        long nextCheck = command.getIdleTimer();
+        if(idle >= command.getIdleTimer()){
+            logIdle(context,command,timestamp,lastUpdate);
+        }else{
+            //output arrived since the check was scheduled, check again when the new update would be idle
+            nextCheck = command.getIdleTimer() - idle;
+        }
+        long delay = nextCheck;
+        //keep the check from preStart if the context already moved to another command
+        idleChecks.computeIfPresent(context,(key,previous)->
+            context.getCurrentCmd()==command ? timingWheel.schedule(()->checkIdle(context,command),delay,TimeUnit.MILLISECONDS) : previous
+        );
+    }
+    private void logIdle(ScriptContext context,Cmd command,long timestamp,long lastUpdate){
+        if(command.isSilent()){
+            return;
+        }
+        //only checks the output that is still in memory, does not copy the output
+        boolean hasPrompt = context.getSession().tailContains(SshSession.PROMPT);
+        boolean moreInput = context.getSession().peekOutput(1).endsWith("> ");
+        String parentName = null;
+        if (command.getParent() instanceof Script)
+            parentName = ((Script) (command).getParent()).getName();
+        logger.warn("{}Nanny found idle{}\n  command={}\n  host={}\n  contextId={} script={}\n  idle={}\n  lastLine={}"
+                + (hasPrompt ? "\n  output includes qdup prompt, a background or child process may be running independent of the current command" : "")
+                + (moreInput ? "\n terminal is waiting for input, a quote may not be closed":""),
+                context.isColorTerminal() ? AsciiArt.ANSI_RED : "",
+                context.isColorTerminal() ? AsciiArt.ANSI_RESET : "",
+                command,
+                context.getSession().getHost().getHostName(),
+                context.getContextId(),
+                context.getRootCmd() + (parentName == null ? "" : ":" + parentName),
+                String.format("%5.2f", (1.0 * timestamp - lastUpdate) / 1_000),
+                context.getSession().peekOutputTail());
+    }
+
 
     public void addContextObserver(ContextObserver observer){contextObservers.add(observer);}
     public void removeContextObserver(ContextObserver observer){contextObservers.remove(observer);}
@@ -313,6 +413,21 @@ public class Dispatcher {
         getExecutor().submit(runnable);
     }
 
+    /**
+     * keep the dispatcher running while a script context connects outside the dispatcher, call removePendingContext once it was added
+     */
+    public void addPendingContext(){
+        pendingContexts.incrementAndGet();
+    }
+    public void removePendingContext(){
+        if(pendingContexts.decrementAndGet() == 0 && isRunning.get()){
+            checkActiveCount();
+        }
+    }
+    public boolean hasPendingContexts(){
+        return pendingContexts.get() > 0;
+    }
+
     public <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> toCall) throws InterruptedException{
         return getExecutor().invokeAll(toCall);
     }
@@ -396,6 +511,7 @@ public class Dispatcher {
 //    }
     public void shutdown(){
         stop();
+        timingWheel.stop();
         if(autoClose){
             executor.shutdown();
             scheduler.shutdown();
@@ -457,6 +573,9 @@ public class Dispatcher {
         return rtrn;
     }
     private void checkActiveCount(){
+        if(hasPendingContexts()){
+            return;
+        }
         if( (scriptContexts.isEmpty() && isRunning.compareAndSet(true,false))){
             executor.execute(() -> {
                 dispatchObservers.forEach(o->o.postStop());
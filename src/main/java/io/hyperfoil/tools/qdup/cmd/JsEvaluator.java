@@ -0,0 +1,323 @@
+package io.hyperfoil.tools.qdup.cmd;
+
+import io.hyperfoil.tools.yaup.StringUtil;
+import io.hyperfoil.tools.yaup.json.Json;
+import io.hyperfoil.tools.yaup.json.ValueConverter;
+import io.hyperfoil.tools.yaup.json.graaljs.JsException;
+import io.hyperfoil.tools.yaup.json.graaljs.JsFetch;
+import io.hyperfoil.tools.yaup.json.graaljs.JsonProxy;
+import io.hyperfoil.tools.yaup.json.graaljs.JsonProxyObject;
+import io.hyperfoil.tools.yaup.json.graaljs.MapProxyWrapper;
+import org.graalvm.polyglot.Context;
+import org.graalvm.polyglot.Engine;
+import org.graalvm.polyglot.HostAccess;
+import org.graalvm.polyglot.PolyglotException;
+import org.graalvm.polyglot.Source;
+import org.graalvm.polyglot.Value;
+import org.graalvm.polyglot.proxy.ProxyExecutable;
+import org.slf4j.ext.XLogger;
+import org.slf4j.ext.XLoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.invoke.MethodHandles;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * Evaluates javascript the same way as yaup StringUtil.jsEval without building an Engine and Context for each call.
+ * All contexts share one Engine so parsed sources are cached across contexts. Contexts are pooled by the js snippets they
+ * loaded, so the snippets, jsonpath.js and luxon are only evaluated when a context is created.
+ * The code runs in a direct eval inside a function, so its var, let, const, class and function declarations stay in that
+ * function. A context is closed instead of returned to the pool if the evaluation added globals or properties to the
+ * built-in prototypes.
+ */
+public class JsEvaluator {
+
+    final static XLogger logger = XLoggerFactory.getXLogger(MethodHandles.lookup().lookupClass());
+
+    public static final int MAX_POOLED_CONTEXTS = 16;
+    public static final int MAX_CACHED_SOURCES = 1024;
+    private static final int MAX_POOLS = 8;
+
+    private static final String GLOBAL = "__yaupGlobal";
+    private static final Map<Object,Object> EMPTY_GLOBAL = Collections.unmodifiableMap(new HashMap<>());
+
+    private static final String GLOBAL_PROXY = "Object.setPrototypeOf(globalThis, new Proxy(Object.prototype, {\n" +
+       "    has(target, key) {\n" +
+       "        return  " + GLOBAL + ".containsKey(key) || key in target;\n" +
+       "    },\n" +
+       "    get(target, key, receiver) {\n" +
+       "        if (" + GLOBAL + ".containsKey(key)){ return " + GLOBAL + ".get(key); }\n" +
+       "        else { return Reflect.get( target, key, receiver); }\n" +
+       "    }\n" +
+       "}))";
+    private static final String FETCH = "fetch = async (url,options)=>new Promise(new (Java.type('io.hyperfoil.tools.yaup.json.graaljs.JsFetch'))(url,options));";
+    private static final String BTOA = "global.btoa = (str)=>Java.type('io.hyperfoil.tools.yaup.json.graaljs.JsFetch').btoa(str)";
+    private static final String ATOB = "global.atob = (str)=>Java.type('io.hyperfoil.tools.yaup.json.graaljs.JsFetch').atob(str)";
+    private static final String INSTANCE_OF = "Object.defineProperty(Object,Symbol.hasInstance, {\n" +
+       "  value: function myinstanceof(obj) {\n" +
+       "    return isInstanceLike(obj);\n" +
+       "  }\n" +
+       "});";
+    //sloppy mode direct eval keeps the completion value of the code but declares its bindings in the function
+    private static final String RUN = "(function(){ return function(__qdupCode){ return eval(__qdupCode); }; })()";
+    private static final String FINGERPRINT = "(()=>{\n" +
+       "  const targets = [globalThis, Object, Object.prototype, Array.prototype, String.prototype, Number.prototype,\n" +
+       "    Boolean.prototype, Function.prototype, Date.prototype, RegExp.prototype, Promise.prototype];\n" +
+       "  return ()=>targets.map(target=>Reflect.ownKeys(target).length).join(',');\n" +
+       "})()";
+
+    private static volatile Engine engine;
+    private static volatile List<Source> setupSources;
+    private static final Map<String,Source> sources = new ConcurrentHashMap<>();
+    private static final Map<List<String>,Queue<PooledContext>> pools = new ConcurrentHashMap<>();
+    private static final AtomicInteger created = new AtomicInteger(0);
+    private static final Source globalProxy = Source.newBuilder("js",GLOBAL_PROXY,"globalProxy").buildLiteral();
+    private static final Source instanceOf = Source.newBuilder("js",INSTANCE_OF,"instanceOf").buildLiteral();
+    private static final Source run = Source.newBuilder("js",RUN,"run").buildLiteral();
+    private static final Source fingerprint = Source.newBuilder("js",FINGERPRINT,"fingerprint").buildLiteral();
+
+    /**
+     * A context with the setup scripts evaluated
+     */
+    private static class PooledContext {
+        final Context context;
+        final Value run;
+        final Value fingerprint;
+        final String clean;
+
+        PooledContext(Context context,Value run,Value fingerprint){
+            this.context = context;
+            this.run = run;
+            this.fingerprint = fingerprint;
+            this.clean = fingerprint.execute().asString();
+        }
+        boolean isClean(){
+            return clean.equals(fingerprint.execute().asString());
+        }
+    }
+
+    private static Engine getEngine(){
+        if(engine == null){
+            synchronized (JsEvaluator.class){
+                if(engine == null){
+                    engine = Engine.newBuilder().option("engine.WarnInterpreterOnly","false").build();
+                }
+            }
+        }
+        return engine;
+    }
+
+    private static List<Source> getSetupSources(){
+        if(setupSources == null){
+            synchronized (JsEvaluator.class){
+                if(setupSources == null){
+                    List<Source> list = new ArrayList<>();
+                    list.add(Source.newBuilder("js",FETCH,"fakeFetch").buildLiteral());
+                    list.add(Source.newBuilder("js",BTOA,"btoa").buildLiteral());
+                    list.add(Source.newBuilder("js",ATOB,"atob").buildLiteral());
+                    list.add(Source.newBuilder("js",resource("jsonpath.js"),"jsonpath.js").buildLiteral());
+                    list.add(Source.newBuilder("js",resource("luxon.min.js"),"luxon.min.js").buildLiteral());
+                    setupSources = list;
+                }
+            }
+        }
+        return setupSources;
+    }
+    private static String resource(String name){
+        InputStream stream = StringUtil.class.getClassLoader().getResourceAsStream(name);
+        if(stream == null){
+            throw new IllegalStateException("missing javascript resource "+name);
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8))){
+            return reader.lines().collect(Collectors.joining("\n"));
+        } catch (IOException e) {
+            throw new IllegalStateException("failed to read javascript resource "+name,e);
+        }
+    }
+
+    private static Source source(String code){
+        Source rtrn = sources.get(code);
+        if(rtrn == null){
+            rtrn = Source.newBuilder("js",code,"qdup.js").buildLiteral();
+            //code can come from populated patterns so do not let the cache grow without a limit
+            if(sources.size() >= MAX_CACHED_SOURCES){
+                sources.clear();
+            }
+            sources.put(code,rtrn);
+        }
+        return rtrn;
+    }
+
+    private static PooledContext newContext(List<String> snippets,String code){
+        Context context = Context.newBuilder("js")
+           .engine(getEngine())
+           .allowAllAccess(true)
+           .allowHostAccess(HostAccess.ALL)
+           .allowIO(true)
+           .allowExperimentalOptions(true)
+           .option("js.foreign-object-prototype","true")
+           .option("js.global-property","true")
+           .build();
+        context.enter();
+        try {
+            Value bindings = context.getBindings("js");
+            bindings.putMember(GLOBAL,new MapProxyWrapper(EMPTY_GLOBAL));
+            context.eval(globalProxy);
+            for(String snippet : snippets){
+                try {
+                    context.eval(source(snippet));
+                } catch (PolyglotException e) {
+                    throw new RuntimeException("failed to evaluate "+snippet+" preparing for js = "+code,e);
+                }
+            }
+            bindings.putMember("_http",new JsFetch(null,null));
+            for(Source source : getSetupSources()){
+                context.eval(source);
+            }
+            bindings.putMember("isInstanceLike",new JsonProxyObject.InstanceCheck());
+            context.eval(instanceOf);
+            PooledContext rtrn = new PooledContext(context,context.eval(run),context.eval(fingerprint));
+            context.leave();
+            created.incrementAndGet();
+            return rtrn;
+        } catch (RuntimeException e) {
+            context.leave();
+            context.close();
+            throw e;
+        }
+    }
+
+    private static Queue<PooledContext> pool(List<String> snippets){
+        Queue<PooledContext> rtrn = pools.get(snippets);
+        if(rtrn == null){
+            if(pools.size() >= MAX_POOLS){
+                pools.values().forEach(JsEvaluator::closeAll);
+                pools.clear();
+            }
+            rtrn = pools.computeIfAbsent(snippets,k->new ConcurrentLinkedQueue<>());
+        }
+        return rtrn;
+    }
+    private static void closeAll(Queue<PooledContext> pool){
+        PooledContext pooled;
+        while((pooled = pool.poll()) != null){
+            pooled.context.close();
+        }
+    }
+
+    /**
+     * @return the number of contexts created since the jvm started, only meant for tests and monitoring
+     */
+    public static int getCreatedCount(){
+        return created.get();
+    }
+
+    public static Object eval(String code,Object...args){
+        return eval(code,EMPTY_GLOBAL,Collections.emptyList(),args);
+    }
+
+    /**
+     * Same contract as StringUtil.jsEval, throws JsException when the javascript fails
+     * @param globals values javascript can read as global variables
+     * @param snippets javascript that is loaded before the code, usually the run's js snippets
+     */
+    public static Object eval(String code,Map<Object,Object> globals,Collection<String> snippets,Object...args){
+        List<String> key = snippets == null || snippets.isEmpty() ? Collections.emptyList() : List.copyOf(snippets);
+        Queue<PooledContext> pool = pool(key);
+        PooledContext pooled = pool.poll();
+        if(pooled == null){
+            pooled = newContext(key,code);
+        }
+        Context context = pooled.context;
+        boolean reuse = false;
+        context.enter();
+        try {
+            Value bindings = context.getBindings("js");
+            bindings.putMember(GLOBAL,new MapProxyWrapper(globals == null || globals.isEmpty() ? EMPTY_GLOBAL : globals));
+            Object rtrn;
+            try {
+                rtrn = evaluate(pooled,code,args);
+            } finally {
+                bindings.putMember(GLOBAL,new MapProxyWrapper(EMPTY_GLOBAL));
+            }
+            reuse = pooled.isClean();
+            return rtrn;
+        } catch (PolyglotException e){
+            throw new JsException(e.getMessage(),code,e);
+        } catch (JsException e){
+            throw e;
+        } catch (Throwable e){
+            throw new JsException(e.getMessage(),code,e);
+        } finally {
+            context.leave();
+            if(reuse && pool.size() < MAX_POOLED_CONTEXTS){
+                pool.offer(pooled);
+            }else{
+                context.close();
+            }
+        }
+    }
+
+    private static Object evaluate(PooledContext pooled,String code,Object...args){
+        Context context = pooled.context;
+        Value result;
+        try {
+            result = pooled.run.execute(code);
+        } catch (PolyglotException e){
+            try {
+                result = context.eval("js","async  (async () =>"+StringUtil.quote(code)+")()");
+            } catch (PolyglotException e2){
+                result = context.eval("js","new Function('return '+"+StringUtil.quote(code)+")").execute();
+            }
+        }
+        if(result == null){
+            throw new JsException("failed to evaluate result with arguments = "+ Arrays.toString(args),code);
+        }
+        if(result.canExecute() && args != null && args.length > 0){
+            for(int i=0; i<args.length; i++){
+                if(args[i] instanceof Json){
+                    args[i] = JsonProxy.create((Json)args[i]);
+                }
+            }
+            Value executed = result.execute(args);
+            if(executed != null){
+                result = executed;
+            }
+        }
+        if(result.toString().startsWith("Promise{[")){
+            List<Object> resolved = new ArrayList<>();
+            List<Object> rejected = new ArrayList<>();
+            result.invokeMember("then",
+               (ProxyExecutable) values -> { resolved.addAll(Arrays.asList(values)); return values; },
+               (ProxyExecutable) values -> { rejected.addAll(Arrays.asList(values)); return values; }
+            );
+            if(rejected.size() > 0){
+                result = (Value) rejected.get(0);
+            }else if(resolved.size() == 1){
+                result = (Value) resolved.get(0);
+            }
+        }
+        Object converted = ValueConverter.convert(result);
+        if(converted instanceof JsonProxyObject){
+            return ((JsonProxyObject)converted).getJson();
+        }else if(converted instanceof Exception){
+            return new JsException(((Exception)converted).getMessage(),code,(Throwable) converted);
+        }
+        return converted;
+    }
+}
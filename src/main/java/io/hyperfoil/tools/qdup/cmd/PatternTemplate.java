@@ -0,0 +1,199 @@
+package io.hyperfoil.tools.qdup.cmd;
+
+import io.hyperfoil.tools.yaup.PopulatePatternException;
+import io.hyperfoil.tools.yaup.StringUtil;
+import io.hyperfoil.tools.yaup.json.graaljs.JsException;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A pattern string split into literal segments and variable references so it is only scanned once.
+ * Templates that only reference variables (with optional literal defaults) are populated with one lookup per reference
+ * and javascript references (${{= ...}} without a default) are evaluated with JsEvaluator.
+ * Nested patterns, javascript without the prefix, values that contain patterns, failed javascript and missing values
+ * without a default use StringUtil.populatePattern so the result and errors are the same as before.
+ */
+public class PatternTemplate {
+
+   public static final int MAX_CACHE_SIZE = 4096;
+
+   //javascript operators that make StringUtil.populatePattern evaluate a name without the javascript prefix
+   private static final String JS_CHARACTERS = "()/*^+-";
+   private static final String JS_SPREAD = "...";
+
+   private static final Map<String,PatternTemplate> defaultCache = new ConcurrentHashMap<>();
+   private static final Map<String,PatternTemplate> customCache = new ConcurrentHashMap<>();
+
+   public static PatternTemplate get(String template){
+      return get(template,StringUtil.PATTERN_PREFIX,StringUtil.PATTERN_DEFAULT_SEPARATOR,StringUtil.PATTERN_SUFFIX,StringUtil.PATTERN_JAVASCRIPT_PREFIX);
+   }
+   public static PatternTemplate get(String template,String prefix,String separator,String suffix,String jsPrefix){
+      boolean isDefault = StringUtil.PATTERN_PREFIX.equals(prefix) &&
+         StringUtil.PATTERN_DEFAULT_SEPARATOR.equals(separator) &&
+         StringUtil.PATTERN_SUFFIX.equals(suffix) &&
+         StringUtil.PATTERN_JAVASCRIPT_PREFIX.equals(jsPrefix);
+      Map<String,PatternTemplate> cache = isDefault ? defaultCache : customCache;
+      String key = isDefault ? template : String.join("\u0000",prefix,separator,suffix,jsPrefix,template);
+      PatternTemplate rtrn = cache.get(key);
+      if(rtrn == null){
+         rtrn = new PatternTemplate(template,prefix,separator,suffix,jsPrefix);
+         //templates can come from command output so do not let the cache grow without a limit
+         if(cache.size() >= MAX_CACHE_SIZE){
+            cache.clear();
+         }
+         cache.put(key,rtrn);
+      }
+      return rtrn;
+   }
+
+   static void clearCache(){
+      defaultCache.clear();
+      customCache.clear();
+   }
+
+   private final String template;
+   private final String prefix;
+   private final String separator;
+   private final String suffix;
+   private final String jsPrefix;
+
+   //literals has one more entry than names, the segments alternate literals[0] names[0] literals[1] ...
+   private final String[] literals;
+   private final String[] names;
+   private final String[] defaults;
+   private final boolean[] javascript;
+   private final boolean simple;
+
+   PatternTemplate(String template,String prefix,String separator,String suffix,String jsPrefix){
+      this.template = template;
+      this.prefix = prefix;
+      this.separator = separator;
+      this.suffix = suffix;
+      this.jsPrefix = jsPrefix;
+
+      List<String> literals = new ArrayList<>();
+      List<String> names = new ArrayList<>();
+      List<String> defaults = new ArrayList<>();
+      List<Boolean> javascript = new ArrayList<>();
+      boolean simple = true;
+      int from = 0;
+      int start;
+      while(simple && (start = template.indexOf(prefix,from)) >= 0){
+         int end = template.indexOf(suffix,start + prefix.length());
+         if(end < 0){
+            simple = false;
+         }else{
+            String content = template.substring(start + prefix.length(),end);
+            int separatorIndex = content.indexOf(separator);
+            String name = (separatorIndex < 0 ? content : content.substring(0,separatorIndex)).trim();
+            boolean nestedSeparator = separatorIndex >= 0 && content.indexOf(separator,separatorIndex + separator.length()) >= 0;
+            boolean isJs = name.startsWith(jsPrefix);
+            //StringUtil.populatePattern ignores separators in quotes so javascript with a separator is left to it
+            if(content.contains(prefix) || nestedSeparator || (isJs ? separatorIndex >= 0 : isJavascript(name))){
+               simple = false;
+            }else{
+               literals.add(template.substring(from,start));
+               names.add(isJs ? name.substring(jsPrefix.length()) : name);
+               defaults.add(separatorIndex < 0 ? null : content.substring(separatorIndex + separator.length()));
+               javascript.add(isJs);
+               from = end + suffix.length();
+            }
+         }
+      }
+      literals.add(template.substring(from));
+      this.simple = simple;
+      this.literals = literals.toArray(new String[0]);
+      this.names = names.toArray(new String[0]);
+      this.defaults = defaults.toArray(new String[0]);
+      this.javascript = new boolean[javascript.size()];
+      for(int i=0; i<this.javascript.length; i++){
+         this.javascript[i] = javascript.get(i);
+      }
+   }
+
+   private boolean isJavascript(String name){
+      if(name.isEmpty() || name.contains(JS_SPREAD)){
+         return true;
+      }
+      for(int i=0; i<JS_CHARACTERS.length(); i++){
+         if(name.indexOf(JS_CHARACTERS.charAt(i)) >= 0){
+            return true;
+         }
+      }
+      return false;
+   }
+
+   public String getTemplate(){
+      return template;
+   }
+
+   /**
+    * @return true if the template can be populated without StringUtil.populatePattern when all the values are present
+    */
+   public boolean isSimple(){
+      return simple;
+   }
+
+   public boolean hasReferences(){
+      return !simple || names.length > 0;
+   }
+
+   public String populate(Map<Object,Object> map) throws PopulatePatternException {
+      return populate(map,new ArrayList<>());
+   }
+
+   public String populate(Map<Object,Object> map,Collection<String> jsSnippets) throws PopulatePatternException {
+      if(!hasReferences()){
+         return template;
+      }
+      if(simple){
+         StringBuilder rtrn = new StringBuilder(template.length());
+         int i = 0;
+         for(; i<names.length; i++){
+            String value = javascript[i] ? evaluate(map,jsSnippets,names[i]) : lookup(map,names[i],defaults[i]);
+            if(value == null){
+               break;
+            }
+            rtrn.append(literals[i]).append(value);
+         }
+         if(i == names.length){
+            rtrn.append(literals[i]);
+            //a value can contain a pattern or complete one with the next literal, those need to be populated again
+            if(rtrn.indexOf(prefix) < 0){
+               return rtrn.toString();
+            }
+         }
+      }
+      return StringUtil.populatePattern(template,map,jsSnippets,prefix,separator,suffix,jsPrefix);
+   }
+
+   //same precedence as StringUtil.populatePattern: a non-empty value, the default, then an empty value
+   private static String lookup(Map<Object,Object> map,String name,String defaultValue){
+      Object found = map.containsKey(name) ? map.get(name) : null;
+      String value = found == null ? null : found.toString();
+      if(value == null || value.isEmpty()){
+         return defaultValue != null ? defaultValue : value;
+      }
+      return value;
+   }
+
+   //null when the javascript fails or returns nothing so StringUtil.populatePattern reports the error
+   private static String evaluate(Map<Object,Object> map,Collection<String> jsSnippets,String js){
+      try {
+         Object result = JsEvaluator.eval(js,map,jsSnippets);
+         String value = result == null ? null : result.toString();
+         return value == null || value.isEmpty() ? null : value;
+      } catch (JsException e) {
+         return null;
+      }
+   }
+
+   @Override
+   public String toString(){
+      return template;
+   }
+}
@@ -75,7 +75,6 @@ public class PatternValuesMap implements Map<Object, Object>  , ProxyObject {
          rtrn = true;
       } else if (key.toString().startsWith(QDUP_GLOBAL+".")){
          String subKey = key.toString().substring(QDUP_GLOBAL.length() + 1);//+1 for the .
-         Object found = Json.find(populateQdupGlobal(),key.toString().replace(QDUP_GLOBAL,"$"),null);
          boolean isGlobalSubkey = QDUP_GLOBAL_KEYS.stream().anyMatch(global->subKey.startsWith(global));
          rtrn = isGlobalSubkey;
       }
@@ -127,6 +126,117 @@ public class PatternValuesMap implements Map<Object, Object>  , ProxyObject {
       return rtrn;
    }
 
+   /**
+    * Finds the path in the qdup global without building all of it.
+    * Only the root of the path (state, signals, counters or timestamps) is used and a path of plain .names is read
+    * directly from the State instead of from a copy of the State.
+    * @param path the path after ENV.
+    * @return the same value as Json.find(populateQdupGlobal(),path)
+    */
+   Object findQdupGlobal(String path){
+      int rootEnd = 0;
+      while(rootEnd < path.length() && path.charAt(rootEnd) != '.' && path.charAt(rootEnd) != '['){
+         rootEnd++;
+      }
+      String root = path.substring(0,rootEnd);
+      String remaining = path.substring(rootEnd);
+      if(!QDUP_GLOBAL_KEYS.contains(root)){
+         //a json path like $..name or *.name needs every root
+         return isName(root) ? null : Json.find(populateQdupGlobal(),path);
+      }
+      List<String> names = remaining.isEmpty() ? Collections.emptyList() : names(remaining.substring(1));
+      if(names == null || !remaining.isEmpty() && remaining.charAt(0) != '.'){
+         return findInRoot(root,path);
+      }
+      Object target = null;
+      int index = 0;
+      if(QDUP_GLOBAL_STATE.equals(root)){
+         //children are set after the keys in State.toJson so they take precedence
+         State current = state;
+         while(current != null && index < names.size() && current.hasChild(names.get(index))){
+            current = current.getChild(names.get(index));
+            index++;
+         }
+         if(index == names.size()){
+            return current.toJson();
+         }
+         target = current.getOwn(names.get(index));
+         index++;
+      }else{
+         target = qdupGlobalRoot(root);
+      }
+      for(; index < names.size() && target != null; index++){
+         if(!(target instanceof Json)){
+            return null;
+         }
+         Json json = (Json)target;
+         if(json.isArray()){
+            return findInRoot(root,path);
+         }
+         target = json.get(names.get(index));
+      }
+      return target;
+   }
+   private Object findInRoot(String root,String path){
+      Object value = QDUP_GLOBAL_STATE.equals(root) ? state.toJson() : qdupGlobalRoot(root);
+      if(value == null){
+         return null;
+      }
+      Json rtrn = new Json(false);
+      rtrn.set(root,value);
+      return Json.find(rtrn,path);
+   }
+   private Object qdupGlobalRoot(String root){
+      switch (root){
+         case QDUP_GLOBAL_SIGNALS:
+            if(coordinator == null){
+               return null;
+            }
+            Json latches = new Json(false);
+            coordinator.getLatches().forEach((k,v)->latches.set(k,v));
+            return latches;
+         case QDUP_GLOBAL_COUNTERS:
+            if(coordinator == null){
+               return null;
+            }
+            Json counter = new Json(false);
+            coordinator.getCounters().forEach((k, v) -> counter.set(k, v));
+            return counter;
+         case QDUP_GLOBAL_TIMESTAMPS:
+            return timestamps;
+         default:
+            return null;
+      }
+   }
+   //the . separated names or null if the path uses other json path syntax
+   private static List<String> names(String path){
+      List<String> rtrn = new ArrayList<>();
+      int start = 0;
+      for(int i=0; i<=path.length(); i++){
+         if(i == path.length() || path.charAt(i) == '.'){
+            String name = path.substring(start,i);
+            if(!isName(name)){
+               return null;
+            }
+            rtrn.add(name);
+            start = i + 1;
+         }
+      }
+      return rtrn;
+   }
+   private static boolean isName(String name){
+      if(name.isEmpty()){
+         return false;
+      }
+      for(int i=0; i<name.length(); i++){
+         char c = name.charAt(i);
+         if(!Character.isLetterOrDigit(c) && c != '_' && c != '-'){
+            return false;
+         }
+      }
+      return true;
+   }
+
    @Override
    public Object get(Object key) {
       Object rtrn = null;
@@ -138,7 +248,7 @@ public class PatternValuesMap implements Map<Object, Object>  , ProxyObject {
             return populateQdupGlobal();
          }else if (remainingKey.startsWith(".")){
             remainingKey = remainingKey.substring(1);
-            Object found = Json.find(populateQdupGlobal(),remainingKey);
+            Object found = findQdupGlobal(remainingKey);
             if(found!=null){
                rtrn = found;
             }
@@ -68,9 +68,35 @@ public class ScriptContext implements Context, Runnable{
         }
     }
 
+    //inline commands run on the current thread up to this many nested commands before going back through the dispatcher
+    private static final int MAX_INLINE_DEPTH = 16;
+    //number of ScriptContext.run calls on the current thread, 0 if the thread is not running a command for a context
+    private static final ThreadLocal<int[]> RUN_DEPTH = ThreadLocal.withInitial(()->new int[1]);
+
     private static final AtomicReferenceFieldUpdater<ScriptContext,Cmd> currentCmdUpdater =
             AtomicReferenceFieldUpdater.newUpdater(ScriptContext.class,Cmd.class,"currentCmd");
-    private static final String CLOSE_QUEUE = "CLOSE_LINE_QUEUE_"+System.currentTimeMillis();
+
+    /**
+     * marks the end of the watched output in the line queue, then runs after the watchers saw every line
+     */
+    private static class CloseLineQueue {
+        private final Runnable then;
+        CloseLineQueue(Runnable then){
+            this.then = then;
+        }
+    }
+
+    /**
+     * a line of output for the watchers of cmd, dropped if cmd is not the watched command when the line is drained
+     */
+    private static class WatchedLine {
+        private final Cmd cmd;
+        private final String line;
+        WatchedLine(Cmd cmd,String line){
+            this.cmd = cmd;
+            this.line = line;
+        }
+    }
 
     private final SshSession session;
     private final Cmd rootCmd;
@@ -80,12 +106,14 @@ public class ScriptContext implements Context, Runnable{
     private final SystemTimer timer;
     private SystemTimer cmdTimer = null;
     private ContextObserver observer = null;
-    private Semaphore lineQueueSemaphore;
-    private BlockingQueue<String> lineQueue;
+    //lines for the watchers of the current command, drained by whichever thread moves lineQueueWip off 0
+    private final Queue<Object> lineQueue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger lineQueueWip = new AtomicInteger(0);
+    private volatile Cmd watchedCmd;
 
     private AtomicInteger sessionCounter = new AtomicInteger(1);
 
-    private List<ScheduledFuture<?>> timeouts;
+    private List<TimingWheel.Timeout> timeouts;
 
     private volatile Cmd currentCmd;
     private final Map<String,Cmd> signalCmds = new HashMap<>();
@@ -133,19 +161,18 @@ public class ScriptContext implements Context, Runnable{
         this.checkExitCode = checkExitCode;
 
         if(this.session!=null){
-            session.addLineObserver(
+            session.addLineViewObserver(
                 getClass().getSimpleName(),
                 (line)->{
                     this.update(line);
                 }
             );
         }
-        this.lineQueueSemaphore = new Semaphore(1);
-        this.lineQueue = new LinkedBlockingQueue<>();
-        this.timeouts = new LinkedList<>();
+        this.timeouts = new CopyOnWriteArrayList<>();
     }
     private void clearTimers(){
-        timeouts.forEach(timeout->timeout.cancel(true));
+        timeouts.forEach(TimingWheel.Timeout::cancel);
+        timeouts.clear();
     }
 
     public ScriptContext newChildContext(SystemTimer timer,Cmd root){
@@ -226,7 +253,7 @@ public class ScriptContext implements Context, Runnable{
 
     @Override
     public void schedule(Runnable runnable, long delayMs) {
-        run.getDispatcher().getScheduler().schedule(runnable,delayMs,TimeUnit.MILLISECONDS);
+        run.getDispatcher().getTimingWheel().schedule(runnable,delayMs,TimeUnit.MILLISECONDS);
     }
 
     protected ContextObserver getObserver(){return observer;}
@@ -299,9 +326,81 @@ public class ScriptContext implements Context, Runnable{
     }
 
     public void closeLineQueue(){
-        //only close if something is listening
-        //may need to send close before listener has the semaphore (e.g. tests)
-        lineQueue.add(CLOSE_QUEUE);
+        closeLineQueue(null);
+    }
+    private void closeLineQueue(Runnable then){
+        lineQueue.add(new CloseLineQueue(then));
+        drainLineQueue();
+    }
+
+    /**
+     * drain the line queue on the dispatcher unless another thread is already draining it
+     */
+    private void drainLineQueue(){
+        if(lineQueueWip.getAndIncrement() == 0){
+            Run run = getRun();
+            try {
+                if (run != null) {
+                    run.getDispatcher().submit(() -> drainLineQueue(1));
+                    return;
+                }
+            } catch (RejectedExecutionException e) {
+                //the dispatcher is shutting down
+            }
+            drainLineQueue(1);
+        }
+    }
+    private void drainLineQueue(int missed){
+        do {
+            Object entry;
+            while ((entry = lineQueue.poll()) != null) {
+                if (entry instanceof CloseLineQueue) {
+                    watchedCmd = null;
+                    Runnable then = ((CloseLineQueue) entry).then;
+                    if (then != null) {
+                        try {
+                            then.run();
+                        } catch (Exception e) {
+                            logger.error("Exception after watchers of "+getCurrentCmd(), e);
+                        }
+                    }
+                } else {
+                    WatchedLine watched = (WatchedLine) entry;
+                    if (watched.cmd == watchedCmd) {//lines after their command closed or another command is watched are dropped
+                        runWatchers(watched.cmd, watched.line);
+                    }
+                }
+            }
+            missed = lineQueueWip.addAndGet(-missed);
+        } while (missed != 0);
+    }
+    private void runWatchers(Cmd cmd,String line){
+        logger.trace("watch.line: {}",line);
+        WatcherFilter filter = cmd.getWatcherFilter();
+        long scanned = filter == null ? 0 : filter.scan(line);
+        int index = -1;
+        for (Cmd watcher : cmd.getWatchers()) {
+            index++;
+            if (filter != null && !filter.mayMatch(index, scanned)) {
+                //the regex cannot match without one of its literals
+                continue;
+            }
+            SyncContext watcherContext = new SyncContext(
+               this.getSession(),
+               this.getState(),
+               this.getRun(),
+               this.getContextTimer(),
+               cmd,
+               this
+            );
+            try {
+                logger.trace("watcher.run {}",watcher);
+                watcherContext.forceCurrentCmd(watcher);
+                watcher.doRun(line, watcherContext);
+            } catch (Exception e) {
+                logger.warn("Exception from watcher " + watcher + "\n  currentCmd=" + watcherContext.getCurrentCmd(), e);
+            }
+        }
     }
 
     @Override
@@ -317,18 +416,23 @@ public class ScriptContext implements Context, Runnable{
         }
         observerPreNext(cmd,output);
         if(cmd!=null) {
+            Runnable toNext = ()->{
+                cmd.setOutput(output);
+                cmd.postRun(output,this);
+                Cmd toCall = cmd.getNext();
+                boolean changed = setCurrentCmd(cmd,toCall);
+                if(changed) {
+                    startCurrentCmd();
+                }else{
+                    //TODO how to handle failing to change?
+                    System.out.printf("%s%n",AsciiArt.ANSI_BLUE+"failed to change to "+toCall+AsciiArt.ANSI_RESET);
+                }
+            };
             if(cmd.hasWatchers()){
-                closeLineQueue();
-            }
-            cmd.setOutput(output);
-            cmd.postRun(output,this);
-            Cmd toCall = cmd.getNext();
-            boolean changed = setCurrentCmd(cmd,toCall);
-            if(changed) {
-                startCurrentCmd();
+                //move on once the watchers have seen all the output
+                closeLineQueue(toNext);
             }else{
-                //TODO how to handle failing to change?
-                System.out.printf("%s%n",AsciiArt.ANSI_BLUE+"failed to change to "+toCall+AsciiArt.ANSI_RESET);
+                toNext.run();
             }
         }
     }
@@ -347,17 +451,21 @@ public class ScriptContext implements Context, Runnable{
         }
         observerPreSkip(cmd,output);
         if(cmd!=null) {
-            if(cmd.hasWatchers()){
-                closeLineQueue();
-            }
-            cmd.setOutput(output);
-            cmd.postRun(output,this);
-            boolean changed = setCurrentCmd(cmd,cmd.getSkip());
+            Runnable toSkip = ()->{
+                cmd.setOutput(output);
+                cmd.postRun(output,this);
+                boolean changed = setCurrentCmd(cmd,cmd.getSkip());
 
-            if(changed) {
-                startCurrentCmd();
-            }else{
+                if(changed) {
+                    startCurrentCmd();
+                }else{
 
+                }
+            };
+            if(cmd.hasWatchers()){
+                closeLineQueue(toSkip);
+            }else{
+                toSkip.run();
             }
         }else{
 
@@ -366,6 +474,13 @@ public class ScriptContext implements Context, Runnable{
     protected void startCurrentCmd(){
         Run run = getRun();
         if(run!=null) {
+            Cmd cmd = getCurrentCmd();
+            int depth = RUN_DEPTH.get()[0];
+            //only run inline from a dispatcher thread, next() can also be called from the ssh threads
+            if(cmd!=null && cmd.isInline() && depth > 0 && depth < MAX_INLINE_DEPTH){
+                run();
+                return;
+            }
             getContextTimer().start("waiting in run queue");
             run.getDispatcher().submit(this);
         }
@@ -373,13 +488,30 @@ public class ScriptContext implements Context, Runnable{
 
     @Override
     public void update(String output) {
+        update((CharSequence) output);
+    }
+
+    /**
+     * only creates a String when an observer or a watcher needs the line
+     */
+    private void update(CharSequence output) {
         long timestamp = System.currentTimeMillis();
         setUpdateTime(timestamp);
         //updateTime = timestamp;
         Cmd cmd = getCurrentCmd();
         if(cmd!=null){
-            observerUpdate(cmd,output);
-            lineQueue.add(output);
+            boolean observed = observer!=null && observer.observesUpdates();
+            boolean watched = cmd.hasWatchers();
+            if(observed || watched){
+                String line = output.toString();
+                if(observed){
+                    observerUpdate(cmd,line);
+                }
+                if(watched){
+                    lineQueue.add(new WatchedLine(cmd,line));
+                    drainLineQueue();
+                }
+            }
         }
     }
     public boolean setCurrentCmd(Cmd current,Cmd next){
@@ -404,7 +536,7 @@ public class ScriptContext implements Context, Runnable{
     }
 
     private void addTimer(Cmd toWatch,Cmd toRun,long timeout){
-        ScheduledFuture future = run.getDispatcher().getScheduler().schedule(()->{
+        TimingWheel.Timeout scheduled = run.getDispatcher().getTimingWheel().schedule(()->{
             if(toWatch.equals(getCurrentCmd())){
                 toRun.doRun(""+timeout,new SyncContext(
                     this.getSession(),
@@ -416,7 +548,7 @@ public class ScriptContext implements Context, Runnable{
                 ));
             }
         },timeout,TimeUnit.MILLISECONDS);
-        timeouts.add(future);
+        timeouts.add(scheduled);
     }
 
     @Override
@@ -424,7 +556,13 @@ public class ScriptContext implements Context, Runnable{
         Cmd cmd = getCurrentCmd();
         Cmd previous = cmd !=null ? cmd.getPrevious() : null;
         String input = previous != null ? previous.getOutput() : "";
-        run(cmd,input);
+        int[] depth = RUN_DEPTH.get();
+        depth[0]++;
+        try {
+            run(cmd, input);
+        } finally {
+            depth[0]--;
+        }
     }
     public void run(Cmd cmd,String input){
         if (cmd == null) {
@@ -432,20 +570,6 @@ public class ScriptContext implements Context, Runnable{
         } else {
             observerPreStart(cmd);
             cmdTimer = getContextTimer().start(Cmd.populateStateVariables(cmd.toString(),cmd,this));
-            if (!lineQueue.isEmpty()) {//clear any unhandled output lines
-                //TODO log that we are clearing orphaned lines
-                //need to make sure we don't clear if another thread needs to pickup up the CLOSE_QUEUE
-                try{
-                    lineQueueSemaphore.acquire();
-                    lineQueue.clear();
-                } catch (InterruptedException e) {
-                    System.out.printf("Interrupted cmd=%s%n",cmd.toString());
-                    e.printStackTrace();
-                } finally {
-                    lineQueueSemaphore.release();
-                }
-
-            }
             long timestamp = System.currentTimeMillis();
             setStartTime(timestamp);
             setUpdateTime(timestamp);
@@ -481,41 +605,16 @@ public class ScriptContext implements Context, Runnable{
                 }
             }
             if (cmd.hasWatchers()) {
-                String line = "";
+                getContextTimer().start("watch.start:"+cmd.toString());
+                watchedCmd = cmd;
+                //hold the line queue so lines from doRun are drained here after doRun instead of on another thread
+                boolean draining = lineQueueWip.getAndIncrement() == 0;
                 try {
-                    getContextTimer().start("watch.acquire:"+cmd.toString());
-                    lineQueueSemaphore.acquire();
-                    getContextTimer().start("watch.start:"+cmd.toString());
-                    assert lineQueueSemaphore.availablePermits() == 0;
-
                     cmd.doRun(input, this);
-                    while (!CLOSE_QUEUE.equals(line = lineQueue.take())) {
-                        logger.trace("watch.line: {}",line);
-                        for (Cmd watcher : cmd.getWatchers()) {
-                            SyncContext watcherContext = new SyncContext(
-                               this.getSession(),
-                               this.getState(),
-                               this.getRun(),
-                               this.getContextTimer(),
-                               cmd,
-                               this
-                            );
-                            try {
-
-                                logger.trace("watcher.run {}",watcher);
-                                watcherContext.forceCurrentCmd(watcher);
-                                watcher.doRun(line, watcherContext);
-                            } catch (Exception e) {
-                                logger.warn("Exception from watcher " + watcher + "\n  currentCmd=" + watcherContext.getCurrentCmd(), e);
-                            }
-                        }
-                    }
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
                 } finally {
-                    getContextTimer().start("watch.release:"+cmd.toString());
-                    lineQueueSemaphore.release();
-                    assert lineQueueSemaphore.availablePermits() == 1;
+                    if (draining) {
+                        drainLineQueue(1);
+                    }//otherwise the thread that is draining counts this as a missed drain
                 }
             } else {
                 cmd.doRun(input, this);
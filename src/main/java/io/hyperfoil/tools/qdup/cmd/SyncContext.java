@@ -259,7 +259,7 @@ public class SyncContext implements Context, Runnable{
 
     @Override
     public void schedule(Runnable runnable, long delayMs) {
-        run.getDispatcher().getScheduler().schedule(runnable,delayMs,TimeUnit.MILLISECONDS);
+        run.getDispatcher().getTimingWheel().schedule(runnable,delayMs,TimeUnit.MILLISECONDS);
     }
 
     @Override
@@ -0,0 +1,232 @@
+package io.hyperfoil.tools.qdup.cmd;
+
+import org.slf4j.ext.XLogger;
+import org.slf4j.ext.XLoggerFactory;
+
+import java.lang.invoke.MethodHandles;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * A hashed timing wheel for command timers and idle checks.
+ * schedule and cancel only add to a queue, the wheel is updated by a single tick task on the scheduler.
+ * Expired tasks run on the executor so a slow task does not delay the tick.
+ * Timeouts fire up to one tick late.
+ */
+public class TimingWheel {
+    final static XLogger logger = XLoggerFactory.getXLogger(MethodHandles.lookup().lookupClass());
+
+    public static final long DEFAULT_TICK_MS = 10;
+    public static final int DEFAULT_WHEEL_SIZE = 512;
+
+    public interface Timeout {
+        /**
+         * @return false if the task already expired or was already cancelled
+         */
+        boolean cancel();
+        boolean isCancelled();
+        boolean isExpired();
+    }
+
+    private static final int PENDING = 0;
+    private static final int CANCELLED = 1;
+    private static final int EXPIRED = 2;
+    private static final AtomicIntegerFieldUpdater<Entry> stateUpdater = AtomicIntegerFieldUpdater.newUpdater(Entry.class,"state");
+
+    private final class Entry implements Timeout {
+        private final Runnable task;
+        private final long deadline;//in ticks since start
+        private long rounds;
+        private Entry previous;
+        private Entry next;
+        private Bucket bucket;
+        volatile int state = PENDING;
+
+        Entry(Runnable task,long deadline){
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public boolean cancel() {
+            if(stateUpdater.compareAndSet(this,PENDING,CANCELLED)){
+                cancelled.add(this);
+                return true;
+            }
+            return false;
+        }
+        @Override
+        public boolean isCancelled(){return state == CANCELLED;}
+        @Override
+        public boolean isExpired(){return state == EXPIRED;}
+    }
+
+    private static final class Bucket {
+        private Entry head;
+        private Entry tail;
+
+        void add(Entry entry){
+            entry.bucket = this;
+            if(head == null){
+                head = tail = entry;
+            }else{
+                tail.next = entry;
+                entry.previous = tail;
+                tail = entry;
+            }
+        }
+        Entry remove(Entry entry){
+            Entry next = entry.next;
+            if(entry.previous != null){
+                entry.previous.next = next;
+            }
+            if(next != null){
+                next.previous = entry.previous;
+            }
+            if(entry == head){
+                head = next;
+            }
+            if(entry == tail){
+                tail = entry.previous;
+            }
+            entry.previous = null;
+            entry.next = null;
+            entry.bucket = null;
+            return next;
+        }
+    }
+
+    private final ScheduledExecutorService scheduler;
+    private final Executor executor;
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final Queue<Entry> pending = new ConcurrentLinkedQueue<>();
+    private final Queue<Entry> cancelled = new ConcurrentLinkedQueue<>();
+
+    private final long startTime = System.nanoTime();
+    private long tick = 0;//only used by the tick task
+    private volatile ScheduledFuture<?> tickFuture;
+
+    public TimingWheel(ScheduledExecutorService scheduler){
+        this(scheduler,scheduler,DEFAULT_TICK_MS,TimeUnit.MILLISECONDS,DEFAULT_WHEEL_SIZE);
+    }
+    public TimingWheel(ScheduledExecutorService scheduler,Executor executor,long tickDuration,TimeUnit unit,int wheelSize){
+        this.scheduler = scheduler;
+        this.executor = executor;
+        this.tickNanos = Math.max(1,unit.toNanos(tickDuration));
+        int size = Integer.highestOneBit(Math.max(1,wheelSize - 1)) << 1;
+        this.wheel = new Bucket[size];
+        for(int i=0; i<size; i++){
+            wheel[i] = new Bucket();
+        }
+        this.mask = size - 1;
+    }
+
+    public Timeout schedule(Runnable task,long delay,TimeUnit unit){
+        long elapsed = System.nanoTime() - startTime + Math.max(0,unit.toNanos(delay));
+        //round up so the task never runs early
+        Entry entry = new Entry(task,(elapsed + tickNanos - 1) / tickNanos);
+        pending.add(entry);
+        if(tickFuture == null){
+            start();
+        }
+        return entry;
+    }
+
+    private synchronized void start(){
+        if(tickFuture == null){
+            tickFuture = scheduler.scheduleAtFixedRate(this::tick,tickNanos,tickNanos,TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * stops the tick task, scheduled tasks will not run until the next call to schedule
+     */
+    public synchronized void stop(){
+        if(tickFuture != null){
+            tickFuture.cancel(false);
+            tickFuture = null;
+        }
+    }
+
+    /**
+     * @return the number of scheduled tasks, walks the whole wheel so it is only meant for tests and debugging
+     */
+    public synchronized int size(){
+        int rtrn = 0;
+        for(Entry entry : pending){
+            if(entry.state == PENDING){
+                rtrn++;
+            }
+        }
+        for(Bucket bucket : wheel){
+            for(Entry entry = bucket.head; entry != null; entry = entry.next){
+                if(entry.state == PENDING){
+                    rtrn++;
+                }
+            }
+        }
+        return rtrn;
+    }
+
+    private synchronized void tick(){
+        try {
+            //catch up on ticks the scheduler missed
+            long now = (System.nanoTime() - startTime) / tickNanos;
+            while (tick <= now) {
+                removeCancelled();
+                addPending();
+                expire(wheel[(int) (tick & mask)]);
+                tick++;
+            }
+        } catch (Throwable e) {
+            //an exception would stop the fixed rate task
+            logger.error("timing wheel tick failed", e);
+        }
+    }
+    private void removeCancelled(){
+        Entry entry;
+        while((entry = cancelled.poll()) != null){
+            if(entry.bucket != null){
+                entry.bucket.remove(entry);
+            }
+        }
+    }
+    private void addPending(){
+        Entry entry;
+        while((entry = pending.poll()) != null){
+            if(entry.state == CANCELLED){
+                continue;
+            }
+            long target = Math.max(entry.deadline,tick);
+            entry.rounds = (target - tick) / wheel.length;
+            wheel[(int) (target & mask)].add(entry);
+        }
+    }
+    private void expire(Bucket bucket){
+        Entry entry = bucket.head;
+        while(entry != null){
+            if(entry.rounds <= 0){
+                Entry next = bucket.remove(entry);
+                if(stateUpdater.compareAndSet(entry,PENDING,EXPIRED)){
+                    try {
+                        executor.execute(entry.task);
+                    } catch (RejectedExecutionException e) {
+                        logger.debug("timing wheel executor rejected a task: {}", e.getMessage());
+                    }
+                }
+                entry = next;
+            }else{
+                entry.rounds--;
+                entry = entry.next;
+            }
+        }
+    }
+}
@@ -0,0 +1,326 @@
+package io.hyperfoil.tools.qdup.cmd;
+
+import io.hyperfoil.tools.qdup.cmd.impl.Regex;
+import io.hyperfoil.tools.yaup.StringUtil;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+/**
+ * Rejects lines that cannot match a command's regex watchers before any watcher runs.
+ * Each regex watcher without an else, a miss or state references contributes the literal text it needs in every match
+ * (one literal for each top level alternative). All the literals go into one Aho-Corasick automaton so a line is scanned
+ * once for every watcher. A watcher only runs when one of its literals is in the line, other watchers always run.
+ */
+public class WatcherFilter {
+
+    //at most 64 watchers are filtered so the matches for a line fit in a long
+    private static final int MAX_FILTERED = Long.SIZE;
+    private static final String FLAGS_WITHOUT_LITERAL_EFFECT = "smd-";
+    private static final String SINGLE_TOKEN_ESCAPES = "dDsSwWbBntrfaeAzZGhHvV123456789";
+
+    /**
+     * @return the filter for the watchers or null if none of them can be filtered
+     */
+    public static WatcherFilter of(List<Cmd> watchers){
+        int[] slots = new int[watchers.size()];
+        Arrays.fill(slots,-1);
+        List<String> literals = new ArrayList<>();
+        List<Integer> literalSlots = new ArrayList<>();
+        int filtered = 0;
+        for(int i=0; i<watchers.size() && filtered < MAX_FILTERED; i++){
+            Cmd watcher = watchers.get(i);
+            if(watcher instanceof Regex){
+                Regex regex = (Regex)watcher;
+                List<String> required = regex.isMiss() || regex.hasElse() || regex.getPattern().contains(StringUtil.PATTERN_PREFIX) ?
+                   null : requiredLiterals(regex.getPattern());
+                if(required != null){
+                    slots[i] = filtered;
+                    for(String literal : required){
+                        literals.add(literal);
+                        literalSlots.add(filtered);
+                    }
+                    filtered++;
+                }
+            }
+        }
+        return filtered == 0 ? null : new WatcherFilter(slots,literals,literalSlots);
+    }
+
+    /**
+     * Finds text that is in every match of the pattern. Only looks outside of groups, classes and quantified atoms.
+     * @return the longest literal from each top level alternative, null if an alternative does not have one or the pattern uses flags that change how literals match
+     */
+    static List<String> requiredLiterals(String pattern){
+        List<String> rtrn = new ArrayList<>();
+        StringBuilder run = new StringBuilder();
+        String longest = "";
+        int i = 0;
+        while(i <= pattern.length()){
+            char c = i < pattern.length() ? pattern.charAt(i) : '|';
+            switch (c){
+                case '|':
+                    longest = longer(longest,run);
+                    if(longest.isEmpty()){
+                        return null;
+                    }
+                    rtrn.add(longest);
+                    longest = "";
+                    run.setLength(0);
+                    i++;
+                    break;
+                case '\\':
+                    if(i + 1 >= pattern.length()){
+                        return null;
+                    }
+                    char escaped = pattern.charAt(i + 1);
+                    if(!Character.isLetterOrDigit(escaped)){
+                        run.append(escaped);
+                    }else if(SINGLE_TOKEN_ESCAPES.indexOf(escaped) >= 0){
+                        longest = longer(longest,run);
+                        run.setLength(0);
+                    }else{
+                        //\Q, \p{..}, \x.. and others have a variable length
+                        return null;
+                    }
+                    i += 2;
+                    break;
+                case '(':
+                    if(pattern.startsWith("(?",i) && i + 2 < pattern.length() && Character.isLetter(pattern.charAt(i + 2)) || pattern.startsWith("(?-",i)){
+                        int end = i + 2;
+                        while(end < pattern.length() && (Character.isLetter(pattern.charAt(end)) || pattern.charAt(end) == '-')){
+                            if(FLAGS_WITHOUT_LITERAL_EFFECT.indexOf(pattern.charAt(end)) < 0){
+                                return null;
+                            }
+                            end++;
+                        }
+                    }
+                    longest = longer(longest,run);
+                    run.setLength(0);
+                    i = skipGroup(pattern,i);
+                    if(i < 0){
+                        return null;
+                    }
+                    break;
+                case '[':
+                    longest = longer(longest,run);
+                    run.setLength(0);
+                    i = skipClass(pattern,i);
+                    if(i < 0){
+                        return null;
+                    }
+                    break;
+                case '*':
+                case '?':
+                case '+':
+                case '{':
+                    //the quantifier applies to the last literal character
+                    if(run.length() > 0){
+                        run.setLength(run.length() - 1);
+                    }
+                    longest = longer(longest,run);
+                    run.setLength(0);
+                    if(c == '{'){
+                        int end = pattern.indexOf('}',i);
+                        if(end < 0){
+                            return null;
+                        }
+                        i = end;
+                    }
+                    i++;
+                    //lazy or possessive quantifiers
+                    if(i < pattern.length() && (pattern.charAt(i) == '?' || pattern.charAt(i) == '+')){
+                        i++;
+                    }
+                    break;
+                case '.':
+                case '^':
+                case '$':
+                    longest = longer(longest,run);
+                    run.setLength(0);
+                    i++;
+                    break;
+                case ')':
+                    return null;
+                default:
+                    run.append(c);
+                    i++;
+            }
+        }
+        return rtrn;
+    }
+    private static String longer(String longest,StringBuilder run){
+        return run.length() > longest.length() ? run.toString() : longest;
+    }
+    //returns the index after the group that starts at start or -1 if it does not close
+    private static int skipGroup(String pattern,int start){
+        int depth = 0;
+        int i = start;
+        while(i < pattern.length()){
+            char c = pattern.charAt(i);
+            if(c == '\\'){
+                i += 2;
+            }else if(c == '['){
+                i = skipClass(pattern,i);
+                if(i < 0){
+                    return -1;
+                }
+            }else{
+                if(c == '('){
+                    depth++;
+                }else if(c == ')'){
+                    depth--;
+                    if(depth == 0){
+                        return i + 1;
+                    }
+                }
+                i++;
+            }
+        }
+        return -1;
+    }
+    //returns the index after the character class that starts at start or -1 if it does not close
+    private static int skipClass(String pattern,int start){
+        int depth = 0;
+        int i = start;
+        while(i < pattern.length()){
+            char c = pattern.charAt(i);
+            if(c == '\\'){
+                i += 2;
+                continue;
+            }
+            if(c == '['){
+                depth++;
+                i++;
+                //a ] right after [ or [^ is a literal
+                if(i < pattern.length() && pattern.charAt(i) == '^'){
+                    i++;
+                }
+                if(i < pattern.length() && pattern.charAt(i) == ']'){
+                    i++;
+                }
+                continue;
+            }
+            if(c == ']'){
+                depth--;
+                if(depth == 0){
+                    return i + 1;
+                }
+            }
+            i++;
+        }
+        return -1;
+    }
+
+    private final int[] slots;//filter slot for each watcher, -1 if the watcher always runs
+    private final Map<Character,Integer> charClasses = new HashMap<>();
+    private final int[] asciiClasses = new int[128];
+    private final int width;
+    private final int[] transitions;
+    private final long[] found;//slots with a literal that ends in the state
+
+    private WatcherFilter(int[] slots,List<String> literals,List<Integer> literalSlots){
+        this.slots = slots;
+        //class 0 is every character that is not in a literal
+        int classes = 1;
+        int maxStates = 1;
+        for(String literal : literals){
+            maxStates += literal.length();
+            for(int i=0; i<literal.length(); i++){
+                char c = literal.charAt(i);
+                if(classOf(c) == 0){
+                    if(c < asciiClasses.length){
+                        asciiClasses[c] = classes;
+                    }else{
+                        charClasses.put(c,classes);
+                    }
+                    classes++;
+                }
+            }
+        }
+        this.width = classes;
+        int[] trie = new int[maxStates * width];
+        Arrays.fill(trie,-1);
+        long[] found = new long[maxStates];
+        int states = 1;
+        for(int l=0; l<literals.size(); l++){
+            String literal = literals.get(l);
+            int current = 0;
+            for(int i=0; i<literal.length(); i++){
+                int index = current * width + classOf(literal.charAt(i));
+                if(trie[index] < 0){
+                    trie[index] = states++;
+                }
+                current = trie[index];
+            }
+            found[current] |= 1L << literalSlots.get(l);
+        }
+        //breadth first to build the failure links into a complete transition table
+        int[] fail = new int[states];
+        Queue<Integer> queue = new ArrayDeque<>();
+        for(int c=0; c<width; c++){
+            int next = trie[c];
+            if(next < 0){
+                trie[c] = 0;
+            }else{
+                queue.add(next);
+            }
+        }
+        while(!queue.isEmpty()){
+            int current = queue.poll();
+            found[current] |= found[fail[current]];
+            for(int c=0; c<width; c++){
+                int index = current * width + c;
+                int next = trie[index];
+                if(next < 0){
+                    trie[index] = trie[fail[current] * width + c];
+                }else{
+                    fail[next] = trie[fail[current] * width + c];
+                    queue.add(next);
+                }
+            }
+        }
+        this.transitions = Arrays.copyOf(trie,states * width);
+        this.found = Arrays.copyOf(found,states);
+    }
+
+    private int classOf(char c){
+        if(c < asciiClasses.length){
+            return asciiClasses[c];
+        }
+        Integer rtrn = charClasses.get(c);
+        return rtrn == null ? 0 : rtrn;
+    }
+
+    /**
+     * @return the filter slots with a literal in the line, pass to mayMatch
+     */
+    public long scan(CharSequence line){
+        long rtrn = 0;
+        int state = 0;
+        for(int i=0; i<line.length(); i++){
+            state = transitions[state * width + classOf(line.charAt(i))];
+            rtrn |= found[state];
+        }
+        return rtrn;
+    }
+
+    /**
+     * @param index the index of the watcher in the command's watchers
+     * @param scanned the result of scan for the line
+     * @return false if the watcher cannot match the line
+     */
+    public boolean mayMatch(int index,long scanned){
+        int slot = slots[index];
+        return slot < 0 || (scanned & (1L << slot)) != 0;
+    }
+
+    public boolean isFiltered(int index){
+        return slots[index] >= 0;
+    }
+}
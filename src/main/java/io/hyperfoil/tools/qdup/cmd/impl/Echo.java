@@ -14,6 +14,9 @@ public class Echo extends Cmd {
 
     public Echo(){}
 
+    @Override
+    public boolean isInline(){return true;}
+
     @Override
     public void run(String input, Context context) {
         //logger.info(input);
@@ -1,6 +1,11 @@
 package io.hyperfoil.tools.qdup.cmd.impl;
 
+import io.hyperfoil.tools.qdup.Run;
+import io.hyperfoil.tools.qdup.SshSession;
 import io.hyperfoil.tools.qdup.cmd.LoopCmd;
+import io.hyperfoil.tools.qdup.cmd.Script;
+import io.hyperfoil.tools.qdup.cmd.ScriptContext;
+import io.hyperfoil.tools.qdup.cmd.ScriptObserver;
 import io.hyperfoil.tools.qdup.stream.MultiStream;
 import io.hyperfoil.tools.yaup.AsciiArt;
 import org.slf4j.ext.XLogger;
@@ -14,6 +19,9 @@ import java.lang.invoke.MethodHandles;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BiFunction;
 
 public class ForEach extends LoopCmd {
@@ -28,25 +36,40 @@ public class ForEach extends LoopCmd {
    private String lastInput;
    private final List<Object> split = new ArrayList<>();
    private int index = -1;
+   private final int parallel;
 
    public ForEach(String name) {
       this(name, "");
    }
 
    public ForEach(String name, String input) {
+      this(name, input, 0);
+   }
+
+   /**
+    * @param parallel run up to parallel iterations at the same time in their own session, 0 runs the iterations in order
+    */
+   public ForEach(String name, String input, int parallel) {
       super(false);
       this.name = name;
       this.populatedName = name;
       this.declaredInput = input == null ? "" : input;
       this.loadedInput = declaredInput;
       this.lastInput = null;
-
+      this.parallel = Math.max(0, parallel);
    }
 
    public String getName() {
       return name;
    }
 
+   public int getParallel() {
+      return parallel;
+   }
+   public boolean isParallel() {
+      return parallel > 0;
+   }
+
    public boolean hasDeclaredInput(){
       return declaredInput!=null && !declaredInput.isBlank();
    }
@@ -91,6 +114,92 @@ public class ForEach extends LoopCmd {
       return split;
    }
 
+   /**
+    * Runs each iteration of the loop in a child ScriptContext with a copy of the session.
+    * Starts up to parallel iterations and the next iteration when one finishes,
+    * then skips the loop body in the parent context once every iteration has finished.
+    */
+   private class ParallelLoop implements ScriptObserver {
+      private final List<Object> values;
+      private final String input;
+      private final Context context;
+      private final Run run;
+      private final String loopName;
+      private final AtomicInteger nextIndex = new AtomicInteger(0);
+      private final AtomicInteger remaining;
+      private final Set<ScriptContext> children = ConcurrentHashMap.newKeySet();
+
+      ParallelLoop(List<Object> values, String input, Context context, Run run) {
+         this.values = values;
+         this.input = input;
+         this.context = context;
+         this.run = run;
+         this.loopName = populatedName;
+         this.remaining = new AtomicInteger(values.size());
+      }
+
+      void start() {
+         run.getDispatcher().addScriptObserver(this);
+         for (int i = 0; i < parallel && i < values.size(); i++) {
+            startNext();
+         }
+      }
+
+      private void startNext() {
+         int i = nextIndex.getAndIncrement();
+         if (i >= values.size()) {
+            return;
+         }
+         Object value = values.get(i);
+         Script body = new Script(loopName + "[" + i + "]");
+         for (Cmd then : getThens()) {
+            if (then != getCallback()) {
+               body.then(then.deepCopy());
+            }
+         }
+         //copy withs because they will not be inherited
+         body.loadWith(ForEach.this);
+         body.with(loopName, value);
+
+         SshSession session = context.getSession() != null ? context.getSession().openCopy() : null;
+         if (session != null && !session.isReady()) {
+            logger.error("for-each: {} failed to open a session for {}", loopName, value);
+            session.close();
+            finished();
+            return;
+         }
+         ScriptContext child = new ScriptContext(
+            session,
+            context.getState(),
+            run,
+            context.getContextTimer().start(body.getName(), true),
+            body,
+            context.checkExitCode()
+         );
+         children.add(child);
+         run.getDispatcher().addScriptContext(child);
+      }
+
+      private void finished() {
+         if (remaining.decrementAndGet() == 0) {
+            run.getDispatcher().removeScriptObserver(this);
+            context.skip(input);
+         } else {
+            startNext();
+         }
+      }
+
+      @Override
+      public void onStop(ScriptContext stopped) {
+         if (children.remove(stopped)) {
+            finished();
+         }
+      }
+   }
+
+   @Override
+   public boolean isInline(){return !isParallel();}
+
    @Override
    public void run(String input, Context context) {
       try {
@@ -111,7 +220,16 @@ public class ForEach extends LoopCmd {
             split.addAll(split(input));
             this.loadedInput = input;
          }
-         if (!split.isEmpty()) {
+         if (!split.isEmpty() && isParallel() && index == -1 && context instanceof ScriptContext && ((ScriptContext) context).getRun() != null) {
+            populatedName = Cmd.populateStateVariables(this.name, this, context);
+            List<Object> values = new ArrayList<>();
+            for (Object value : split) {
+               values.add(value == null ? "" : value instanceof String ? ((String) value).replaceAll("\r|\n", "") : value);
+            }
+            clearLoopState();//the next run() should start a new loop
+            logger.debug("for-each:{} parallel={} values={}", name, parallel, values);
+            new ParallelLoop(values, input, context, ((ScriptContext) context).getRun()).start();
+         } else if (!split.isEmpty()) {
             populatedName = Cmd.populateStateVariables(this.name, this, context);
             index++;
             if (index < split.size()) {
@@ -162,13 +280,13 @@ public class ForEach extends LoopCmd {
 
    @Override
    public Cmd copy() {
-      return new ForEach(this.name, this.declaredInput);
+      return new ForEach(this.name, this.declaredInput, this.parallel);
    }
 
 
    @Override
    public String toString() {
-      return "for-each: " + name + " " + (this.declaredInput != null ? this.declaredInput : "");
+      return "for-each: " + name + " " + (this.declaredInput != null ? this.declaredInput : "") + (isParallel() ? " parallel=" + parallel : "");
    }
 
    @Override
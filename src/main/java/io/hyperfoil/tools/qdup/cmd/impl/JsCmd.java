@@ -2,10 +2,10 @@ package io.hyperfoil.tools.qdup.cmd.impl;
 
 import io.hyperfoil.tools.qdup.cmd.Cmd;
 import io.hyperfoil.tools.qdup.cmd.CmdWithElse;
+import io.hyperfoil.tools.qdup.cmd.JsEvaluator;
 import io.hyperfoil.tools.qdup.cmd.PatternValuesMap;
 import io.hyperfoil.tools.qdup.cmd.Context;
 import io.hyperfoil.tools.yaup.AsciiArt;
-import io.hyperfoil.tools.yaup.StringUtil;
 import io.hyperfoil.tools.yaup.json.Json;
 import io.hyperfoil.tools.yaup.json.graaljs.JsException;
 import org.slf4j.ext.XLogger;
@@ -44,6 +44,9 @@ public class JsCmd extends CmdWithElse {
             (rtrn instanceof String && ((String)rtrn).isEmpty() && (codeString.contains("return ") || (codeString.contains("=>") && !codeString.contains("=>{"))));
     }
 
+    @Override
+    public boolean isInline(){return true;}
+
     @Override
     public void run(String input, Context context) {
 
@@ -57,7 +60,7 @@ public class JsCmd extends CmdWithElse {
                 }
                 //Object rtrn = null;
                 try{
-                    Object result = StringUtil.jsEval(populatedCodeString,jsInput,map);
+                    Object result = JsEvaluator.eval(populatedCodeString,jsInput,map);
                     rtrn = result;
                 }catch( RuntimeException ise){
                     //todo; raise ISE
@@ -16,6 +16,9 @@ public class JsonCmd extends CmdWithElse {
 
     public String getPath(){return path;}
 
+    @Override
+    public boolean isInline(){return true;}
+
     @Override
     public void run(String input, Context context) {
         if(!Json.isJsonLike(input)){
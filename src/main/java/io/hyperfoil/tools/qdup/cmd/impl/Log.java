@@ -15,6 +15,9 @@ public class Log extends Cmd {
 
     public String getMessage(){return message;}
 
+    @Override
+    public boolean isInline(){return true;}
+
     @Override
     public void run(String input, Context context) {
         context.log(Cmd.populateStateVariables(message,this,context));
@@ -36,6 +36,9 @@ public class ReadSignal extends CmdWithElse {
         return "read-signal: "+ name;
     }
 
+    @Override
+    public boolean isInline(){return true;}
+
     @Override
     public void run(String input, Context context) {
         ran = true;
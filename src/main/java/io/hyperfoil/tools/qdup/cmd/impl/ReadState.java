@@ -29,6 +29,9 @@ public class ReadState extends CmdWithElse {
         return populatedKey == null || populatedKey.isEmpty() || Cmd.hasStateReference(populatedKey,this);
     }
 
+    @Override
+    public boolean isInline(){return true;}
+
     @Override
     public void run(String input, Context context) {
         ran = true;
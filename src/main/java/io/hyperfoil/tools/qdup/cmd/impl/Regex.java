@@ -13,6 +13,56 @@ import java.util.regex.PatternSyntaxException;
 
 public class Regex extends CmdWithElse {
 
+   /**
+    * The compiled form of a populated pattern, capture names that are not valid java group names are renamed for the Pattern.
+    * Instances are immutable so copies of the command share them.
+    */
+   static class CompiledPattern {
+      private final String source;
+      private final Pattern pattern;
+      private final boolean fullLine;
+      //regex friendly capture names and the matching user provided capture names
+      private final String[] groupNames;
+      private final String[] captureNames;
+
+      CompiledPattern(String source) throws PatternSyntaxException {
+         this.source = source;
+         String newPattern = source;
+         //key is a regex friendly capture name and message is the user provided capture name
+         LinkedHashMap<String, String> renames = new LinkedHashMap<>();
+         Matcher fieldMatcher = NAMED_CAPTURE.matcher(source);
+         while (fieldMatcher.find()) {
+            String realName = fieldMatcher.group(1);
+            String compName = realName.replaceAll("[\\*\\.\\\\_\\-]", "x");
+            if (!compName.equals(realName)) {
+               newPattern = newPattern.replace(realName, compName);
+            }
+            renames.put(compName, realName);
+         }
+         this.pattern = Pattern.compile(newPattern);
+         //full line matching only if the pattern specifies start of line
+         this.fullLine = newPattern.startsWith("^");
+         List<String> groups = new ArrayList<>();
+         fieldMatcher = NAMED_CAPTURE.matcher(newPattern);
+         while (fieldMatcher.find()) {
+            groups.add(fieldMatcher.group(1));
+         }
+         this.groupNames = groups.toArray(new String[0]);
+         this.captureNames = new String[groupNames.length];
+         for (int i = 0; i < groupNames.length; i++) {
+            captureNames[i] = renames.get(groupNames[i]);
+         }
+      }
+
+      String getSource(){return source;}
+
+      Pattern getPattern(){return pattern;}
+
+      boolean matches(Matcher matcher){
+         return fullLine ? matcher.matches() : matcher.find();
+      }
+   }
+
    private String pattern;
    private String patternString;
    private boolean matched = false;
@@ -20,6 +70,8 @@ public class Regex extends CmdWithElse {
    private Map<String, String> matches;
    private boolean ran = false;
    private boolean autoConvert = true;
+   //the last compiled pattern, only recompiled when the populated pattern changes
+   private volatile CompiledPattern compiled;
 
    public Regex(String pattern) {
       this(pattern, false);
@@ -29,11 +81,23 @@ public class Regex extends CmdWithElse {
       this(pattern, miss, true);
    }
    public Regex(String pattern, boolean miss, boolean autoConvert) {
+      this(pattern, miss, autoConvert, null);
+   }
+   private Regex(String pattern, boolean miss, boolean autoConvert, CompiledPattern compiled) {
       this.pattern = pattern;
       this.miss = miss;
       this.patternString = StringUtil.removeQuotes(pattern).replaceAll("\\\\\\\\(?=[dDsSwW\\(\\)remo])", "\\\\");
       this.matches = new HashMap<>();
       this.autoConvert = autoConvert;
+      this.compiled = compiled;
+      //patterns without state references only need to compile once
+      if (compiled == null && !patternString.contains(StringUtil.PATTERN_PREFIX)) {
+         try {
+            this.compiled = new CompiledPattern(patternString);
+         } catch (PatternSyntaxException e) {
+            //reported when the command runs
+         }
+      }
    }
 
 
@@ -59,48 +123,36 @@ public class Regex extends CmdWithElse {
       return autoConvert;
    }
 
+   @Override
+   public boolean isInline(){return true;}
+
+   CompiledPattern compile(String populatedPattern) throws PatternSyntaxException {
+      CompiledPattern rtrn = compiled;
+      if (rtrn == null || !rtrn.getSource().equals(populatedPattern)) {
+         rtrn = new CompiledPattern(populatedPattern);
+         compiled = rtrn;
+      }
+      return rtrn;
+   }
+
    @Override
    public void run(String input, Context context) {
       ran = true;
       String populatedPattern = populateStateVariables(patternString, this, context);
-      String newPattern = populatedPattern;
 
       matches.clear();
 
-      //key is a regex friendly capture name and message is the user provided capture name
-      LinkedHashMap<String, String> renames = new LinkedHashMap<>();
-      Matcher fieldMatcher = NAMED_CAPTURE.matcher(populatedPattern);
-
-      while (fieldMatcher.find()) {
-         String realName = fieldMatcher.group(1);
-         String compName = realName.replaceAll("[\\*\\.\\\\_\\-]", "x");
-         if (!compName.equals(realName)) {
-            newPattern = newPattern.replace(realName, compName);
-         }
-         renames.put(compName, realName);
-      }
       try {
-         Pattern pattern = Pattern.compile(newPattern);
+         CompiledPattern compiledPattern = compile(populatedPattern);
 
-         Matcher matcher = pattern.matcher(input);
+         Matcher matcher = compiledPattern.getPattern().matcher(input);
 
-         //full line matching only if the pattern specifies start of line
-         matched = newPattern.startsWith("^") ? matcher.matches() : matcher.find();
+         matched = compiledPattern.matches(matcher);
          if (matched == !miss) {//if matched and !miss or miss and !match
             logger.trace("{} match {} ", this, input);
             if (!miss) { //cannot populate name capture groups for miss becasue it didn't match
-               fieldMatcher = NAMED_CAPTURE.matcher(newPattern);
-               List<String> names = new LinkedList<>();
-               while (fieldMatcher.find()) {
-                  names.add(fieldMatcher.group(1));
-               }
-               if (!names.isEmpty()) {
-                  for (String name : names) {
-                     String capturedValue = matcher.group(name);
-                     String realName = renames.get(name);
-                     matches.put(realName, capturedValue);
-                     //context.getState().set(realName,capturedValue);
-                  }
+               for (int i = 0; i < compiledPattern.groupNames.length; i++) {
+                  matches.put(compiledPattern.captureNames[i], matcher.group(compiledPattern.groupNames[i]));
                }
                if (!matches.isEmpty()) {
                   for (String key : matches.keySet()) {
@@ -124,7 +176,7 @@ public class Regex extends CmdWithElse {
             }
          }
       } catch (PatternSyntaxException e) {
-         context.error("failed to parse regex pattern from " + newPattern + "\n" + e.getMessage());
+         context.error("failed to parse regex pattern from " + populatedPattern + "\n" + e.getMessage());
          context.abort(false);
       }
 
@@ -149,7 +201,7 @@ public class Regex extends CmdWithElse {
 
    @Override
    public Cmd copy() {
-      return new Regex(this.patternString, this.miss, this.autoConvert);
+      return new Regex(this.patternString, this.miss, this.autoConvert, compiled);
    }
 
 
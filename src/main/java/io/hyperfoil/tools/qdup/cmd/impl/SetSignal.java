@@ -25,6 +25,9 @@ public class SetSignal extends Cmd {
    public String getName(){return name;}
    public String getInitial(){return initial;}
 
+   @Override
+   public boolean isInline(){return true;}
+
    @Override
    public void run(String input, Context context) {
       populatedName = Cmd.populateStateVariables(name,this,context);
@@ -8,8 +8,6 @@ import io.hyperfoil.tools.yaup.json.Json;
 
 public class SetState extends Cmd {
 
-    private static final String STATE_LOCK = "STATE_LOCK";
-
     String key;
     String value;
     String populatedKey;
@@ -49,35 +47,44 @@ public class SetState extends Cmd {
         return "set-state: " + this.key + (this.value == null ? "" : " " + this.value);
     }
 
+    @Override
+    public boolean isInline(){return true;}
+
     @Override
     public void run(String input, Context context) {
-        synchronized (STATE_LOCK){
-            try {
-                populatedValue = this.value == null ? input.trim() : Cmd.populateStateVariables(this.value, this, context);
-                if (StringUtil.isQuoted(populatedValue) && (StringUtil.removeQuotes(populatedValue)).trim().isEmpty()) {
-                    populatedValue = "";
-                }
-                populatedKey = Cmd.populateStateVariables(this.key, this, context);
-                if(populatedValue.contains(getPatternPrefix()) || populatedKey.contains(getPatternPrefix())){
-                    //TODO populatedValue should already resolve patterns, any pattern prefix means it failed to resolve?
-                }
-                if (Json.isJsonLike(populatedValue) || (StringUtil.isQuoted(populatedValue) && Json.isJsonLike(StringUtil.removeQuotes(populatedValue)))) {
-                    String target = StringUtil.isQuoted(populatedValue) ? StringUtil.removeQuotes(populatedValue) : populatedValue;
-                    Json fromPopulatedValue = Json.fromString(target);
-                    if (fromPopulatedValue!=null && !fromPopulatedValue.isEmpty()) {
-                        context.getState().set(populatedKey, fromPopulatedValue, autoConvert);
-                    } else {
-                        context.getState().set(populatedKey, populatedValue, autoConvert);
-                    }
-                } else {
-                    context.getState().set(populatedKey, populatedValue, autoConvert);
+        try {
+            populatedKey = Cmd.populateStateVariables(this.key, this, context);
+            if(this.value != null && this.value.contains(getPatternPrefix())){
+                //the value can read the key it replaces (e.g. a counter) so other updates to the same State wait for this one
+                synchronized (context.getState().targetOf(populatedKey)){
+                    setState(input, context);
                 }
-            }catch (Exception e){
-                e.printStackTrace();
+            }else{
+                setState(input, context);
             }
+        }catch (Exception e){
+            e.printStackTrace();
         }
         context.next(populatedValue);
     }
+    //State.set takes the lock of the target State so the json is parsed before any lock
+    private void setState(String input, Context context){
+        populatedValue = this.value == null ? input.trim() : Cmd.populateStateVariables(this.value, this, context);
+        if (StringUtil.isQuoted(populatedValue) && (StringUtil.removeQuotes(populatedValue)).trim().isEmpty()) {
+            populatedValue = "";
+        }
+        if (Json.isJsonLike(populatedValue) || (StringUtil.isQuoted(populatedValue) && Json.isJsonLike(StringUtil.removeQuotes(populatedValue)))) {
+            String target = StringUtil.isQuoted(populatedValue) ? StringUtil.removeQuotes(populatedValue) : populatedValue;
+            Json fromPopulatedValue = Json.fromString(target);
+            if (fromPopulatedValue!=null && !fromPopulatedValue.isEmpty()) {
+                context.getState().set(populatedKey, fromPopulatedValue, autoConvert);
+            } else {
+                context.getState().set(populatedKey, populatedValue, autoConvert);
+            }
+        } else {
+            context.getState().set(populatedKey, populatedValue, autoConvert);
+        }
+    }
 
     @Override
     public Cmd copy() {
@@ -6,6 +6,7 @@ import io.hyperfoil.tools.qdup.cmd.Context;
 import io.hyperfoil.tools.qdup.cmd.Script;
 import io.hyperfoil.tools.qdup.config.RunRule;
 import io.hyperfoil.tools.qdup.config.rule.CmdLocation;
+import io.hyperfoil.tools.qdup.stream.SessionStreams;
 import io.hyperfoil.tools.yaup.time.SystemTimer;
 
 import java.util.*;
@@ -72,10 +73,7 @@ public class Sh extends Cmd {
         context.getCommandTimer().start("invoke");
         //TODO do we need to manually remove the lineObserver?
         if(prompt.isEmpty()) {
-            context.getSession().sh(populatedCommand, (output,promptName)->{
-                setPreviousPrompt(promptName);
-                context.next(output);
-            });
+            context.getSession().sh(populatedCommand, (output,promptName)->onResponse(output,promptName,context));
         }else{
             HashMap<String,String> populated = new HashMap<>();
             prompt.forEach((key,value)->{
@@ -86,16 +84,33 @@ public class Sh extends Cmd {
 
             context.getSession().sh(
                     populatedCommand,
-                    (output,promptName)->{
-                        setPreviousPrompt(promptName);
-                        context.next(output);
-                    },
+                    (output,promptName)->onResponse(output,promptName,context),
                     populated
             );
         }
         context.getCommandTimer().start("await-callback");
     }
 
+    private void onResponse(String output,String promptName,Context context){
+        setPreviousPrompt(promptName);
+        long size = context.getSession() == null ? 0 : context.getSession().getShOutputSize();
+        int limit = SessionStreams.getOutputLimit();
+        if(size > limit){
+            //the output was cut to the limit, do not let the next command use it as if it were the full output
+            context.error(
+               String.format("Abort! output of %s is %d bytes, larger than the -D%s=%d bytes%n  raise the limit or redirect the output to a file",
+                  this,
+                  size,
+                  SessionStreams.OUTPUT_LIMIT_PROPERTY,
+                  limit
+               )
+            );
+            context.abort(false);
+            return;
+        }
+        context.next(output);
+    }
+
     @Override
     public String getLogOutput(String output,Context context){
         String rtrn = populatedCommand;
@@ -110,12 +125,23 @@ public class Sh extends Cmd {
         String toLog = getLogOutput(output,context);
 
         if(context.getSession()!=null && context.getSession().isOpen() && SshSession.PROMPT.equals(getPreviousPrompt()) && context.getSession().getHost().isSh()){
-            String response = context.getSession().shSync("export __qdup_ec=$?; echo $__qdup_ec;");
-            String pwd = context.getSession().shSync("pwd");
+            String response;
+            String pwd;
+            boolean promptStatus = context.getSession().hasPromptStatus();
+            if(promptStatus){
+                //the prompt already carried the exit code and cwd, no need to ask the shell
+                response = context.getSession().getPromptExitCode();
+                pwd = context.getSession().getPromptCwd();
+            }else{
+                response = context.getSession().shSync("export __qdup_ec=$?; echo $__qdup_ec;");
+                pwd = context.getSession().shSync("pwd");
+            }
             context.setCwd(pwd);
             context.getCommandTimer().getJson().set("response",response);
             context.getCommandTimer().getJson().set("cwd",pwd);
-            context.getSession().shSync("(exit $__qdup_ec);");
+            if(!promptStatus) {
+                context.getSession().shSync("(exit $__qdup_ec);");
+            }
             context.getSession().flushAndResetBuffer();
 
             //not working in lab :(
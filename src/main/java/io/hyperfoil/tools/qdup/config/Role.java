@@ -17,6 +17,7 @@ public class Role {
     private List<ScriptCmd> setup;
     private List<ScriptCmd> run;
     private List<ScriptCmd> cleanup;
+    private String maxConcurrentHosts;
 
     public Role(){
         this("");
@@ -95,6 +96,37 @@ public class Role {
     public boolean hasHostRefs(){return !hostRefs.isEmpty();}
     public Set<String> getHostRefs(){return Collections.unmodifiableSet(hostRefs);}
 
+    public static boolean isMaxConcurrentHosts(String value){
+        return value != null && value.trim().matches("[1-9][0-9]*%?");
+    }
+
+    /**
+     * @param maxConcurrentHosts the number of hosts (e.g. 50) or the percent of hosts (e.g. 10%) that run the run-scripts at the same time
+     */
+    public void setMaxConcurrentHosts(String maxConcurrentHosts){
+        if(maxConcurrentHosts != null && !isMaxConcurrentHosts(maxConcurrentHosts)){
+            throw new IllegalArgumentException("max-concurrent-hosts must be a count or a percent but was "+maxConcurrentHosts);
+        }
+        this.maxConcurrentHosts = maxConcurrentHosts == null ? null : maxConcurrentHosts.trim();
+    }
+    public boolean hasMaxConcurrentHosts(){return maxConcurrentHosts != null;}
+    public String getMaxConcurrentHosts(){return maxConcurrentHosts;}
+
+    /**
+     * @param hostCount the number of hosts in the role
+     * @return how many of the hosts can run the run-scripts at the same time
+     */
+    public int getMaxConcurrentHosts(int hostCount){
+        if(!hasMaxConcurrentHosts()){
+            return hostCount;
+        }
+        if(maxConcurrentHosts.endsWith("%")){
+            long percent = Long.parseLong(maxConcurrentHosts.substring(0,maxConcurrentHosts.length()-1));
+            return (int)Math.max(1,Math.min(hostCount,(hostCount * percent + 99) / 100));
+        }
+        return (int)Math.min(hostCount,Long.parseLong(maxConcurrentHosts));
+    }
+
 
 
 }
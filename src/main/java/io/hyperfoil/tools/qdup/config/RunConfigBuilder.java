@@ -86,6 +86,7 @@ public class RunConfigBuilder {
    private HashedLists<String, ScriptCmd> roleCleanup;
 
    private HashMap<String, String> roleHostExpression;
+   private HashMap<String, String> roleMaxConcurrentHosts;
 
    private HashMap<String, String> hostAlias;
 
@@ -112,6 +113,7 @@ public class RunConfigBuilder {
       roleRun = new HashedLists<>();
       roleCleanup = new HashedLists<>();
       roleHostExpression = new HashMap<>();
+      roleMaxConcurrentHosts = new HashMap<>();
       hostAlias = new HashMap<>();
       traceTargets = new HashSet<>();
       errors = new LinkedList<>();
@@ -169,6 +171,9 @@ public class RunConfigBuilder {
          if(role.hasHostExpression()){
             setRoleHostExpession(name,role.getHostExpression().getExpression());
          }
+         if(role.hasMaxConcurrentHosts()){
+            setRoleMaxConcurrentHosts(name,role.getMaxConcurrentHosts());
+         }
          role.getHostRefs().forEach(hostRef -> {
             addHostToRole(name, hostRef);
          });
@@ -245,6 +250,9 @@ public class RunConfigBuilder {
             if (roleHostExpression.containsKey(roleName)) {
                role.setHostExpression(new HostExpression(roleHostExpression.get(roleName)));
             }
+            if (roleMaxConcurrentHosts.containsKey(roleName)) {
+               role.setMaxConcurrentHosts(roleMaxConcurrentHosts.get(roleName));
+            }
             getRoleHosts(roleName).forEach(role::addHostRef);
             getRoleSetup(roleName).forEach(role::addSetup);
             getRoleRun(roleName).forEach(role::addRun);
@@ -322,6 +330,14 @@ public class RunConfigBuilder {
       roleHostExpression.put(roleName, expression);
    }
 
+   public void setRoleMaxConcurrentHosts(String roleName, String maxConcurrentHosts) {
+      if (Role.isMaxConcurrentHosts(maxConcurrentHosts)) {
+         roleMaxConcurrentHosts.put(roleName, maxConcurrentHosts);
+      } else {
+         addError("role " + roleName + " max-concurrent-hosts must be a count or a percent but was " + maxConcurrentHosts);
+      }
+   }
+
    public void addHostToRole(String name, String hostReference) {
       roleHosts.put(name, hostReference);
    }
@@ -557,6 +573,9 @@ public class RunConfigBuilder {
       //create roles
       roleNames.forEach(roleName -> {
          roles.putIfAbsent(roleName, new Role(roleName));
+         if (roleMaxConcurrentHosts.containsKey(roleName)) {
+            roles.get(roleName).setMaxConcurrentHosts(roleMaxConcurrentHosts.get(roleName));
+         }
          roleHosts.get(roleName).forEach(hostRef -> {
             if(Cmd.hasStateReference(hostRef,null)){
                hostRef = Cmd.populateStateVariables(hostRef,null,state,null,new Json());
@@ -212,8 +212,19 @@ public class Parser {
         rtrn.addCmd(
                 ForEach.class,
                 "for-each",
-                //have to quote declaredInput because Parser.split() strips out the quotes, remove once cmd builder is gone
-                (cmd) -> ((cmd.getName() + " " + (cmd.getDeclaredInput().trim().isEmpty() ? "" : "'" + cmd.getDeclaredInput()).trim() + "'")),
+                (cmd) -> {
+                    if(cmd.isParallel()){
+                        Map<Object,Object> map = new LinkedHashMap<>();
+                        map.put("name",cmd.getName());
+                        if(cmd.hasDeclaredInput()){
+                            map.put("input",cmd.getDeclaredInput());
+                        }
+                        map.put("parallel",cmd.getParallel());
+                        return map;
+                    }
+                    //have to quote declaredInput because Parser.split() strips out the quotes, remove once cmd builder is gone
+                    return (cmd.getName() + " " + (cmd.getDeclaredInput().trim().isEmpty() ? "" : "'" + cmd.getDeclaredInput()).trim() + "'");
+                },
                 (str,prefix,suffix) -> {
                     List<String> split = Parser.split(str,prefix,suffix);
                     if (str.isBlank() || split.size() < 1){
@@ -234,9 +245,9 @@ public class Parser {
                     }
                 },
                 (json) -> {
-                    return new ForEach(json.getString("name"), json.getString("input", ""));
+                    return new ForEach(json.getString("name"), json.getString("input", ""), (int)json.getLong("parallel", 0));
                 },
-                "name","input"
+                "name","input","parallel"
         );
         //Invoke
         rtrn.addCmd(
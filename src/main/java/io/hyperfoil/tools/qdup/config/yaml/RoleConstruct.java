@@ -30,6 +30,9 @@ public class RoleConstruct extends DeferableConstruct {
         rtrn.put("setup-scripts",role.getSetup());
         rtrn.put("run-scripts",role.getRun());
         rtrn.put("cleanup-scripts",role.getCleanup());
+        if(role.hasMaxConcurrentHosts()){
+            rtrn.put("max-concurrent-hosts",role.getMaxConcurrentHosts());
+        }
         return rtrn;
     };
 
@@ -96,6 +99,13 @@ public class RoleConstruct extends DeferableConstruct {
                         case "cleanup-scripts":
                             parseScript.apply("cleanup-scripts",tupleValue).forEach(role::addCleanup);
                             break;
+                        case "max-concurrent-hosts":
+                            if(tupleValue instanceof ScalarNode && Role.isMaxConcurrentHosts(((ScalarNode)tupleValue).getValue())){
+                                role.setMaxConcurrentHosts(((ScalarNode)tupleValue).getValue());
+                            }else{
+                                throw new YAMLException("role '"+role.getName()+"' max-concurrent-hosts must be a count or a percent"+tupleValue.getStartMark());
+                            }
+                            break;
                         default:
                             throw new YAMLException("unknown role key '"+key+"' "+nodeTuple.getKeyNode().getStartMark());
 
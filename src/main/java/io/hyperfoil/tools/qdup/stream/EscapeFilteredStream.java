@@ -142,7 +142,7 @@ public class EscapeFilteredStream extends MultiStream {
         }
     }
     //basically just makes sure we have \u001b[...m
-    public boolean isEscaped(byte b[],int off,int len){
+    public static boolean isEscaped(byte b[],int off,int len){
         return
             len ==1 && b[off] == CR ||
             (
@@ -155,7 +155,7 @@ public class EscapeFilteredStream extends MultiStream {
             );
     }
     //return length of match up to len or 0 if match failed
-    public int escapeLength(byte b[], int off, int len){
+    public static int escapeLength(byte b[], int off, int len){
         boolean matching = true;
         int rtrn = 0;
         if( b[off]==ESC ) {//\003
@@ -0,0 +1,140 @@
+package io.hyperfoil.tools.qdup.stream;
+
+import java.util.Arrays;
+
+/**
+ * Immutable prefix tree of the FilteredStream filters.
+ * Adding or removing a filter copies the nodes on the path of that filter and shares the rest of the tree
+ * so the current tree can be read by write() while Sh changes the command filter from another thread.
+ */
+final class FilterTree {
+
+    static final class Node {
+        private static final byte[] NO_KEYS = new byte[0];
+        private static final Node[] NO_CHILDREN = new Node[0];
+        private static final String[] NO_NAMES = new String[0];
+
+        private final byte[] keys;
+        private final Node[] children;
+        private final String[] names;//filters that end on this node, the first name wins
+
+        private Node(byte[] keys, Node[] children, String[] names){
+            this.keys = keys;
+            this.children = children;
+            this.names = names;
+        }
+
+        Node child(byte b){
+            for(int i=0; i<keys.length; i++){
+                if(keys[i] == b){
+                    return children[i];
+                }
+            }
+            return null;
+        }
+        boolean hasChildren(){return children.length > 0;}
+        boolean isTerminal(){return names.length > 0;}
+        String getName(){return names.length > 0 ? names[0] : null;}
+        private boolean isEmpty(){return children.length == 0 && names.length == 0;}
+
+        private Node withChild(byte b, Node child){
+            for(int i=0; i<keys.length; i++){
+                if(keys[i] == b){
+                    if(child == null || child.isEmpty()){
+                        byte[] newKeys = new byte[keys.length - 1];
+                        Node[] newChildren = new Node[children.length - 1];
+                        System.arraycopy(keys,0,newKeys,0,i);
+                        System.arraycopy(keys,i+1,newKeys,i,keys.length-i-1);
+                        System.arraycopy(children,0,newChildren,0,i);
+                        System.arraycopy(children,i+1,newChildren,i,children.length-i-1);
+                        return new Node(newKeys,newChildren,names);
+                    }
+                    Node[] newChildren = Arrays.copyOf(children,children.length);
+                    newChildren[i] = child;
+                    return new Node(keys,newChildren,names);
+                }
+            }
+            if(child == null || child.isEmpty()){
+                return this;
+            }
+            byte[] newKeys = Arrays.copyOf(keys,keys.length + 1);
+            Node[] newChildren = Arrays.copyOf(children,children.length + 1);
+            newKeys[keys.length] = b;
+            newChildren[children.length] = child;
+            return new Node(newKeys,newChildren,names);
+        }
+        private Node withName(String name){
+            for(String existing : names){
+                if(existing.equals(name)){
+                    return this;
+                }
+            }
+            String[] newNames = Arrays.copyOf(names,names.length + 1);
+            newNames[names.length] = name;
+            return new Node(keys,children,newNames);
+        }
+        private Node withoutName(String name){
+            for(int i=0; i<names.length; i++){
+                if(names[i].equals(name)){
+                    String[] newNames = new String[names.length - 1];
+                    System.arraycopy(names,0,newNames,0,i);
+                    System.arraycopy(names,i+1,newNames,i,names.length-i-1);
+                    return new Node(keys,children,newNames);
+                }
+            }
+            return this;
+        }
+    }
+
+    static final FilterTree EMPTY = new FilterTree(new Node[256]);
+
+    private final Node[] roots;//first byte lookup
+
+    private FilterTree(Node[] roots){
+        this.roots = roots;
+    }
+
+    Node root(byte b){
+        return roots[b & 0xFF];
+    }
+
+    FilterTree with(String name, byte[] filter){
+        if(filter.length == 0){//an empty filter never filters anything
+            return this;
+        }
+        Node[] newRoots = Arrays.copyOf(roots,roots.length);
+        Node current = roots[filter[0] & 0xFF];
+        newRoots[filter[0] & 0xFF] = with(current == null ? new Node(Node.NO_KEYS,Node.NO_CHILDREN,Node.NO_NAMES) : current, filter, 1, name);
+        return new FilterTree(newRoots);
+    }
+    private static Node with(Node node, byte[] filter, int index, String name){
+        if(index == filter.length){
+            return node.withName(name);
+        }
+        Node child = node.child(filter[index]);
+        if(child == null){
+            child = new Node(Node.NO_KEYS,Node.NO_CHILDREN,Node.NO_NAMES);
+        }
+        return node.withChild(filter[index], with(child, filter, index + 1, name));
+    }
+
+    FilterTree without(String name, byte[] filter){
+        if(filter.length == 0 || roots[filter[0] & 0xFF] == null){
+            return this;
+        }
+        Node[] newRoots = Arrays.copyOf(roots,roots.length);
+        Node updated = without(roots[filter[0] & 0xFF], filter, 1, name);
+        newRoots[filter[0] & 0xFF] = updated == null || updated.isEmpty() ? null : updated;
+        return new FilterTree(newRoots);
+    }
+    private static Node without(Node node, byte[] filter, int index, String name){
+        if(index == filter.length){
+            return node.withoutName(name);
+        }
+        Node child = node.child(filter[index]);
+        if(child == null){
+            return node;
+        }
+        return node.withChild(filter[index], without(child, filter, index + 1, name));
+    }
+}
@@ -13,7 +13,6 @@ import java.util.stream.Collectors;
 /**
  * Created by wreicher
  * A MultiStream that filters content before writing to subsequent OutputStreams.
- * TODO tree of filters to speed up filtering content
  * TODO need to also create a a suffix filter (for PROMPT)
  */
 public class FilteredStream extends MultiStream{
@@ -24,6 +23,7 @@ public class FilteredStream extends MultiStream{
     private int postFilterDrop = 0;
     private final Map<String,byte[]> filters;
     private final Map<String,byte[]> replacements;
+    private volatile FilterTree tree = FilterTree.EMPTY;
 
     private final List<Consumer<String>> observers;
 
@@ -80,15 +80,24 @@ public class FilteredStream extends MultiStream{
         addFilter(name,filter.getBytes());
     }
     public void addFilter(String name,byte bytes[]){
-        filters.put(name,bytes);
-        replacements.remove(name);
+        synchronized (filters) {
+            putFilter(name,bytes);
+            replacements.remove(name);
+        }
     }
     public void addFilter(String name,String filter,String replacement) {
         addFilter(name,filter.getBytes(),replacement.getBytes());
     }
     public void addFilter(String name,byte filter[],byte replacement[]){
-        filters.put(name,filter);
-        replacements.put(name,replacement);
+        synchronized (filters) {
+            putFilter(name,filter);
+            replacements.put(name,replacement);
+        }
+    }
+    private void putFilter(String name,byte filter[]){
+        byte[] previous = filters.put(name,filter);
+        FilterTree updated = previous == null ? tree : tree.without(name,previous);
+        tree = updated.with(name,filter);
     }
     public boolean hasFilter(String name){
         return filters.containsKey(name);
@@ -104,8 +113,13 @@ public class FilteredStream extends MultiStream{
         return replacements.containsKey(name);
     }
     public void remove(String name){
-        filters.remove(name);
-        replacements.remove(name);
+        synchronized (filters) {
+            byte[] previous = filters.remove(name);
+            if (previous != null) {
+                tree = tree.without(name, previous);
+            }
+            replacements.remove(name);
+        }
     }
 
     protected void superWrite(byte b[], int off, int len) throws IOException {
@@ -151,7 +165,7 @@ public class FilteredStream extends MultiStream{
                 //copy the content to write into the buffered content
                 System.arraycopy(b,off,buffered, writeIndex,len);
                 writeIndex +=len;
-                boolean filteredAtLeastOnce = false;
+                FilterTree tree = this.tree;
                 for(int currentIndex = 0; currentIndex < writeIndex; currentIndex++){
                     boolean filtered = false;
                     do{
@@ -159,27 +173,24 @@ public class FilteredStream extends MultiStream{
                         int dropLength = 0;
                         String matchedName = "";
 
-                        //hack because ConcurrentModificationException from Sh calling before loop finishes :(
-                        //Set<String> filterNames = new HashSet<>(filters.keySet());
-                        //for(String name : filterNames){
-                        String filterNames[] = filters.keySet().toArray(new String[0]);
-                        for(int i=0; i<filterNames.length; i++){
-                            String name = filterNames[i];
-                            byte[] filter = filters.get(name);
-                            if(filter!=null){
-                                int prefixLength = prefixLength(buffered, filter, currentIndex, writeIndex-currentIndex);
-                                if(prefixLength == filter.length) {//full match
-                                    if(filter.length > dropLength){
-                                        dropLength=filter.length;
-                                        filtered=true;
-                                        filteredAtLeastOnce=true;
-                                        matchedName = name;
-                                    }
-                                }else if (prefixLength > 0) {
-                                    if(trailingPrefixIndex > currentIndex){
-                                        trailingPrefixIndex = currentIndex;
-                                    }
+                        //walk the tree from currentIndex for the longest full match and a partial match that reaches writeIndex
+                        //currentIndex can pass writeIndex after dropping the trailing \r\n, see the TODO BUG below
+                        FilterTree.Node node = currentIndex < writeIndex ? tree.root(buffered[currentIndex]) : null;
+                        int matchIndex = currentIndex;
+                        while(node != null){
+                            matchIndex++;
+                            if(node.isTerminal()){
+                                dropLength = matchIndex - currentIndex;
+                                matchedName = node.getName();
+                                filtered = true;
+                            }
+                            if(matchIndex == writeIndex){
+                                if(node.hasChildren() && trailingPrefixIndex > currentIndex){
+                                    trailingPrefixIndex = currentIndex;
                                 }
+                                node = null;
+                            }else{
+                                node = node.child(buffered[matchIndex]);
                             }
                         }
                         if(filtered){
@@ -191,7 +202,7 @@ public class FilteredStream extends MultiStream{
                             if(hasReplacement(matchedName) && replacements.get(matchedName).length > 0){
                                 superWrite(replacements.get(matchedName),0,replacements.get(matchedName).length);
                             }
-                            int nextIndex = currentIndex + filters.get(matchedName).length;
+                            int nextIndex = currentIndex + dropLength;
                             //trap the potential \r\n if we filtered the entire write / line
                             //TODO BUG, this can increment currentIndex && flushIndex beyondWriteIndex
                             //TODO BUG, this only works if /r/n are on the same write, what about a subsequent call to write
@@ -0,0 +1,681 @@
+package io.hyperfoil.tools.qdup.stream;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * SessionStreams that strips escapes, matches the prompt suffix, filters the command echo and splits lines in one pass
+ * over a single reusable buffer instead of passing each write through the chain of MultiStreams.
+ * Each stage keeps the semantics of EscapeFilteredStream, SuffixStream, FilteredStream and LineEmittingStream,
+ * which remain the reference implementation and the default (see SessionStreams.FUSED_PROPERTY).
+ *
+ * The buffer holds the bytes each stage is waiting on next to each other so passing bytes to the next stage only moves an index
+ *    [start, filterEnd) - held by the filter stage (partial match of a filter)
+ *    [filterEnd, end) - held by the suffix stage (partial prompt or open prompt envelope)
+ *    [rawStart, rawEnd) - raw bytes not yet read by the escape stage (partial escape sequence)
+ */
+public class FusedSessionStreams extends SessionStreams {
+
+   private class FoundRunnable implements Runnable {
+      private final String name;
+      private final long sequence;
+
+      FoundRunnable(String name, long sequence){
+         this.name = name;
+         this.sequence = sequence;
+      }
+
+      @Override
+      public void run() {
+         boolean found = false;
+         synchronized (FusedSessionStreams.this){
+            if(sequence == suffixSequence){//if there has not been a subsequent write
+               future = null;
+               try {
+                  foundSuffix(name);
+                  compact();
+                  found = true;
+               } catch (IOException e) {
+                  logger.error(e.getMessage(),e);
+               }
+            }
+         }
+         if(found){//outside the lock, the callbacks can wait on the next command
+            callPromptCallbacks(name);
+         }
+      }
+   }
+
+   private byte[] buffered = new byte[20*1024];
+   private int start = 0;
+   private int filterEnd = 0;
+   private int end = 0;
+   private int rawStart = 0;
+   private int rawEnd = 0;
+
+   //suffix stage
+   private final Map<String,byte[]> suffixes = new LinkedHashMap<>();
+   private final Map<String,byte[]> suffixReplacements = new LinkedHashMap<>();
+   private final Map<String,byte[]> envelopes = new LinkedHashMap<>();
+   private volatile String envelope;
+   private Predicate<String> envelopeConfirmation;
+   private final List<Consumer<String>> promptCallbacks = new LinkedList<>();
+   private SuffixAutomaton suffixAutomaton;
+   private final ScheduledThreadPoolExecutor executor;
+   private int delay = SuffixStream.DEFAULT_DELAY;
+   private ScheduledFuture<?> future;
+   private long suffixSequence = 0;
+
+   //inline prompt stage
+   private final Map<String,byte[]> inlineSuffixes = new LinkedHashMap<>();
+   private final List<Consumer<String>> inlineCallbacks = new LinkedList<>();
+   private SuffixAutomaton inlineAutomaton;
+
+   //filter stage
+   private final Map<String,byte[]> filters = new LinkedHashMap<>();
+   private final Map<String,byte[]> filterReplacements = new HashMap<>();
+   private volatile FilterTree tree = FilterTree.EMPTY;
+   private int postFilterDrop = 0;
+
+   //line stage
+   private byte[] lineBuffered = new byte[4*1024];
+   private int lineIndex = 0;
+   private final List<Consumer<String>> lineConsumers = new LinkedList<>();
+   private final List<Consumer<CharSequence>> lineViewConsumers = new LinkedList<>();
+   private final LineDecoder lineDecoder = new LineDecoder();
+
+   private final SpillingOutputStream shStream;
+
+   private OutputStream rawTrace;
+   private OutputStream efsTrace;
+
+   public FusedSessionStreams(String name, ScheduledThreadPoolExecutor executor){
+      super(name);
+      this.executor = executor;
+      this.shStream = new SpillingOutputStream(name);
+      CONTROL_FILTERS.forEach(this::addFilter);
+   }
+
+   @Override
+   public EscapeFilteredStream getEscapeFilteredStream() { return null; }
+   @Override
+   public SuffixStream getSuffixStream() { return null; }
+   @Override
+   public SuffixStream getPromptStream() { return null; }
+   @Override
+   public LineEmittingStream getLineEmittingStream() { return null; }
+   @Override
+   public FilteredStream getFilteredStream() { return null; }
+   @Override
+   public SpillingOutputStream getShStream() { return shStream; }
+
+   @Override
+   public synchronized void write(byte b[], int off, int len) throws IOException {
+      if(hasTrace()){
+         trace("[--qdup--]");
+         rawTrace.write(b,off,len);
+      }
+      try {
+         if (rawEnd + len > buffered.length) {
+            compact();
+            if (rawEnd + len > buffered.length) {
+               buffered = Arrays.copyOf(buffered, rawEnd + len);
+            }
+         }
+         System.arraycopy(b, off, buffered, rawEnd, len);
+         rawEnd += len;
+         escapeStage();
+         compact();
+      }catch(Exception e){
+         logger.error(e.getMessage(),e);
+         throw new RuntimeException("b.length="+(b==null?"null":b.length)+" off="+off+" len="+len+" buffered.length="+buffered.length, e);
+      }
+   }
+
+   /**
+    * move the held bytes to the front of the buffer
+    */
+   private void compact(){
+      if(start > 0 || rawStart > end){
+         int held = end - start;
+         int raw = rawEnd - rawStart;
+         System.arraycopy(buffered, start, buffered, 0, held);
+         System.arraycopy(buffered, rawStart, buffered, held, raw);
+         filterEnd -= start;
+         start = 0;
+         end = held;
+         rawStart = held;
+         rawEnd = held + raw;
+      }
+   }
+
+   /**
+    * make room for length bytes at end without overwriting the unread raw bytes
+    */
+   private void makeRoom(int length){
+      int needed = end + length - rawStart;
+      if(needed > 0){
+         if(rawEnd + needed > buffered.length){
+            buffered = Arrays.copyOf(buffered, rawEnd + needed);
+         }
+         System.arraycopy(buffered, rawStart, buffered, rawStart + needed, rawEnd - rawStart);
+         rawStart += needed;
+         rawEnd += needed;
+      }
+   }
+
+   /**
+    * copies the raw bytes down to end without the escape sequences and passes each run between escape sequences to the suffix stage,
+    * the same as each superWrite of EscapeFilteredStream
+    */
+   private void escapeStage() throws IOException {
+      int pieceStart = end;
+      while(rawStart < rawEnd){
+         int escapeLength = EscapeFilteredStream.escapeLength(buffered, rawStart, rawEnd - rawStart);
+         if(escapeLength > 0 && EscapeFilteredStream.isEscaped(buffered, rawStart, escapeLength)){
+            rawStart += escapeLength;
+            if(end > pieceStart){
+               suffixStage(pieceStart);
+            }
+            pieceStart = end;
+         }else if(escapeLength > 0){//match reached end of buffer, wait for the next write
+            break;
+         }else{
+            buffered[end++] = buffered[rawStart++];
+         }
+      }
+      if(end > pieceStart){
+         suffixStage(pieceStart);
+      }
+   }
+
+   /**
+    * [from, end) were just added to the suffix stage, same as SuffixStream.write
+    */
+   private void suffixStage(int from) throws IOException {
+      if(hasTrace()){
+         efsTrace.write(buffered, from, end - from);
+      }
+      suffixSequence++;
+      if(suffixes.isEmpty()){
+         release(end);
+      }else{
+         SuffixAutomaton automaton = getSuffixAutomaton(from);
+         automaton.update(buffered, from, end - from);
+         if(automaton.isMatch()){
+            String foundName = automaton.getMatchName();
+            if(future != null){
+               future.cancel(true);
+               future = null;
+            }
+            if(executor != null && delay >= 0 && !isConfirmed(foundName)){
+               future = executor.schedule(new FoundRunnable(foundName, suffixSequence), delay, TimeUnit.MILLISECONDS);
+            }else{
+               foundSuffix(foundName);
+               callPromptCallbacks(foundName);
+            }
+         }else{
+            int trailingSuffixLength = Math.min(end - filterEnd, automaton.getTrailingLength());
+            if(!envelopes.isEmpty()){
+               trailingSuffixLength = Math.max(trailingSuffixLength, trailingEnvelopeLength());
+            }
+            release(end - trailingSuffixLength);
+         }
+      }
+   }
+
+   private SuffixAutomaton getSuffixAutomaton(int from){
+      SuffixAutomaton rtrn = suffixAutomaton;
+      if(rtrn == null){
+         rtrn = new SuffixAutomaton(new ArrayList<>(suffixes.keySet()), new ArrayList<>(suffixes.values()));
+         suffixAutomaton = rtrn;
+         rtrn.update(buffered, filterEnd, from - filterEnd);
+      }
+      return rtrn;
+   }
+
+   private int trailingEnvelopeLength(){
+      int rtrn = 0;
+      for(byte[] marker : envelopes.values()){
+         int startIndex = envelopeStart(marker, end);
+         if(startIndex >= 0){
+            rtrn = Math.max(rtrn, end - startIndex);
+         }else{
+            rtrn = Math.max(rtrn, trailingPrefixLength(marker));
+         }
+      }
+      return rtrn;
+   }
+
+   /**
+    * @return the longest prefix of toFind that ends the suffix stage bytes
+    */
+   private int trailingPrefixLength(byte[] toFind){
+      for(int length = Math.min(toFind.length, end - filterEnd); length > 0; length--){
+         boolean matching = true;
+         for(int i = 0; i < length && matching; i++){
+            matching = buffered[end - length + i] == toFind[i];
+         }
+         if(matching){
+            return length;
+         }
+      }
+      return 0;
+   }
+
+   private int envelopeStart(byte[] marker, int endIndex){
+      int limit = Math.max(filterEnd, endIndex - SuffixStream.MAX_ENVELOPE_LENGTH);
+      for(int i = endIndex - marker.length; i >= limit; i--){
+         byte b = buffered[i + marker.length - 1];
+         if(b == '\n' || b == '\r'){
+            return -1;
+         }
+         boolean matching = true;
+         for(int m = 0; m < marker.length && matching; m++){
+            matching = buffered[i + m] == marker[m];
+         }
+         if(matching){
+            return i;
+         }
+      }
+      return -1;
+   }
+
+   private boolean isConfirmed(String name){
+      Predicate<String> confirmation = envelopeConfirmation;
+      if(confirmation == null || !envelopes.containsKey(name)){
+         return false;
+      }
+      byte[] marker = envelopes.get(name);
+      int endIndex = end - suffixes.get(name).length;
+      int startIndex = envelopeStart(marker, endIndex);
+      return startIndex >= 0 && confirmation.test(new String(buffered, startIndex + marker.length, endIndex - startIndex - marker.length));
+   }
+
+   private void foundSuffix(String name) throws IOException {
+      envelope = null;
+      if(suffixReplacements.containsKey(name)){
+         byte[] replacement = suffixReplacements.get(name);
+         int writeEnd = end - suffixes.get(name).length;
+         if(envelopes.containsKey(name)){
+            byte[] marker = envelopes.get(name);
+            int startIndex = envelopeStart(marker, writeEnd);
+            if(startIndex >= 0){
+               envelope = new String(buffered, startIndex + marker.length, writeEnd - startIndex - marker.length);
+               writeEnd = startIndex;
+            }
+         }
+         end = writeEnd;
+         release(end);
+         if(replacement.length > 0){
+            makeRoom(replacement.length);
+            System.arraycopy(replacement, 0, buffered, end, replacement.length);
+            end += replacement.length;
+            release(end);
+         }
+      }else{
+         release(end);
+      }
+      if(suffixAutomaton != null){
+         suffixAutomaton.reset();
+      }
+   }
+
+   private void callPromptCallbacks(String name){
+      promptCallbacks.forEach(c -> c.accept(name));
+   }
+
+   /**
+    * pass [filterEnd, to) from the suffix stage to the inline prompt and filter stages
+    */
+   private void release(int to) throws IOException {
+      if(to > filterEnd){
+         int from = filterEnd;
+         filterEnd = to;
+         inlineStage(from);
+         filterStage(from);
+      }
+   }
+
+   /**
+    * same as the SuffixStream without an executor that watches for inline prompts
+    */
+   private void inlineStage(int from){
+      if(inlineSuffixes.isEmpty()){
+         return;
+      }
+      if(inlineAutomaton == null){
+         inlineAutomaton = new SuffixAutomaton(new ArrayList<>(inlineSuffixes.keySet()), new ArrayList<>(inlineSuffixes.values()));
+      }
+      inlineAutomaton.update(buffered, from, filterEnd - from);
+      if(inlineAutomaton.isMatch()){
+         String foundName = inlineAutomaton.getMatchName();
+         inlineAutomaton.reset();
+         inlineCallbacks.forEach(c -> c.accept(foundName));
+      }
+   }
+
+   /**
+    * [from, filterEnd) were just added to the filter stage, same as FilteredStream.write
+    */
+   private void filterStage(int from) throws IOException {
+      int off = 0;
+      int len = filterEnd - from;
+      while(postFilterDrop > 0 && len > 0 && (buffered[from + off] == '\r' || buffered[from + off] == '\n')){
+         off++;
+         len--;
+         postFilterDrop--;
+      }
+      if(len > 0){//if we are writing something then we are no longer post filter
+         postFilterDrop = 0;
+      }
+      if(off > 0){//drop the leading newlines by moving the held bytes over them
+         System.arraycopy(buffered, start, buffered, start + off, from - start);
+         start += off;
+         from += off;
+      }
+      if(filters.isEmpty()){
+         if(from > start){//something was held, probably back when there were filters
+            out(buffered, start, from - start);
+         }
+         if(filterEnd > from){
+            out(buffered, from, filterEnd - from);
+         }
+         start = filterEnd;
+         return;
+      }
+      FilterTree tree = this.tree;
+      int writeIndex = filterEnd - start;
+      int flushIndex = 0;
+      int trailingPrefixIndex = Integer.MAX_VALUE;
+      for(int currentIndex = 0; currentIndex < writeIndex; currentIndex++){
+         boolean filtered;
+         do{
+            filtered = false;
+            int dropLength = 0;
+            String matchedName = "";
+            FilterTree.Node node = currentIndex < writeIndex ? tree.root(buffered[start + currentIndex]) : null;
+            int matchIndex = currentIndex;
+            while(node != null){
+               matchIndex++;
+               if(node.isTerminal()){
+                  dropLength = matchIndex - currentIndex;
+                  matchedName = node.getName();
+                  filtered = true;
+               }
+               if(matchIndex == writeIndex){
+                  if(node.hasChildren() && trailingPrefixIndex > currentIndex){
+                     trailingPrefixIndex = currentIndex;
+                  }
+                  node = null;
+               }else{
+                  node = node.child(buffered[start + matchIndex]);
+               }
+            }
+            if(filtered){
+               postFilterDrop += 2;
+               if(flushIndex < currentIndex){
+                  out(buffered, start + flushIndex, currentIndex - flushIndex);
+               }
+               byte[] replacement = filterReplacements.get(matchedName);
+               if(replacement != null && replacement.length > 0){
+                  out(replacement, 0, replacement.length);
+               }
+               int nextIndex = currentIndex + dropLength;
+               //same \r\n trap (and quirks) as FilteredStream
+               if(postFilterDrop > 0 && currentIndex == off && nextIndex < writeIndex && (buffered[start + nextIndex] == '\n' || buffered[start + nextIndex] == '\r')){
+                  nextIndex++;
+                  postFilterDrop--;
+               }
+               if(postFilterDrop > 0 && currentIndex == off && nextIndex < writeIndex && (buffered[start + nextIndex] == '\n' || buffered[start + nextIndex] == '\r')){
+                  nextIndex++;
+                  postFilterDrop--;
+               }
+               currentIndex = nextIndex;
+               flushIndex = currentIndex;
+               trailingPrefixIndex = Integer.MAX_VALUE;
+               clearCommand(matchedName);
+            }
+         }while(filtered);
+      }
+      if(trailingPrefixIndex < Integer.MAX_VALUE){
+         if(trailingPrefixIndex - flushIndex > 0){
+            out(buffered, start + flushIndex, trailingPrefixIndex - flushIndex);
+         }
+         start += trailingPrefixIndex;
+      }else{
+         if(flushIndex < writeIndex){
+            out(buffered, start + flushIndex, writeIndex - flushIndex);
+         }
+         start = filterEnd;
+      }
+   }
+
+   private void clearCommand(String name){
+      if("command".equals(name)){
+         removeFilter("command");
+      }
+   }
+
+   private void out(byte[] b, int off, int len){
+      shStream.write(b, off, len);
+      lineStage(b, off, len);
+   }
+
+   /**
+    * same as LineEmittingStream.write
+    */
+   private void lineStage(byte[] b, int off, int len){
+      int writeFrom = off;
+      for(int i = 0; i < len; i++){
+         if(b[off + i] == 10 || b[off + i] == 13){ // if CR or LR
+            if(lineIndex == 0){//nothing buffered, can just emit from b
+               emit(b, writeFrom, off + i - writeFrom);
+            }else{
+               bufferLine(b, writeFrom, off + i - writeFrom);
+               emit(lineBuffered, 0, lineIndex);
+               lineIndex = 0;
+            }
+            if(i + 1 < len && (b[off + i + 1] == 10 || b[off + i + 1] == 13)){//skip the next CR or LR
+               i++;
+            }
+            writeFrom = off + i + 1;
+         }
+      }
+      if(writeFrom < off + len){
+         bufferLine(b, writeFrom, off + len - writeFrom);
+      }
+   }
+   private void bufferLine(byte[] b, int off, int len){
+      if(lineIndex + len > lineBuffered.length){
+         lineBuffered = Arrays.copyOf(lineBuffered, Math.max(lineBuffered.length * 2, lineIndex + len));
+      }
+      System.arraycopy(b, off, lineBuffered, lineIndex, len);
+      lineIndex += len;
+   }
+   private void emit(byte[] b, int off, int len){
+      if(lineConsumers.isEmpty() && lineViewConsumers.isEmpty()){
+         return;
+      }
+      CharSequence line = lineDecoder.decode(b, off, len);
+      for(Consumer<CharSequence> consumer : lineViewConsumers){
+         consumer.accept(line);
+      }
+      if(!lineConsumers.isEmpty()){
+         String toEmit = line.toString();
+         for(Consumer<String> consumer : lineConsumers){
+            consumer.accept(toEmit);
+         }
+      }
+   }
+
+   private void addFilter(String name, byte[] filter){
+      byte[] previous = filters.put(name, filter);
+      tree = (previous == null ? tree : tree.without(name, previous)).with(name, filter);
+      filterReplacements.remove(name);
+   }
+   private void removeFilter(String name){
+      byte[] previous = filters.remove(name);
+      if(previous != null){
+         tree = tree.without(name, previous);
+      }
+      filterReplacements.remove(name);
+   }
+
+   @Override
+   public void flush() throws IOException {
+      //nothing to flush, the stages only hold partial matches
+   }
+
+   @Override
+   public synchronized void flushBuffer(){
+      if(filterEnd > start){
+         out(buffered, start, filterEnd - start);
+         start = filterEnd;
+      }
+      if(lineIndex > 0){
+         emit(lineBuffered, 0, lineIndex);
+         lineIndex = 0;
+      }
+   }
+
+   @Override
+   public synchronized void close() throws IOException {
+      //the partial escape is passed on as is
+      if(rawEnd > rawStart){
+         int from = end;
+         System.arraycopy(buffered, rawStart, buffered, end, rawEnd - rawStart);
+         end += rawEnd - rawStart;
+         rawStart = end;
+         rawEnd = end;
+         suffixStage(from);
+      }
+      suffixSequence++;
+      release(end);
+      if(suffixAutomaton != null){
+         suffixAutomaton.reset();
+      }
+      flushBuffer();
+      compact();
+      shStream.close();
+   }
+
+   @Override
+   public synchronized void addLineConsumer(Consumer<String> consumer){
+      lineConsumers.add(consumer);
+   }
+   @Override
+   public synchronized void removeLineConsumer(Consumer<String> consumer){
+      lineConsumers.remove(consumer);
+   }
+   @Override
+   public synchronized void addLineViewConsumer(Consumer<CharSequence> consumer){
+      lineViewConsumers.add(consumer);
+   }
+   @Override
+   public synchronized void removeLineViewConsumer(Consumer<CharSequence> consumer){
+      lineViewConsumers.remove(consumer);
+   }
+
+   @Override
+   protected void setStageNames(String name){}
+
+   @Override
+   public boolean hasTrace(){
+      return efsTrace != null;
+   }
+   @Override
+   public void setTrace(String traceName) throws IOException{
+      if(!hasTrace()){
+         rawTrace = createTraceStream(traceName,"raw");
+         efsTrace = createTraceStream(traceName,"efs");
+      }
+   }
+   @Override
+   public OutputStream getTrace(){
+      return efsTrace;
+   }
+   @Override
+   public OutputStream getRawTrace(){
+      return rawTrace;
+   }
+
+   @Override
+   public synchronized void setCommand(String command){
+      addFilter("command", command.getBytes());
+      filterReplacements.put("command", new byte[0]);
+   }
+
+   @Override
+   public void setDelay(int delay){
+      this.delay = delay;
+   }
+   @Override
+   public int getDelay(){
+      return delay;
+   }
+
+   @Override
+   public synchronized void clearInline(){
+      inlineSuffixes.clear();
+      inlineAutomaton = null;
+      inlineCallbacks.clear();
+   }
+   @Override
+   public synchronized void addInlinePrompts(Set<String> prompt, Consumer<String> callback){
+      prompt.forEach(p -> inlineSuffixes.put(p, p.getBytes()));
+      inlineAutomaton = null;
+      inlineCallbacks.add(callback);
+   }
+   @Override
+   public Set<String> getInlinePrompts(){
+      return suffixes.keySet();
+   }
+   @Override
+   public synchronized void addPrompt(String name, String prompt, String replacement){
+      suffixes.put(name, prompt.getBytes());
+      suffixReplacements.put(name, replacement.getBytes());
+      suffixAutomaton = null;
+   }
+
+   @Override
+   public synchronized void addPromptEnvelope(String name, String start){
+      envelopes.put(name, start.getBytes());
+   }
+   @Override
+   public void setPromptConfirmation(Predicate<String> confirmation){
+      this.envelopeConfirmation = confirmation;
+   }
+   @Override
+   public String getPromptEnvelope(){
+      return envelope;
+   }
+
+   @Override
+   public synchronized void addPromptCallback(Consumer<String> callback){
+      promptCallbacks.add(callback);
+   }
+   @Override
+   public synchronized void removePromptCallback(Consumer<String> callback){
+      promptCallbacks.remove(callback);
+   }
+
+   @Override
+   public synchronized void reset(){
+      lineIndex = 0;
+      shStream.reset();
+   }
+}
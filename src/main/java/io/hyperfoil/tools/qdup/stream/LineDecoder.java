@@ -0,0 +1,32 @@
+package io.hyperfoil.tools.qdup.stream;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Decodes complete UTF-8 lines into a reused CharBuffer so line consumers do not need a String for every line.
+ * The CharSequence from decode is only valid until the next call to decode.
+ */
+class LineDecoder {
+
+   private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+      .onMalformedInput(CodingErrorAction.REPLACE)
+      .onUnmappableCharacter(CodingErrorAction.REPLACE);
+   private CharBuffer chars = CharBuffer.allocate(1024);
+
+   public CharSequence decode(byte[] b, int off, int len){
+      //utf-8 never decodes to more chars than bytes, even with replacement characters
+      if(chars.capacity() < len){
+         chars = CharBuffer.allocate(Math.max(len, chars.capacity() * 2));
+      }
+      chars.clear();
+      decoder.reset();
+      decoder.decode(ByteBuffer.wrap(b, off, len), chars, true);
+      decoder.flush(chars);
+      chars.flip();
+      return chars;
+   }
+}
@@ -26,6 +26,8 @@ public class LineEmittingStream extends OutputStream {
     byte buffered[] = new byte[4*1024];
 
     private List<Consumer<String>> consumers = new LinkedList<>();
+    private List<Consumer<CharSequence>> viewConsumers = new LinkedList<>();
+    private final LineDecoder decoder = new LineDecoder();
 
     public LineEmittingStream(){this(""+System.currentTimeMillis());}
     public LineEmittingStream(String name){
@@ -39,6 +41,17 @@ public class LineEmittingStream extends OutputStream {
         return consumers.remove(consumer);
     }
 
+    /**
+     * View consumers get the line as a reused CharSequence that is only valid for the duration of accept.
+     * Use toString() to keep the line.
+     */
+    public boolean addViewConsumer(Consumer<CharSequence> consumer){
+        return viewConsumers.add(consumer);
+    }
+    public boolean removeViewConsumer(Consumer<CharSequence> consumer){
+        return viewConsumers.remove(consumer);
+    }
+
     public void reset() {
         writeIndex = 0;
     }
@@ -149,9 +162,15 @@ public class LineEmittingStream extends OutputStream {
         return -1;
     }
     private void emit(byte content[], int start,int length){
-        //trips out ANSI escape sequences (such as terminal coloring)
-        String toEmit = new String(content,start,length);
+        if(consumers.isEmpty() && viewConsumers.isEmpty()){
+            return;
+        }
+        CharSequence line = decoder.decode(content,start,length);
+        for(Consumer<CharSequence> consumer : viewConsumers){
+            consumer.accept(line);
+        }
         if(!consumers.isEmpty()){
+            String toEmit = line.toString();
             for(Consumer<String> consumer : consumers){
                 consumer.accept(toEmit);
             }
@@ -1,19 +1,54 @@
 package io.hyperfoil.tools.qdup.stream;
 
-import java.io.ByteArrayOutputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 public class SessionStreams extends MultiStream {
 
+   public static final String FUSED_PROPERTY = "qdup.stream.fused";
+   public static final String OUTPUT_LIMIT_PROPERTY = "qdup.output.limit";
+   public static final int DEFAULT_OUTPUT_LIMIT = 64*1024*1024;
+
+   /**
+    * @return the most output bytes that are copied into a String, from -Dqdup.output.limit
+    */
+   public static int getOutputLimit(){
+      return Math.max(SpillingOutputStream.SEGMENT_SIZE, Integer.getInteger(OUTPUT_LIMIT_PROPERTY, DEFAULT_OUTPUT_LIMIT));
+   }
+
+   static final Map<String,byte[]> CONTROL_FILTERS = new LinkedHashMap<>();
+   static {
+      CONTROL_FILTERS.put("^C", new byte[]{0, 0, 0, 3});
+      CONTROL_FILTERS.put("echo-^C", "^C".getBytes());
+      CONTROL_FILTERS.put("^D", new byte[]{0, 0, 0, 4});
+      CONTROL_FILTERS.put("echo-^D", "^D".getBytes());
+      CONTROL_FILTERS.put("^P", new byte[]{0, 0, 0, 16});
+      CONTROL_FILTERS.put("^T", new byte[]{0, 0, 0, 20});
+      CONTROL_FILTERS.put("^X", new byte[]{0, 0, 0, 24});
+      CONTROL_FILTERS.put("^@", new byte[]{0, 0, 0});
+   }
+
+   /**
+    * @return the FusedSessionStreams if -Dqdup.stream.fused=true, otherwise the chain of streams
+    */
+   public static SessionStreams create(String name, ScheduledThreadPoolExecutor executor){
+      if(Boolean.getBoolean(FUSED_PROPERTY)){
+         return new FusedSessionStreams(name, executor);
+      }
+      return new SessionStreams(name, executor);
+   }
+
 
    public EscapeFilteredStream getEscapeFilteredStream() {
       return escapeFilteredStream;
@@ -35,7 +70,7 @@ public class SessionStreams extends MultiStream {
       return filteredStream;
    }
 
-   public ByteArrayOutputStream getShStream() {
+   public SpillingOutputStream getShStream() {
       return shStream;
    }
 
@@ -44,19 +79,27 @@ public class SessionStreams extends MultiStream {
    private SuffixStream promptStream = null;
    private LineEmittingStream lineEmittingStream = null;
    private FilteredStream filteredStream = null;
-   private ByteArrayOutputStream shStream = null;
+   private SpillingOutputStream shStream = null;
+   private volatile long commandOutputSize = 0;
 
    /* Stream hierarchy
     * escapeFilteredStream - removes bash escape sequences
     *    suffixStream - looks for substrings at the end of the write buffer (bash prompt)
     *       filteredStream - removes sequences from anywhere in the write buffer (the bash command)
     *          lineEmittingStream - sends each line (\n or \r\n) of the write buffer to listeners (watching commands)
-    *          shStream - stores all of the write buffer for a command
+    *          shStream - stores all of the write buffer for a command, spills to disk past the memory limit
     *       promptStream - watches for suffixes and sends a prompt response (Y/n, Ok?, ...)
     */
+   /**
+    * for subclasses that do not use the chain of streams, they must override every method that uses the streams
+    */
+   protected SessionStreams(String name){
+      super(name);
+   }
+
    public SessionStreams(String name, ScheduledThreadPoolExecutor executor){
       super(name);
-      shStream = new ByteArrayOutputStream();
+      shStream = new SpillingOutputStream(name);
       escapeFilteredStream = new EscapeFilteredStream(name+"-efs");
       filteredStream = new FilteredStream(name+"-fs");
       suffixStream = new SuffixStream(name+"-suffix", executor);
@@ -77,14 +120,7 @@ public class SessionStreams extends MultiStream {
       filteredStream.addStream("lines", lineEmittingStream);
       filteredStream.addStream("sh", shStream);
 
-      filteredStream.addFilter("^C", new byte[]{0, 0, 0, 3});
-      filteredStream.addFilter("echo-^C", "^C");
-      filteredStream.addFilter("^D", new byte[]{0, 0, 0, 4});
-      filteredStream.addFilter("echo-^D", "^D");
-      filteredStream.addFilter("^P", new byte[]{0, 0, 0, 16});
-      filteredStream.addFilter("^T", new byte[]{0, 0, 0, 20});
-      filteredStream.addFilter("^X", new byte[]{0, 0, 0, 24});
-      filteredStream.addFilter("^@", new byte[]{0, 0, 0});
+      CONTROL_FILTERS.forEach(filteredStream::addFilter);
    }
 
    public void write(String towrite) throws IOException {
@@ -128,10 +164,22 @@ public class SessionStreams extends MultiStream {
    public void removeLineConsumer(Consumer<String> consumer){
       lineEmittingStream.removeConsumer(consumer);
    }
+   /**
+    * the consumer gets a reused view of each line, see LineEmittingStream.addViewConsumer
+    */
+   public void addLineViewConsumer(Consumer<CharSequence> consumer){
+      lineEmittingStream.addViewConsumer(consumer);
+   }
+   public void removeLineViewConsumer(Consumer<CharSequence> consumer){
+      lineEmittingStream.removeViewConsumer(consumer);
+   }
 
    @Override
    public void setName(String name){
       super.setName(name);
+      setStageNames(name);
+   }
+   protected void setStageNames(String name){
       escapeFilteredStream.setName(name);
       filteredStream.setName(name);
       lineEmittingStream.setName(name);
@@ -143,16 +191,18 @@ public class SessionStreams extends MultiStream {
    }
    public void setTrace(String traceName) throws IOException{
       if(!hasTrace()){
-         String tDir = System.getProperty("java.io.tmpdir");
-         logger.info("streamtracing "+traceName+" to "+tDir);
-         String rawTracePath = Files.createFile(Paths.get(tDir,"qdup."+traceName+".raw.log")).toAbsolutePath().toString();
-         FileOutputStream rawTraceStream = new FileOutputStream(rawTracePath);
-         String efsTracePath = Files.createFile(Paths.get(tDir,"qdup."+traceName+".efs.log")).toAbsolutePath().toString();
-         FileOutputStream efsTraceStream = new FileOutputStream(efsTracePath);
+         FileOutputStream rawTraceStream = createTraceStream(traceName,"raw");
+         FileOutputStream efsTraceStream = createTraceStream(traceName,"efs");
          escapeFilteredStream.addStream("trace",efsTraceStream);
          addStream("trace",rawTraceStream);
       }
    }
+   protected static FileOutputStream createTraceStream(String traceName,String stage) throws IOException {
+      String tDir = System.getProperty("java.io.tmpdir");
+      logger.info("streamtracing "+traceName+"."+stage+" to "+tDir);
+      String tracePath = Files.createFile(Paths.get(tDir,"qdup."+traceName+"."+stage+".log")).toAbsolutePath().toString();
+      return new FileOutputStream(tracePath);
+   }
    public OutputStream getTrace(){
       return escapeFilteredStream.getStream("trace");
    }
@@ -205,6 +255,16 @@ public class SessionStreams extends MultiStream {
       suffixStream.addSuffix(name,prompt,replacement);
    }
 
+   public void addPromptEnvelope(String name,String start){
+      suffixStream.addEnvelope(name,start);
+   }
+   public void setPromptConfirmation(Predicate<String> confirmation){
+      suffixStream.setEnvelopeConfirmation(confirmation);
+   }
+   public String getPromptEnvelope(){
+      return suffixStream.getEnvelope();
+   }
+
    public void addPromptCallback(Consumer<String> callback){
       suffixStream.addConsumer(callback);
    }
@@ -217,22 +277,163 @@ public class SessionStreams extends MultiStream {
       shStream.reset();
    }
 
+   /**
+    * @param directory where the output of a command is spilled once it is larger than the memory limit
+    */
+   public void setSpillDirectory(Path directory){
+      getShStream().setSpillDirectory(directory);
+   }
+
+   /**
+    * @return the output of the current command, only the last -Dqdup.output.limit bytes if the output is larger
+    */
    public String currentOutput(){
-      return shStream.toString();
+      SpillingOutputStream output = getShStream();
+      synchronized (output){
+         return limitedOutput(output, 0, output.size());
+      }
+   }
+
+   /**
+    * @return the output of the current command without leading or trailing newlines and with \r\n changed to \n.
+    * The newlines are trimmed before the output is copied so only the last -Dqdup.output.limit bytes are copied into a String
+    */
+   public String commandOutput(){
+      SpillingOutputStream output = getShStream();
+      synchronized (output){
+         long start = 0;
+         long end = output.size();
+         byte[] next = new byte[1];
+         try {
+            while(end > start && output.read(end - 1, next, 0, 1) == 1 && (next[0] == '\n' || next[0] == '\r')){
+               end--;
+            }
+            while(start < end && output.read(start, next, 0, 1) == 1 && (next[0] == '\n' || next[0] == '\r')){
+               start++;
+            }
+         } catch (IOException e) {
+            logger.error(getName()+" failed to read output: "+e.getMessage(),e);
+         }
+         commandOutputSize = end - start;
+         String rtrn = limitedOutput(output, start, end);
+         return rtrn.indexOf("\r\n") < 0 ? rtrn : rtrn.replace("\r\n", "\n");
+      }
+   }
+
+   /**
+    * @return the size in bytes of the output from the last call to commandOutput, before it was limited to -Dqdup.output.limit
+    */
+   public long getCommandOutputSize(){
+      return commandOutputSize;
+   }
+
+   private String limitedOutput(SpillingOutputStream output, long start, long end){
+      int limit = getOutputLimit();
+      if(end - start > limit){
+         logger.warn("{} output is {} bytes, only using the last {}, see -D{}", getName(), end - start, limit, OUTPUT_LIMIT_PROPERTY);
+         start = end - limit;
+      }
+      return output.toString(start, (int)(end - start));
+   }
+
+   /**
+    * @return a stream over the full output of the current command, including any output spilled to disk
+    */
+   public InputStream openOutput(){
+      return getShStream().newInputStream();
+   }
+
+   /**
+    * search the full output without creating a String of the output
+    */
+   public boolean outputContains(String value){
+      return contains(openOutput(), value);
+   }
+
+   /**
+    * search the output that is still in memory without creating a String of the output
+    */
+   public boolean tailContains(String value){
+      SpillingOutputStream output = getShStream();
+      return contains(output.newInputStream(output.getMemoryStart()), value);
    }
+
+   private boolean contains(InputStream output, String value){
+      byte[] toFind = value.getBytes();
+      if(toFind.length == 0){
+         return true;
+      }
+      byte[] chunk = new byte[Math.max(SpillingOutputStream.SEGMENT_SIZE, 2*toFind.length)];
+      int kept = 0;
+      try(InputStream input = output){
+         int read;
+         while((read = input.read(chunk, kept, chunk.length - kept)) > 0){
+            int length = kept + read;
+            for(int i = 0; i <= length - toFind.length; i++){
+               int matched = 0;
+               while(matched < toFind.length && chunk[i + matched] == toFind[matched]){
+                  matched++;
+               }
+               if(matched == toFind.length){
+                  return true;
+               }
+            }
+            //keep the end of the chunk in case value spans two reads
+            kept = Math.min(length, toFind.length - 1);
+            System.arraycopy(chunk, length - kept, chunk, 0, kept);
+         }
+      }catch(IOException e){
+         logger.error(getName()+" failed to read output: "+e.getMessage(),e);
+      }
+      return false;
+   }
+
+   /**
+    * @return the last line of output without trailing newlines, starting with the newline before the line.
+    * Only looks at the output that is in memory
+    */
+   public String lastLine(){
+      SpillingOutputStream output = getShStream();
+      synchronized (output){
+         long end = output.size();
+         long start = output.getMemoryStart();
+         byte[] last = new byte[1];
+         try {
+            while(end > start && output.read(end - 1, last, 0, 1) == 1 && (last[0] == '\n' || last[0] == '\r')){
+               end--;
+            }
+         } catch (IOException e) {
+            logger.error(getName()+" failed to read output: "+e.getMessage(),e);
+         }
+         long lineStart = output.lastIndexOf((byte)'\n', end);
+         if(lineStart < 0){
+            lineStart = start;
+         }
+         return output.toString(lineStart, (int)Math.min(Integer.MAX_VALUE, end - lineStart));
+      }
+   }
+
+   /**
+    * @return the last lines of output, only looks at the output that is in memory
+    */
    public String tail(int lines){
       if(lines<=0){
          lines=1;
       }
-
-      byte[] b= shStream.toByteArray();
-      int idx = b.length;
-      while(lines > 0 && idx > 0){
-         idx--;
-         if( b[idx] == '\n' ){
+      SpillingOutputStream output = getShStream();
+      synchronized (output){
+         long size = output.size();
+         long idx = size;
+         while(lines > 0 && idx > 0){
+            long found = output.lastIndexOf((byte)'\n', idx);
+            if(found < 0){
+               idx = output.getMemoryStart();
+               break;
+            }
+            idx = found;
             lines--;
          }
+         return output.toString(idx, (int)Math.min(Integer.MAX_VALUE, size - idx));
       }
-      return new String(b,idx,b.length-(idx));
    }
 }
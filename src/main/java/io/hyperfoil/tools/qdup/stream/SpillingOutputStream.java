@@ -0,0 +1,284 @@
+package io.hyperfoil.tools.qdup.stream;
+
+import org.slf4j.ext.XLogger;
+import org.slf4j.ext.XLoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Stores the output of the current command in fixed size segments.
+ * The most recent bytes stay in memory (up to -Dqdup.output.memory bytes) and older segments are appended to a spill file
+ * that is only created once the output is larger than the memory limit.
+ * The tail of the output is always in memory so tail lookups do not depend on the size of the output.
+ */
+public class SpillingOutputStream extends OutputStream {
+   private final static XLogger logger = XLoggerFactory.getXLogger(MethodHandles.lookup().lookupClass());
+
+   public static final String MEMORY_PROPERTY = "qdup.output.memory";
+   public static final int DEFAULT_MEMORY = 8*1024*1024;
+   public static final int SEGMENT_SIZE = 64*1024;
+   //largest array the jvm will allocate for toString()
+   private static final int MAX_STRING = Integer.MAX_VALUE - 8;
+
+   public static int getMemoryLimit(){
+      return Math.max(2*SEGMENT_SIZE,Integer.getInteger(MEMORY_PROPERTY,DEFAULT_MEMORY));
+   }
+
+   private final String name;
+   private final int maxSegments;
+   private final List<byte[]> segments = new ArrayList<>();
+   private byte[] spare;//keep one segment after reset to avoid allocating for short outputs
+   private int lastLength = 0;//bytes used in the last segment
+   private long spilled = 0;//bytes in the spill file
+   private long size = 0;
+
+   private Path directory;
+   private Path spillPath;
+   private FileChannel spill;
+   private boolean spillFailed = false;
+
+   public SpillingOutputStream(String name){
+      this(name,getMemoryLimit());
+   }
+   public SpillingOutputStream(String name,int memoryLimit){
+      this.name = name;
+      this.maxSegments = Math.max(2,memoryLimit / SEGMENT_SIZE);
+   }
+
+   /**
+    * @param directory where to create the spill file, java.io.tmpdir if null
+    */
+   public synchronized void setSpillDirectory(Path directory){
+      this.directory = directory;
+   }
+   public synchronized Path getSpillPath(){
+      return spillPath;
+   }
+
+   public synchronized long size(){
+      return size;
+   }
+   public synchronized long getSpilled(){
+      return spilled;
+   }
+
+   @Override
+   public synchronized void write(int b) {
+      write(new byte[]{(byte)b},0,1);
+   }
+
+   @Override
+   public synchronized void write(byte[] b, int off, int len) {
+      while(len > 0){
+         if(segments.isEmpty() || lastLength == SEGMENT_SIZE){
+            addSegment();
+         }
+         byte[] last = segments.get(segments.size() - 1);
+         int toCopy = Math.min(len, SEGMENT_SIZE - lastLength);
+         System.arraycopy(b, off, last, lastLength, toCopy);
+         lastLength += toCopy;
+         size += toCopy;
+         off += toCopy;
+         len -= toCopy;
+      }
+   }
+
+   private void addSegment(){
+      if(segments.size() >= maxSegments && spillSegment(segments.get(0))){
+         spare = segments.remove(0);
+      }
+      segments.add(spare != null ? spare : new byte[SEGMENT_SIZE]);
+      spare = null;
+      lastLength = 0;
+   }
+
+   /**
+    * @return false if the segment could not be written and has to stay in memory
+    */
+   private boolean spillSegment(byte[] segment){
+      if(spillFailed){
+         return false;
+      }
+      try {
+         if(spill == null){
+            Path parent = directory != null ? directory : Paths.get(System.getProperty("java.io.tmpdir"));
+            Files.createDirectories(parent);
+            spillPath = Files.createTempFile(parent, "qdup." + name.replaceAll("[^a-zA-Z0-9._-]", "_") + ".", ".output");
+            spillPath.toFile().deleteOnExit();
+            spill = FileChannel.open(spillPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+         }
+         ByteBuffer toWrite = ByteBuffer.wrap(segment);
+         while(toWrite.hasRemaining()){
+            spill.write(toWrite, spilled + toWrite.position());
+         }
+         spilled += segment.length;
+         return true;
+      } catch (IOException e) {
+         logger.error("{} failed to spill output to {}, keeping output in memory: {}", name, spillPath, e.getMessage());
+         spillFailed = true;
+         return false;
+      }
+   }
+
+   /**
+    * drop the current output, the spill file is kept for the next command
+    */
+   public synchronized void reset(){
+      if(!segments.isEmpty()){
+         spare = segments.get(0);
+      }
+      segments.clear();
+      lastLength = 0;
+      size = 0;
+      spilled = 0;
+      if(spill != null){
+         try {
+            spill.truncate(0);
+         } catch (IOException e) {
+            logger.debug("{} failed to truncate {}: {}", name, spillPath, e.getMessage());
+         }
+      }
+   }
+
+   /**
+    * deletes the spill file, only the output that is still in memory is available after close
+    */
+   @Override
+   public synchronized void close(){
+      size -= spilled;
+      spilled = 0;
+      if(spill != null){
+         try {
+            spill.close();
+            Files.deleteIfExists(spillPath);
+         } catch (IOException e) {
+            logger.debug("{} failed to close {}: {}", name, spillPath, e.getMessage());
+         }
+         spill = null;
+         spillPath = null;
+      }
+   }
+
+   /**
+    * copy up to len bytes starting at position into b
+    * @return the number of bytes copied, -1 if position is at or past the end of the output
+    */
+   public synchronized int read(long position, byte[] b, int off, int len) throws IOException {
+      if(position >= size){
+         return -1;
+      }
+      len = (int)Math.min(len, size - position);
+      int read = 0;
+      while(read < len){
+         long current = position + read;
+         if(current < spilled){
+            ByteBuffer target = ByteBuffer.wrap(b, off + read, (int)Math.min(len - read, spilled - current));
+            int count = spill.read(target, current);
+            if(count <= 0){
+               throw new IOException(name + " unexpected end of " + spillPath);
+            }
+            read += count;
+         }else{
+            long memoryIndex = current - spilled;
+            int segment = (int)(memoryIndex / SEGMENT_SIZE);
+            int segmentOffset = (int)(memoryIndex % SEGMENT_SIZE);
+            int count = Math.min(len - read, SEGMENT_SIZE - segmentOffset);
+            System.arraycopy(segments.get(segment), segmentOffset, b, off + read, count);
+            read += count;
+         }
+      }
+      return read;
+   }
+
+   /**
+    * @return the position of the last occurrence of value before end that is still in memory, -1 if not found
+    */
+   public synchronized long lastIndexOf(byte value, long end){
+      end = Math.min(end, size);
+      for(long position = end - 1; position >= spilled; position--){
+         long memoryIndex = position - spilled;
+         if(segments.get((int)(memoryIndex / SEGMENT_SIZE))[(int)(memoryIndex % SEGMENT_SIZE)] == value){
+            return position;
+         }
+      }
+      return -1;
+   }
+
+   /**
+    * @return the start of the output that is kept in memory
+    */
+   public synchronized long getMemoryStart(){
+      return spilled;
+   }
+
+   public synchronized String toString(long position, int length){
+      length = (int)Math.max(0, Math.min(length, size - position));
+      byte[] rtrn = new byte[length];
+      try {
+         int read = 0;
+         while(read < length){
+            read += read(position + read, rtrn, read, length - read);
+         }
+      } catch (IOException e) {
+         logger.error("{} failed to read output from {}: {}", name, spillPath, e.getMessage());
+      }
+      return new String(rtrn);
+   }
+
+   /**
+    * @return the full output, or the last 2GB if the output is larger than a String
+    */
+   @Override
+   public synchronized String toString(){
+      if(size > MAX_STRING){
+         logger.warn("{} output is {} bytes, only returning the last {}", name, size, MAX_STRING);
+         return toString(size - MAX_STRING, MAX_STRING);
+      }
+      return toString(0, (int)size);
+   }
+
+   /**
+    * @return a stream over the output from the start, the stream ends early if the output is reset
+    */
+   public InputStream newInputStream(){
+      return newInputStream(0);
+   }
+
+   /**
+    * @return a stream over the output from start, the stream ends early if the output is reset
+    */
+   public InputStream newInputStream(long start){
+      return new InputStream() {
+         private long position = start;
+
+         @Override
+         public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == 1 ? b[0] & 0xFF : -1;
+         }
+
+         @Override
+         public int read(byte[] b, int off, int len) throws IOException {
+            if(len == 0){
+               return 0;
+            }
+            int read = SpillingOutputStream.this.read(position, b, off, len);
+            if(read > 0){
+               position += read;
+            }
+            return read;
+         }
+      };
+   }
+}
@@ -0,0 +1,138 @@
+package io.hyperfoil.tools.qdup.stream;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+
+/**
+ * Aho-Corasick automaton over a set of suffixes that is fed the stream one byte at a time.
+ * After each byte the state tells both the longest suffix that ends at the current byte (full match)
+ * and the longest prefix of any suffix that ends at the current byte (partial trailing match).
+ * Used by SuffixStream so each write is scanned once instead of once per suffix.
+ */
+class SuffixAutomaton {
+
+    private static final int ALPHABET = 256;
+
+    private final String[] names;
+    private final int[] lengths;
+    private final int[] transitions;
+    private final int[] depth;
+    private final int[] match;//index into names of the longest suffix that ends in the state, -1 if none
+
+    private int state = 0;
+
+    /**
+     * @param names suffix names in priority order, the first name wins when two suffixes have the same bytes
+     * @param suffixes bytes for each name
+     */
+    SuffixAutomaton(List<String> names, List<byte[]> suffixes){
+        this.names = names.toArray(new String[0]);
+        this.lengths = new int[this.names.length];
+        int maxStates = 1;
+        for(int i=0; i<suffixes.size(); i++){
+            lengths[i] = suffixes.get(i).length;
+            maxStates += lengths[i];
+        }
+        int[] trie = new int[maxStates * ALPHABET];
+        Arrays.fill(trie,-1);
+        int[] depth = new int[maxStates];
+        int[] match = new int[maxStates];
+        Arrays.fill(match,-1);
+        int states = 1;
+        for(int i=0; i<suffixes.size(); i++){
+            byte[] suffix = suffixes.get(i);
+            if(suffix.length == 0){//an empty suffix matches everything
+                if(match[0] < 0){
+                    match[0] = i;
+                }
+                continue;
+            }
+            int current = 0;
+            for(byte b : suffix){
+                int index = current * ALPHABET + (b & 0xFF);
+                if(trie[index] < 0){
+                    trie[index] = states;
+                    depth[states] = depth[current] + 1;
+                    states++;
+                }
+                current = trie[index];
+            }
+            if(match[current] < 0){
+                match[current] = i;
+            }
+        }
+        //breadth first to build the failure links into a complete transition table
+        int[] fail = new int[states];
+        Queue<Integer> queue = new ArrayDeque<>();
+        for(int c=0; c<ALPHABET; c++){
+            int next = trie[c];
+            if(next < 0){
+                trie[c] = 0;
+            }else{
+                fail[next] = 0;
+                queue.add(next);
+            }
+        }
+        while(!queue.isEmpty()){
+            int current = queue.poll();
+            if(match[current] < 0){
+                match[current] = match[fail[current]];
+            }
+            for(int c=0; c<ALPHABET; c++){
+                int index = current * ALPHABET + c;
+                int next = trie[index];
+                if(next < 0){
+                    trie[index] = trie[fail[current] * ALPHABET + c];
+                }else{
+                    fail[next] = trie[fail[current] * ALPHABET + c];
+                    queue.add(next);
+                }
+            }
+        }
+        this.transitions = Arrays.copyOf(trie,states * ALPHABET);
+        this.depth = Arrays.copyOf(depth,states);
+        this.match = Arrays.copyOf(match,states);
+    }
+
+    public void reset(){
+        state = 0;
+    }
+
+    public void update(byte[] b, int off, int len){
+        int current = state;
+        for(int i=off; i<off+len; i++){
+            current = transitions[current * ALPHABET + (b[i] & 0xFF)];
+        }
+        state = current;
+    }
+
+    /**
+     * @return true if a suffix ends at the last byte
+     */
+    public boolean isMatch(){
+        return match[state] >= 0;
+    }
+
+    /**
+     * @return name of the longest suffix that ends at the last byte or null
+     */
+    public String getMatchName(){
+        return isMatch() ? names[match[state]] : null;
+    }
+
+    /**
+     * @return length of the longest suffix that ends at the last byte or 0
+     */
+    public int getMatchLength(){
+        return isMatch() ? lengths[match[state]] : 0;
+    }
+
+    /**
+     * @return length of the longest prefix of any suffix that ends at the last byte
+     */
+    public int getTrailingLength(){
+        return depth[state];
+    }
+}
@@ -11,12 +11,14 @@ import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
 public class SuffixStream extends MultiStream {
     private final static XLogger logger = XLoggerFactory.getXLogger(MethodHandles.lookup().lookupClass());
     public static final int DEFAULT_DELAY = 100; //MS
     public static final int NO_DELAY = -1;
+    public static final int MAX_ENVELOPE_LENGTH = 8*1024;
 
     private class FoundRunnable implements Runnable{
         private int lastIndex;
@@ -49,7 +51,11 @@ public class SuffixStream extends MultiStream {
     private int writeIndex = 0;
     private Map<String,byte[]> suffixes;
     private Map<String,byte[]> replacements;
+    private Map<String,byte[]> envelopes;
+    private volatile String envelope;
+    private Predicate<String> envelopeConfirmation;
     private List<Consumer<String>> consumers;
+    private SuffixAutomaton automaton;
 
     private ScheduledThreadPoolExecutor executor;
     private int executorDelay = DEFAULT_DELAY;
@@ -65,6 +71,7 @@ public class SuffixStream extends MultiStream {
         buffered = new byte[20*1024];
         suffixes = new LinkedHashMap<>();
         replacements = new LinkedHashMap<>();
+        envelopes = new LinkedHashMap<>();
         consumers = new LinkedList<>();
         executor = threadPool;
         future = null;
@@ -92,6 +99,9 @@ public class SuffixStream extends MultiStream {
         if(writeIndex>0){
             superWrite(buffered,0,writeIndex);
             writeIndex=0;
+            if(automaton != null){
+                automaton.reset();
+            }
         }
     }
 
@@ -109,6 +119,8 @@ public class SuffixStream extends MultiStream {
     public void clear(){
         suffixes.clear();
         replacements.clear();
+        envelopes.clear();
+        automaton = null;
     }
     public void addSuffix(String name){
         addSuffix(name,name);
@@ -116,11 +128,55 @@ public class SuffixStream extends MultiStream {
     public void addSuffix(String name,String suffix){
         suffixes.put(name,suffix.getBytes());
         replacements.remove(name);
+        automaton = null;
     }
     public void addSuffix(String name,String suffix,String replacement){
         suffixes.put(name,suffix.getBytes());
         replacements.put(name,replacement.getBytes());
+        automaton = null;
+    }
+
+    /**
+     * @return the automaton for the current suffixes, a new automaton is built and fed the buffered bytes after the suffixes change
+     */
+    private SuffixAutomaton getAutomaton(){
+        SuffixAutomaton rtrn = automaton;
+        if(rtrn == null){
+            rtrn = new SuffixAutomaton(new ArrayList<>(suffixes.keySet()),new ArrayList<>(suffixes.values()));
+            automaton = rtrn;
+            rtrn.update(buffered,0,writeIndex);
+        }
+        return rtrn;
+    }
+
+    /**
+     * Content between the last start marker and suffix name is removed from the output when the suffix is found
+     * and is available from getEnvelope() while the consumers are called.
+     * Used to let the prompt carry values (exit code, cwd) that are not part of the command output.
+     * The envelope content cannot contain a newline and must be shorter than MAX_ENVELOPE_LENGTH.
+     */
+    public void addEnvelope(String name,String start){
+        envelopes.put(name,start.getBytes());
+    }
+    public boolean hasEnvelope(String name){
+        return envelopes.containsKey(name);
+    }
+
+    /**
+     * A suffix match whose envelope passes the confirmation is a confirmed prompt and the consumers are called
+     * without waiting for the executor delay. Matches without a confirmed envelope still use the delay.
+     */
+    public void setEnvelopeConfirmation(Predicate<String> confirmation){
+        this.envelopeConfirmation = confirmation;
     }
+
+    /**
+     * @return the envelope content from the most recent suffix match or null if the match did not have an envelope
+     */
+    public String getEnvelope(){
+        return envelope;
+    }
+
     public boolean hasSuffix(String name){
         return suffixes.containsKey(name);
     }
@@ -160,8 +216,6 @@ public class SuffixStream extends MultiStream {
             logger.error(Arrays.asList(Thread.currentThread().getStackTrace()).stream().map(Object::toString).collect(Collectors.joining("\n")));
         }
         try {
-            int trailingSuffixLength = Integer.MIN_VALUE;
-
             if (suffixes.isEmpty()) {
                 if (writeIndex > 0) {
                     superWrite(buffered, 0, writeIndex);
@@ -169,6 +223,7 @@ public class SuffixStream extends MultiStream {
                 }
                 superWrite(b, off, len);
             } else {//we are going searching for a suffix
+                SuffixAutomaton automaton = getAutomaton();
                 if (writeIndex + len > buffered.length) {
                     int needed = writeIndex + len - buffered.length;
                     byte[] newBuffer = new byte[buffered.length + needed];
@@ -179,35 +234,32 @@ public class SuffixStream extends MultiStream {
                 System.arraycopy(b, off, buffered, writeIndex, len);
                 writeIndex += len;
 
-                boolean found = false;
-                String foundName = "";
-                for (String name : suffixes.keySet()) {
-                    byte[] toFind = suffixes.get(name);
-                    int suffMatch = suffixLength(buffered, toFind, writeIndex);
-                    if (suffMatch == toFind.length) {
-                        if (!found || trailingSuffixLength < suffMatch) {//pick the longest match
-                            found = true;
-                            foundName = name;
-                            trailingSuffixLength = suffMatch;
-                        }
-                    } else if (!found && suffMatch > trailingSuffixLength) {
-                        trailingSuffixLength = suffMatch;
-                    }
-                }
+                //one pass over the new bytes finds the longest full match and the longest partial trailing match
+                automaton.update(buffered, writeIndex - len, len);
+                boolean found = automaton.isMatch();
                 if (found) {
+                    String foundName = automaton.getMatchName();
 
-                    if(executor!=null && executorDelay>=0){
+                    if(executor!=null && executorDelay>=0 && !isConfirmed(foundName)){
                         if(future!=null){
                             future.cancel(true);
                         }
                         foundRunnable.reset(foundName,writeIndex);
                         future = executor.schedule(foundRunnable, executorDelay,TimeUnit.MILLISECONDS);
                     } else {
+                        if(future!=null){
+                            future.cancel(true);
+                            future = null;
+                        }
                         foundSuffix(foundName,writeIndex);
                         callConsumers(foundName);
                     }
 
-                } else if (trailingSuffixLength > Integer.MIN_VALUE) {
+                } else {
+                    int trailingSuffixLength = Math.min(writeIndex, automaton.getTrailingLength());
+                    if(!envelopes.isEmpty()){
+                        trailingSuffixLength = Math.max(trailingSuffixLength,trailingEnvelopeLength());
+                    }
                     superWrite(buffered, 0, writeIndex - trailingSuffixLength);
                     System.arraycopy(buffered, writeIndex - trailingSuffixLength, buffered, 0, trailingSuffixLength);
                     writeIndex = trailingSuffixLength;
@@ -218,12 +270,73 @@ public class SuffixStream extends MultiStream {
             throw new RuntimeException("b.length="+(b==null?"null":b.length)+" off="+off+" len="+len+" buffered.length="+buffered.length, e);
         }
     }
+    /**
+     * @return the number of trailing bytes that could be part of an open envelope (start marker without a suffix)
+     */
+    private int trailingEnvelopeLength(){
+        int rtrn = 0;
+        for(byte[] start : envelopes.values()){
+            int startIndex = envelopeStart(start,writeIndex);
+            if(startIndex >= 0){
+                rtrn = Math.max(rtrn,writeIndex-startIndex);
+            }else{
+                int partial = suffixLength(buffered,start,writeIndex);
+                if(partial > 0){
+                    rtrn = Math.max(rtrn,partial);
+                }
+            }
+        }
+        return rtrn;
+    }
+
+    /**
+     * @return the index of the last start marker before endIndex if it is not followed by a newline, -1 otherwise
+     */
+    private int envelopeStart(byte[] start,int endIndex){
+        int limit = Math.max(0,endIndex - MAX_ENVELOPE_LENGTH);
+        for(int i = endIndex - start.length; i >= limit; i--){
+            byte b = buffered[i + start.length - 1];
+            if(b == '\n' || b == '\r'){
+                return -1;
+            }
+            boolean matching = true;
+            for(int s = 0; s < start.length && matching; s++){
+                matching = buffered[i+s] == start[s];
+            }
+            if(matching){
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean isConfirmed(String name){
+        Predicate<String> confirmation = envelopeConfirmation;
+        if(confirmation == null || !envelopes.containsKey(name)){
+            return false;
+        }
+        byte[] start = envelopes.get(name);
+        int endIndex = writeIndex - suffixes.get(name).length;
+        int startIndex = envelopeStart(start,endIndex);
+        return startIndex >= 0 && confirmation.test(new String(buffered,startIndex+start.length,endIndex-startIndex-start.length));
+    }
+
     private void foundSuffix(String name,int index){
         try {
+            envelope = null;
             if (replacements.containsKey(name)) {
                 byte replacement[] = replacements.get(name);
                 int trimLength = suffixes.get(name).length;
-                superWrite(buffered, 0, writeIndex - trimLength);
+                int writeLength = writeIndex - trimLength;
+                if(envelopes.containsKey(name)){
+                    byte[] start = envelopes.get(name);
+                    int startIndex = envelopeStart(start,writeLength);
+                    if(startIndex >= 0){
+                        envelope = new String(buffered,startIndex+start.length,writeLength-startIndex-start.length);
+                        writeLength = startIndex;
+                    }
+                }
+                superWrite(buffered, 0, writeLength);
                 if (replacement.length > 0) {
                     superWrite(replacement, 0, replacement.length);
                 }
@@ -232,6 +345,9 @@ public class SuffixStream extends MultiStream {
                 superWrite(buffered, 0, writeIndex);
                 writeIndex = 0;
             }
+            if(automaton != null){
+                automaton.reset();
+            }
         }catch(IOException e){
             logger.error(e.getMessage(),e);
         }
@@ -0,0 +1,291 @@
+package io.hyperfoil.tools.qdup;
+
+import io.hyperfoil.tools.qdup.cmd.Cmd;
+import io.hyperfoil.tools.qdup.cmd.SpyContext;
+import org.junit.Test;
+
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CoordinatorTest {
+
+    /**
+     * counts next and skip instead of recording the last output
+     */
+    private static class CountingContext extends SpyContext {
+        private final AtomicInteger nextCount;
+        private final AtomicInteger skipCount;
+        private final ScheduledExecutorService scheduler;
+
+        CountingContext(Coordinator coordinator,AtomicInteger nextCount,AtomicInteger skipCount,ScheduledExecutorService scheduler){
+            super(null,new State(""),coordinator);
+            this.nextCount = nextCount;
+            this.skipCount = skipCount;
+            this.scheduler = scheduler;
+        }
+        @Override
+        public void next(String output){
+            nextCount.incrementAndGet();
+        }
+        @Override
+        public void skip(String output){
+            skipCount.incrementAndGet();
+        }
+        @Override
+        public void schedule(Runnable runnable, long delayMs){
+            scheduler.schedule(runnable,delayMs,TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Test(timeout = 60_000)
+    public void concurrent_signal_releasesEveryWaiterOnce() throws InterruptedException {
+        int scripts = 400;
+        int signals = 20;
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+        for(int round = 0; round < 20; round++){
+            Coordinator coordinator = new Coordinator(new Globals());
+            for(int s = 0; s < signals; s++){
+                coordinator.setSignal("signal-"+s,scripts);
+            }
+            AtomicInteger next = new AtomicInteger();
+            AtomicInteger skip = new AtomicInteger();
+            CountDownLatch done = new CountDownLatch(scripts);
+            CountDownLatch start = new CountDownLatch(1);
+            for(int i = 0; i < scripts; i++){
+                executor.submit(()->{
+                    try {
+                        start.await();
+                        for(int s = 0; s < signals; s++){
+                            String name = "signal-"+s;
+                            //every script waits on the signal then signals it, the last signal releases all the waiters
+                            coordinator.waitFor(name, Cmd.NO_OP(), new CountingContext(coordinator,next,skip,null), "");
+                            coordinator.signal(name);
+                            coordinator.increase("signalled");
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done.countDown();
+                    }
+                });
+            }
+            start.countDown();
+            assertTrue("scripts should finish",done.await(30,TimeUnit.SECONDS));
+            assertEquals("round "+round+" every waiter should be released once",scripts*signals,next.get());
+            assertEquals(0,skip.get());
+            assertEquals(scripts*signals,coordinator.getCounter("signalled"));
+            for(int s = 0; s < signals; s++){
+                assertEquals(0,coordinator.getSignalCount("signal-"+s));
+                assertEquals(0,coordinator.getWaitCount("signal-"+s));
+            }
+            assertEquals(signals,coordinator.getLatchTimes().size());
+        }
+        executor.shutdown();
+    }
+
+    @Test(timeout = 10_000)
+    public void waitFor_timeoutSkips() throws InterruptedException {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        Coordinator coordinator = new Coordinator(new Globals());
+        coordinator.setSignal("never",1);
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger skip = new AtomicInteger();
+        coordinator.waitFor("never", Cmd.NO_OP(), new CountingContext(coordinator,next,skip,scheduler), "", 50, TimeUnit.MILLISECONDS);
+        assertEquals(1,coordinator.getWaitCount("never"));
+        while(skip.get() == 0){
+            Thread.sleep(10);
+        }
+        assertEquals("timeout should remove the waiter",0,coordinator.getWaitCount("never"));
+        coordinator.signal("never");
+        assertEquals("signal after the timeout should not call next",0,next.get());
+        assertEquals(1,skip.get());
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void waitFor_signalBeforeTimeout(){
+        List<Runnable> scheduled = new ArrayList<>();
+        Coordinator coordinator = new Coordinator(new Globals());
+        coordinator.setSignal("soon",1);
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger skip = new AtomicInteger();
+        coordinator.waitFor("soon", Cmd.NO_OP(), new CountingContext(coordinator,next,skip,null){
+            @Override
+            public void schedule(Runnable runnable, long delayMs){
+                scheduled.add(runnable);
+            }
+        }, "", 1, TimeUnit.MINUTES);
+        coordinator.signal("soon");
+        scheduled.forEach(Runnable::run);
+        assertEquals(1,next.get());
+        assertEquals("timeout after the signal should not skip",0,skip.get());
+    }
+
+    @Test(timeout = 30_000)
+    public void server_signalAndCountersAreShared() throws Exception {
+        CoordinatorServer server = new CoordinatorServer(0);
+        server.start();
+        CoordinatorClient clientA = new CoordinatorClient("localhost",server.getPort());
+        CoordinatorClient clientB = new CoordinatorClient("localhost",server.getPort());
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            Coordinator first = new Coordinator(new Globals());
+            Coordinator second = new Coordinator(new Globals());
+            first.connect(clientA,executor);
+            second.connect(clientB,executor);
+            //both processes set the signal counts from the same run config
+            first.initSignal("ready",2);
+            second.initSignal("ready",2);
+            assertEquals(2,second.getSignalCount("ready"));
+
+            AtomicInteger next = new AtomicInteger();
+            AtomicInteger skip = new AtomicInteger();
+            second.waitFor("ready", Cmd.NO_OP(), new CountingContext(second,next,skip,null), "");
+            assertEquals(1,second.getWaitCount("ready"));
+            first.signal("ready");
+            assertEquals("one signal should not release the waiter",0,next.get());
+            first.signal("ready");
+            while(next.get() == 0){
+                Thread.sleep(10);
+            }
+            assertEquals("signals from the other process release the waiter once",1,next.get());
+            assertEquals(0,second.getWaitCount("ready"));
+            assertTrue(second.getLatchTimes().containsKey("ready"));
+
+            first.initSignal("ready",2);
+            assertEquals("initSignal should not reset a reached signal",0,first.getSignalCount("ready"));
+
+            assertEquals(1,first.increase("hosts"));
+            assertEquals(2,second.increase("hosts"));
+            assertEquals(2,first.getCounter("hosts"));
+            assertEquals(1,second.decrease("hosts",0));
+            assertEquals(Integer.valueOf(1),first.getCounters().get("hosts"));
+
+            //a process that connects late gets the current signals
+            Coordinator late = new Coordinator(new Globals());
+            late.connect(new CoordinatorClient("localhost",server.getPort()),executor);
+            assertTrue(late.hasSignal("ready"));
+            assertEquals(0,late.getSignalCount("ready"));
+        } finally {
+            clientA.close();
+            clientB.close();
+            executor.shutdownNow();
+            server.stop();
+        }
+    }
+
+    @Test(timeout = 30_000)
+    public void server_stalledConnectionDoesNotBlockOthers() throws Exception {
+        CoordinatorServer server = new CoordinatorServer(0);
+        server.start();
+        //connects but never reads the events
+        Socket stalled = new Socket("localhost",server.getPort());
+        CoordinatorClient client = new CoordinatorClient("localhost",server.getPort());
+        try {
+            StringBuilder name = new StringBuilder();
+            while(name.length() < 10_000){
+                name.append("signal");
+            }
+            //enough events to fill the socket buffers of the stalled connection
+            for(int i = 0; i < 2_000; i++){
+                client.setSignal(name.toString()+i,1,false);
+            }
+            assertEquals(0,client.getCounter("done"));
+        } finally {
+            client.close();
+            stalled.close();
+            server.stop();
+        }
+    }
+
+    @Test(timeout = 30_000)
+    public void server_idleOnceEveryProcessWaits() throws Exception {
+        CoordinatorServer server = new CoordinatorServer(0);
+        server.start();
+        CoordinatorClient clientA = new CoordinatorClient("localhost",server.getPort());
+        CoordinatorClient clientB = new CoordinatorClient("localhost",server.getPort());
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            Coordinator first = new Coordinator(new Globals());
+            Coordinator second = new Coordinator(new Globals());
+            first.connect(clientA,executor);
+            second.connect(clientB,executor);
+            first.initSignal("ready",1);
+            first.reportIdle(true);
+            Thread.sleep(200);
+            assertFalse("one process waiting is not enough",first.takeAllIdle());
+
+            //a signal after the report means the reports are out of date
+            second.signal("ready");
+            //let the waiters for the signal event run before the report
+            Thread.sleep(200);
+            second.reportIdle(true);
+            Thread.sleep(200);
+            assertFalse("the first process reported before the last signal",first.takeAllIdle());
+            assertFalse(second.takeAllIdle());
+
+            first.reportIdle(false);
+            first.reportIdle(true);
+            while(!first.takeAllIdle()){
+                Thread.sleep(10);
+            }
+            while(!second.takeAllIdle()){
+                Thread.sleep(10);
+            }
+            assertFalse("the idle event is only taken once",first.takeAllIdle());
+        } finally {
+            clientA.close();
+            clientB.close();
+            executor.shutdownNow();
+            server.stop();
+        }
+    }
+
+    @Test(timeout = 30_000)
+    public void server_observerCanSignal() throws Exception {
+        CoordinatorServer server = new CoordinatorServer(0);
+        server.start();
+        CoordinatorClient clientA = new CoordinatorClient("localhost",server.getPort());
+        CoordinatorClient clientB = new CoordinatorClient("localhost",server.getPort());
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            Coordinator first = new Coordinator(new Globals());
+            Coordinator second = new Coordinator(new Globals());
+            first.connect(clientA,executor);
+            second.connect(clientB,executor);
+            first.initSignal("ready",1);
+            first.initSignal("done",1);
+            //an on-signal watcher that signals makes a request while handling the event from the server
+            second.addObserver(name->{
+                if("ready".equals(name)){
+                    second.signal("done");
+                }
+            });
+            AtomicInteger next = new AtomicInteger();
+            AtomicInteger skip = new AtomicInteger();
+            first.waitFor("done", Cmd.NO_OP(), new CountingContext(first,next,skip,null), "");
+            first.signal("ready");
+            while(next.get() == 0){
+                Thread.sleep(10);
+            }
+            assertEquals("the signal from the observer should release the waiter",1,next.get());
+            assertEquals(0,second.getSignalCount("done"));
+        } finally {
+            clientA.close();
+            clientB.close();
+            executor.shutdownNow();
+            server.stop();
+        }
+    }
+}
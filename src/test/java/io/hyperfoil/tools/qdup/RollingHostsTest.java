@@ -0,0 +1,143 @@
+package io.hyperfoil.tools.qdup;
+
+import io.hyperfoil.tools.qdup.cmd.Cmd;
+import io.hyperfoil.tools.qdup.cmd.Dispatcher;
+import io.hyperfoil.tools.qdup.cmd.ScriptContext;
+import io.hyperfoil.tools.qdup.config.RunConfigBuilder;
+import io.hyperfoil.tools.yaup.time.SystemTimer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RollingHostsTest {
+
+    private Dispatcher dispatcher;
+    private Run run;
+
+    @Before
+    public void createRun() throws IOException {
+        dispatcher = new Dispatcher();
+        run = new Run(Files.createTempDirectory("qdup-rolling").toString(), new RunConfigBuilder().buildConfig(), dispatcher);
+    }
+    @After
+    public void shutdown(){
+        //the run was never started, do not let it move to the next stage when the dispatcher stops
+        dispatcher.removeDispatchObserver(run);
+        dispatcher.shutdown();
+    }
+
+    private static List<Host> hosts(int count){
+        List<Host> rtrn = new ArrayList<>();
+        for(int i=0; i<count; i++){
+            rtrn.add(new Host("user","host"+i));
+        }
+        return rtrn;
+    }
+
+    private static void await(String message,BooleanSupplier condition) throws InterruptedException {
+        long end = System.currentTimeMillis() + 10_000;
+        while(!condition.getAsBoolean()){
+            assertTrue(message,System.currentTimeMillis() < end);
+            Thread.sleep(5);
+        }
+    }
+
+    /**
+     * add a fake connect for each script on each host that tracks a context instead of opening a session
+     */
+    private static void addConnects(RollingHosts rolling,List<Host> hosts,int scripts,List<Host> admitted,Queue<ScriptContext> started,AtomicInteger active,AtomicInteger maxActive){
+        for(int script=0; script<scripts; script++){
+            for(Host host : hosts){
+                rolling.add(host,()->{
+                    synchronized (admitted){
+                        if(!admitted.contains(host)){
+                            admitted.add(host);
+                            maxActive.accumulateAndGet(active.incrementAndGet(),Math::max);
+                        }
+                    }
+                    ScriptContext context = new ScriptContext(null,new State(""),null,new SystemTimer("test"),Cmd.NO_OP(),false);
+                    rolling.track(context,host);
+                    started.add(context);
+                    return true;
+                });
+            }
+        }
+    }
+
+    @Test
+    public void limits_concurrent_hosts() throws InterruptedException {
+        List<Host> hosts = hosts(5);
+        List<Host> admitted = Collections.synchronizedList(new ArrayList<>());
+        Queue<ScriptContext> started = new ConcurrentLinkedQueue<>();
+        AtomicInteger active = new AtomicInteger();
+        AtomicInteger maxActive = new AtomicInteger();
+        RollingHosts rolling = new RollingHosts(run,"role",2);
+        addConnects(rolling,hosts,1,admitted,started,active,maxActive);
+
+        rolling.firstWave().forEach(connect->{
+            try {
+                connect.call();
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        assertEquals("first wave should only connect 2 hosts",hosts.subList(0,2),admitted);
+
+        while(!started.isEmpty()){
+            ScriptContext stopping = started.poll();
+            active.decrementAndGet();
+            int admittedBefore = admitted.size();
+            rolling.onStop(stopping);
+            if(admittedBefore < hosts.size()){
+                //pending is checked first, the connect adds the script before it stops being pending
+                assertTrue("the stage should not run out of scripts between waves",dispatcher.hasPendingContexts() || !started.isEmpty());
+                await("stopping a host should connect the next host",()->admitted.size() == admittedBefore + 1 && !dispatcher.hasPendingContexts());
+            }
+        }
+        assertEquals("hosts should be admitted in order",hosts,admitted);
+        assertEquals("at most 2 hosts should run at once",2,maxActive.get());
+    }
+
+    @Test
+    public void waits_for_every_script_on_a_host() throws InterruptedException {
+        List<Host> hosts = hosts(3);
+        List<Host> admitted = Collections.synchronizedList(new ArrayList<>());
+        Queue<ScriptContext> started = new ConcurrentLinkedQueue<>();
+        AtomicInteger active = new AtomicInteger();
+        AtomicInteger maxActive = new AtomicInteger();
+        RollingHosts rolling = new RollingHosts(run,"role",1);
+        addConnects(rolling,hosts,2,admitted,started,active,maxActive);
+
+        rolling.firstWave().forEach(connect->{
+            try {
+                connect.call();
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        assertEquals(1,admitted.size());
+        assertEquals("both scripts on the first host should start",2,started.size());
+
+        rolling.onStop(started.poll());
+        assertEquals("the next host should wait for the other script on the first host",1,admitted.size());
+        active.decrementAndGet();
+        rolling.onStop(started.poll());
+        await("the next host should connect once both scripts stopped",()->admitted.size() == 2 && !dispatcher.hasPendingContexts());
+        assertEquals(hosts.subList(0,2),admitted);
+        assertEquals("both scripts on the second host should start",2,started.size());
+        assertEquals(1,maxActive.get());
+    }
+}
@@ -27,6 +27,102 @@ public class StateTest extends SshTestBase{
         assertTrue(found);
     }
     @Test
+    public void get_miss_then_set_in_parent(){
+        State run = new State(State.RUN_PREFIX);
+        State host = run.addChild("host",State.HOST_PREFIX);
+        State script = host.addChild("script",null);
+        assertNull(script.get("foo.bar"));
+        assertFalse(script.has("foo.bar"));
+        run.set("foo.bar","value");
+        assertEquals("a set in a parent should replace the cached miss","value",script.get("foo.bar"));
+        assertTrue(script.has("foo.bar"));
+    }
+    @Test
+    public void get_after_remove(){
+        State state = new State(State.RUN_PREFIX);
+        state.set("foo","value");
+        assertEquals("value",state.get("foo"));
+        state.remove("foo");
+        assertNull(state.get("foo"));
+        state.set("foo","other");
+        assertEquals("other",state.get("foo"));
+    }
+    @Test
+    public void get_nested_change_without_set(){
+        State state = new State(State.RUN_PREFIX);
+        state.set("foo",Json.fromString("{\"bar\":\"value\"}"));
+        assertNull(state.get("foo.missing"));
+        ((Json)state.get("foo")).set("missing","found");
+        assertEquals("a change inside a value is not seen by the State","found",state.get("foo.missing"));
+    }
+    @Test
+    public void get_dotted_path_in_array(){
+        State state = new State(State.RUN_PREFIX);
+        state.set("foo",Json.fromString("{\"list\":[{\"name\":\"first\"}]}"));
+        assertEquals("first",state.get("foo.list[0].name"));
+        assertNull(state.get("foo.list.0"));
+    }
+    @Test
+    public void set_concurrent_run_and_host_keys() throws InterruptedException {
+        State run = new State(State.RUN_PREFIX);
+        int hostCount = 8;
+        int keyCount = 500;
+        List<Thread> threads = new ArrayList<>();
+        for(int h=0; h<hostCount; h++){
+            State host = run.addChild("host"+h,State.HOST_PREFIX);
+            State script = host.addChild("script",null);
+            int hostIndex = h;
+            threads.add(new Thread(()->{
+                for(int k=0; k<keyCount; k++){
+                    script.set("RUN.run.host"+hostIndex+".key"+k,"value"+k);
+                    script.set("HOST.key"+k,"value"+k);
+                    script.get("RUN.run.host"+hostIndex);
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        for(Thread thread : threads){
+            thread.join();
+        }
+        for(int h=0; h<hostCount; h++){
+            assertEquals("every RUN. write should be kept",keyCount,((Json)run.get("run.host"+h)).size());
+            assertEquals(keyCount,run.getChild("host"+h).getKeys().size());
+        }
+    }
+    @Test
+    public void targetOf(){
+        State run = new State(State.RUN_PREFIX);
+        State host = run.addChild("host",State.HOST_PREFIX);
+        State script = host.addChild("script",null);
+        assertSame(run,script.targetOf("RUN.foo"));
+        assertSame(host,script.targetOf("HOST.foo"));
+        assertSame(script,script.targetOf("foo"));
+        assertSame(host,run.targetOf("host.foo"));
+    }
+    @Test
+    public void clone_changes_do_not_leak(){
+        State run = new State(State.RUN_PREFIX);
+        State script = run.addChild("host",State.HOST_PREFIX).addChild("script",null);
+        script.set("foo.bar","original");
+        script.set("list","[1,2]");
+        State clone = script.clone();
+        assertEquals("original",clone.get("foo.bar"));
+
+        clone.set("foo.bar","clone");
+        clone.set("foo.biz","clone");
+        clone.remove("list");
+        assertEquals("original",script.get("foo.bar"));
+        assertNull(script.get("foo.biz"));
+        assertTrue(script.has("list"));
+
+        script.set("foo.buz","original");
+        assertNull(clone.get("foo.buz"));
+        assertEquals("clone",clone.get("foo.bar"));
+
+        clone.set("RUN.shared","value");
+        assertEquals("parents are still shared","value",script.get("RUN.shared"));
+    }
+    @Test
     public void has_jsonpath_search_missing(){
         State s = new State("");
         s.set("key",Json.fromString("[ {\"key\":\"uno-uno\",\"value\":\"one\"}, {\"key\":\"dos-dos\",\"value\":\"two\"}]"));
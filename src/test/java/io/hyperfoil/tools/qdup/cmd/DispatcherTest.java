@@ -0,0 +1,54 @@
+package io.hyperfoil.tools.qdup.cmd;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DispatcherTest {
+
+    private static boolean supportsVirtualThreads(){
+        try {
+            Thread.class.getMethod("ofVirtual");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    @Test
+    public void virtualThreads_blockingTasksDoNotStall() throws InterruptedException {
+        ExecutorService executor = Dispatcher.newVirtualThreadExecutor();
+        if(!supportsVirtualThreads()){
+            assertNull("expect null without virtual thread support",executor);
+            return;
+        }
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1);
+        Dispatcher dispatcher = new Dispatcher(executor,scheduler);
+        int count = 10_000;
+        CountDownLatch started = new CountDownLatch(count);
+        CountDownLatch release = new CountDownLatch(1);
+        for(int i=0; i<count; i++){
+            dispatcher.submit(()->{
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        }
+        try {
+            assertTrue("every blocked task should get a thread",started.await(30, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+            executor.shutdown();
+            scheduler.shutdown();
+        }
+    }
+}
@@ -9,8 +9,10 @@ import io.hyperfoil.tools.qdup.SshTestBase;
 
 import java.util.HashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
@@ -55,4 +57,33 @@ public class ExitCodeTest extends SshTestBase {
         assertTrue("imlicit called",implicitCalled.get());
         assertTrue("explicit called",explicitCalled.get());
     }
+
+    @Test
+    public void previous_exit_code_is_preserved(){
+        AtomicReference<String> previous = new AtomicReference<>();
+        Script runScript = new Script("run-exit");
+        runScript.then(Cmd.sh("false"));
+        runScript.then(Cmd.sh("echo $?")
+            .then(Cmd.code((input,state)->{
+                previous.set(input);
+                return Result.next(input);
+            }))
+        );
+
+        RunConfigBuilder builder = getBuilder();
+
+        builder.addScript(runScript);
+        builder.addHostAlias("local",getHost().toString());
+        builder.addHostToRole("role","local");
+        builder.addRoleRun("role","run-exit",new HashMap<>());
+
+        RunConfig config = builder.buildConfig(Parser.getInstance());
+        assertFalse("unexpected errors:\n"+config.getErrorStrings().stream().collect(Collectors.joining("\n")),config.hasErrors());
+
+        Dispatcher dispatcher = new Dispatcher();
+        Run run = new Run(tmpDir.toString(),config,dispatcher);
+        run.run();
+
+        assertEquals("echo $? should print the exit code of the previous sh","1",previous.get());
+    }
 }
@@ -0,0 +1,83 @@
+package io.hyperfoil.tools.qdup.cmd;
+
+import io.hyperfoil.tools.yaup.json.Json;
+import io.hyperfoil.tools.yaup.json.graaljs.JsException;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class JsEvaluatorTest {
+
+    @Test
+    public void repeated_const(){
+        for(int i=0; i<3; i++){
+            assertEquals(2L, ((Number)JsEvaluator.eval("const x = 1; x + 1")).longValue());
+        }
+    }
+
+    @Test
+    public void globals_do_not_leak(){
+        JsEvaluator.eval("leaked = 'yes'");
+        assertEquals("undefined",JsEvaluator.eval("typeof leaked"));
+    }
+
+    @Test
+    public void let_does_not_leak(){
+        assertEquals("leak",JsEvaluator.eval("let y='leak'; y"));
+        assertEquals("undefined",JsEvaluator.eval("typeof y"));
+    }
+
+    @Test
+    public void var_and_function_do_not_leak(){
+        assertEquals(3L, ((Number)JsEvaluator.eval("var v = 1; function three(){ return 3; } three()")).longValue());
+        assertEquals("undefined",JsEvaluator.eval("typeof v"));
+        assertEquals("undefined",JsEvaluator.eval("typeof three"));
+    }
+
+    @Test
+    public void contexts_are_reused(){
+        JsEvaluator.eval("let reused = 1; reused");
+        int created = JsEvaluator.getCreatedCount();
+        for(int i=0; i<5; i++){
+            JsEvaluator.eval("let reused = 1; reused");
+        }
+        assertEquals("evaluations that do not change globals should reuse the pooled context",created,JsEvaluator.getCreatedCount());
+    }
+
+    @Test
+    public void prototype_does_not_leak(){
+        JsEvaluator.eval("Array.prototype.first = function(){ return this[0]; }; [1].first()");
+        assertEquals("undefined",JsEvaluator.eval("typeof [].first"));
+    }
+
+    @Test
+    public void global_map_values(){
+        Map<Object,Object> globals = new HashMap<>();
+        globals.put("FOO","foo");
+        assertEquals("FOO",JsEvaluator.eval("FOO.toUpperCase()",globals,Collections.emptyList()));
+        assertEquals("global values should not outlive the evaluation","undefined",JsEvaluator.eval("typeof FOO"));
+    }
+
+    @Test
+    public void snippets_loaded(){
+        Object rtrn = JsEvaluator.eval("double(2)",Collections.emptyMap(),Arrays.asList("function double(x){ return x * 2; }"));
+        assertEquals(4L,((Number)rtrn).longValue());
+    }
+
+    @Test
+    public void function_with_arguments(){
+        Json state = Json.fromString("{\"foo\":\"bar\"}");
+        Object rtrn = JsEvaluator.eval("(input,state)=>input+state.foo","foo",state);
+        assertEquals("foobar",rtrn);
+    }
+
+    @Test(expected = JsException.class)
+    public void error_throws(){
+        JsEvaluator.eval("(input)=>{ throw new Error('fail'); }","input");
+    }
+}
@@ -0,0 +1,85 @@
+package io.hyperfoil.tools.qdup.cmd;
+
+import io.hyperfoil.tools.yaup.PopulatePatternException;
+import io.hyperfoil.tools.yaup.StringUtil;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class PatternTemplateTest {
+
+    private static Map<Object,Object> values(){
+        Map<Object,Object> rtrn = new HashMap<>();
+        rtrn.put("FOO","foo");
+        rtrn.put("BAR","bar");
+        rtrn.put("EMPTY","");
+        rtrn.put("NESTED","${{FOO}}-nested");
+        return rtrn;
+    }
+
+    private static void assertSameAsPopulatePattern(String input) throws PopulatePatternException {
+        Map<Object,Object> map = values();
+        assertEquals(input,StringUtil.populatePattern(input,map),PatternTemplate.get(input).populate(map));
+    }
+
+    @Test
+    public void get_cached(){
+        PatternTemplate first = PatternTemplate.get("echo ${{FOO}}");
+        assertSame("should reuse the parsed template",first,PatternTemplate.get("echo ${{FOO}}"));
+        assertNotSame("different syntax should not share the template",first,PatternTemplate.get("echo ${{FOO}}","#{{",":","}}","="));
+    }
+
+    @Test
+    public void simple_references() throws PopulatePatternException {
+        PatternTemplate template = PatternTemplate.get("echo ${{FOO}} and ${{ BAR }}!");
+        assertTrue(template.isSimple());
+        assertEquals("echo foo and bar!",template.populate(values()));
+    }
+
+    @Test
+    public void no_references() throws PopulatePatternException {
+        PatternTemplate template = PatternTemplate.get("echo foo");
+        assertFalse(template.hasReferences());
+        assertEquals("echo foo",template.populate(values()));
+    }
+
+    @Test
+    public void javascript_simple_without_separator(){
+        assertTrue(PatternTemplate.get("${{= 1 + 2}}").isSimple());
+        assertFalse("separator",PatternTemplate.get("${{= true ? 1 : 2}}").isSimple());
+        assertFalse("javascript without the prefix",PatternTemplate.get("${{FOO+BAR}}").isSimple());
+        assertFalse("nested",PatternTemplate.get("${{FOO:${{BAR}}}}").isSimple());
+    }
+
+    @Test
+    public void javascript_same_as_populatePattern() throws PopulatePatternException {
+        assertSameAsPopulatePattern("sum=${{= 1 + 2}}");
+        assertSameAsPopulatePattern("${{= FOO.toUpperCase() }}-${{BAR}}");
+    }
+
+    @Test
+    public void same_as_populatePattern() throws PopulatePatternException {
+        assertSameAsPopulatePattern("echo ${{FOO}}");
+        assertSameAsPopulatePattern("${{FOO}}${{BAR}}");
+        assertSameAsPopulatePattern("${{MISSING:default}} ${{FOO:default}}");
+        assertSameAsPopulatePattern("${{EMPTY:default}}");
+        assertSameAsPopulatePattern("[${{EMPTY}}]");
+        assertSameAsPopulatePattern("${{NESTED}}");
+        assertSameAsPopulatePattern("${{MISSING:${{FOO}}}}");
+        assertSameAsPopulatePattern("${{=\"${{FOO}}\".toUpperCase()}}");
+    }
+
+    @Test
+    public void missing_throws_with_result(){
+        String input = "echo ${{FOO}} ${{MISSING}}";
+        try {
+            PatternTemplate.get(input).populate(values());
+            fail("missing value without a default should throw");
+        } catch (PopulatePatternException e) {
+            assertEquals("echo foo ${{MISSING}}",e.getResult());
+        }
+    }
+}
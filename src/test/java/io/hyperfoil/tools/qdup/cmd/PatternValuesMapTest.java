@@ -1,5 +1,7 @@
 package io.hyperfoil.tools.qdup.cmd;
 
+import io.hyperfoil.tools.qdup.Coordinator;
+import io.hyperfoil.tools.qdup.Globals;
 import io.hyperfoil.tools.qdup.State;
 import io.hyperfoil.tools.yaup.PopulatePatternException;
 import io.hyperfoil.tools.yaup.StringUtil;
@@ -72,6 +74,38 @@ public class PatternValuesMapTest {
 
         assertEquals("should find timestamps",input,response);
     }
+    @Test
+    public void qdup_global_state_found(){
+        Cmd cmd = Cmd.sh("ls");
+        State state = new State(State.RUN_PREFIX);
+        state.set("foo",Json.fromString("{\"bar\":\"value\",\"list\":[{\"name\":\"first\"}]}"));
+        state.addChild("child",null).set("key","childValue");
+        Cmd.Ref ref = new Cmd.Ref(cmd);
+
+        PatternValuesMap map = new PatternValuesMap(cmd,state,null,new Json(false),ref);
+
+        assertEquals("value",map.get(PatternValuesMap.QDUP_GLOBAL+".state.foo.bar"));
+        assertEquals("childValue",map.get(PatternValuesMap.QDUP_GLOBAL+".state.child.key"));
+        assertEquals("first",map.get(PatternValuesMap.QDUP_GLOBAL+".state.foo.list[0].name"));
+        assertTrue(map.get(PatternValuesMap.QDUP_GLOBAL+".state.foo") instanceof Json);
+        assertNull(map.get(PatternValuesMap.QDUP_GLOBAL+".state.foo.bar.missing"));
+        assertNull(map.get(PatternValuesMap.QDUP_GLOBAL+".state.missing"));
+    }
+    @Test
+    public void qdup_global_signals_and_counters(){
+        Cmd cmd = Cmd.sh("ls");
+        State state = new State(State.RUN_PREFIX);
+        Coordinator coordinator = new Coordinator(new Globals());
+        coordinator.setSignal("ready",2);
+        coordinator.setCounter("count",3);
+        Cmd.Ref ref = new Cmd.Ref(cmd);
+
+        PatternValuesMap map = new PatternValuesMap(cmd,state,coordinator,new Json(false),ref);
+
+        assertEquals(2L,((Number)map.get(PatternValuesMap.QDUP_GLOBAL+".signals.ready")).longValue());
+        assertEquals(3L,((Number)map.get(PatternValuesMap.QDUP_GLOBAL+".counters.count")).longValue());
+        assertNull(map.get(PatternValuesMap.QDUP_GLOBAL+".signals.missing"));
+    }
 
 
     @Test
@@ -3,6 +3,8 @@ package io.hyperfoil.tools.qdup.cmd;
 import io.hyperfoil.tools.qdup.Profiles;
 import io.hyperfoil.tools.qdup.Run;
 import io.hyperfoil.tools.qdup.State;
+import io.hyperfoil.tools.qdup.cmd.impl.Echo;
+import io.hyperfoil.tools.qdup.cmd.impl.SetState;
 import io.hyperfoil.tools.qdup.config.RunConfig;
 import io.hyperfoil.tools.qdup.config.RunConfigBuilder;
 import io.hyperfoil.tools.qdup.config.yaml.Parser;
@@ -10,9 +12,13 @@ import org.junit.Test;
 import io.hyperfoil.tools.qdup.SshTestBase;
 
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 import static org.junit.Assert.assertEquals;
@@ -184,4 +190,57 @@ public class ScriptContextTest extends SshTestBase {
         context.run();
         assertEquals("expect "+count+" updates",count,updates.size());
     }
+
+    @Test
+    public void watchers_finish_before_next(){
+        int count=100;
+        Cmd toRun = new UpdateCmd(count);
+        List<String> lines = Collections.synchronizedList(new LinkedList<>());
+        AtomicInteger seenByNext = new AtomicInteger(-1);
+        CountDownLatch latch = new CountDownLatch(1);
+        toRun.watch(Cmd.code((input, state) -> {
+            lines.add(input);
+            return Result.next(input);
+        }));
+        toRun.then(Cmd.code((input, state) -> {
+            seenByNext.set(lines.size());
+            latch.countDown();
+            return Result.next(input);
+        }));
+        ScriptContext context = getContext(toRun);
+        context.run();
+        try {
+            assertTrue("next command should run",latch.await(5, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        assertEquals("watchers should see every line before the next command",count,seenByNext.get());
+        for(int i=0; i<count; i++){
+            assertEquals("lines should stay in order",""+i,lines.get(i));
+        }
+    }
+
+    @Test
+    public void inline_commands_finish(){
+        int count=100;
+        Cmd toRun = new SetState("inline","0");
+        Cmd tail = toRun;
+        for(int i=0; i<count; i++){
+            Cmd echo = new Echo();
+            tail.then(echo);
+            tail = echo;
+        }
+        CountDownLatch latch = new CountDownLatch(1);
+        tail.then(Cmd.code((input, state) -> {
+            latch.countDown();
+            return Result.next(input);
+        }));
+        ScriptContext context = getContext(toRun);
+        context.run();
+        try {
+            assertTrue("expect all "+count+" inline commands to run",latch.await(5, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
 }
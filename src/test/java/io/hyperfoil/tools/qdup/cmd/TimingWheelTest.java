@@ -0,0 +1,52 @@
+package io.hyperfoil.tools.qdup.cmd;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TimingWheelTest {
+
+    @Test
+    public void schedule_runsInDeadlineOrder() throws InterruptedException {
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1);
+        TimingWheel wheel = new TimingWheel(scheduler,Runnable::run,1,TimeUnit.MILLISECONDS,8);
+        List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch latch = new CountDownLatch(3);
+        long start = System.nanoTime();
+        //longer than the wheel so the task has to wait for later rounds
+        wheel.schedule(()->{order.add(3);latch.countDown();},60,TimeUnit.MILLISECONDS);
+        wheel.schedule(()->{order.add(1);latch.countDown();},5,TimeUnit.MILLISECONDS);
+        wheel.schedule(()->{order.add(2);latch.countDown();},30,TimeUnit.MILLISECONDS);
+        assertTrue("expect all timeouts to run",latch.await(5,TimeUnit.SECONDS));
+        assertTrue("should not run early",System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(60));
+        assertEquals(List.of(1,2,3),order);
+        wheel.stop();
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void cancel_preventsRun() throws InterruptedException {
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1);
+        TimingWheel wheel = new TimingWheel(scheduler,Runnable::run,1,TimeUnit.MILLISECONDS,8);
+        List<String> ran = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch latch = new CountDownLatch(1);
+        TimingWheel.Timeout cancelled = wheel.schedule(()->ran.add("cancelled"),20,TimeUnit.MILLISECONDS);
+        wheel.schedule(latch::countDown,40,TimeUnit.MILLISECONDS);
+        assertTrue(cancelled.cancel());
+        assertFalse("cannot cancel twice",cancelled.cancel());
+        assertTrue(latch.await(5,TimeUnit.SECONDS));
+        assertTrue("cancelled timeout should not run "+ran,ran.isEmpty());
+        assertEquals(0,wheel.size());
+        wheel.stop();
+        scheduler.shutdown();
+    }
+}
@@ -0,0 +1,99 @@
+package io.hyperfoil.tools.qdup.cmd;
+
+import io.hyperfoil.tools.qdup.cmd.impl.Regex;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+public class WatcherFilterTest {
+
+    @Test
+    public void requiredLiterals_longest_run(){
+        assertEquals(Arrays.asList("STARTED in "),WatcherFilter.requiredLiterals("STARTED in (?<time>\\d+)ms"));
+        assertEquals(Arrays.asList("OutOfMemoryError"),WatcherFilter.requiredLiterals(".*java.lang.OutOfMemoryError"));
+        assertEquals(Arrays.asList("java.lang."),WatcherFilter.requiredLiterals("java\\.lang\\.\\w+Exception"));
+    }
+
+    @Test
+    public void requiredLiterals_quantifier_removes_character(){
+        assertEquals(Arrays.asList("abc"),WatcherFilter.requiredLiterals("abcd?e"));
+        assertEquals(Arrays.asList("fooba"),WatcherFilter.requiredLiterals("foobar{2,3}"));
+    }
+
+    @Test
+    public void requiredLiterals_alternatives(){
+        assertEquals(Arrays.asList("FATAL","ERROR"),WatcherFilter.requiredLiterals("FATAL|ERROR"));
+        assertEquals(Arrays.asList("level="),WatcherFilter.requiredLiterals("level=(FATAL|ERROR)"));
+        assertNull("an alternative without a literal",WatcherFilter.requiredLiterals("FATAL|\\d+"));
+    }
+
+    @Test
+    public void requiredLiterals_unsupported(){
+        assertNull("case insensitive",WatcherFilter.requiredLiterals("(?i)started"));
+        assertNull("quoted",WatcherFilter.requiredLiterals("\\Qa.b\\E"));
+        assertNull("no literal",WatcherFilter.requiredLiterals(".*"));
+        assertNull("empty",WatcherFilter.requiredLiterals(""));
+        assertEquals(Arrays.asList("started"),WatcherFilter.requiredLiterals("(?s)started"));
+    }
+
+    @Test
+    public void of_skips_unfiltered_watchers(){
+        List<Cmd> watchers = Arrays.asList(
+           new Regex("STARTED"),
+           new Regex("FATAL",true),
+           new Regex("${{name}} started"),
+           Cmd.log("line"),
+           new Regex("OOM")
+        );
+        WatcherFilter filter = WatcherFilter.of(watchers);
+        assertNotNull(filter);
+        assertTrue(filter.isFiltered(0));
+        assertFalse("miss",filter.isFiltered(1));
+        assertFalse("state reference",filter.isFiltered(2));
+        assertFalse("not a regex",filter.isFiltered(3));
+        assertTrue(filter.isFiltered(4));
+
+        long scanned = filter.scan("server STARTED");
+        assertTrue(filter.mayMatch(0,scanned));
+        assertTrue(filter.mayMatch(1,scanned));
+        assertTrue(filter.mayMatch(3,scanned));
+        assertFalse(filter.mayMatch(4,scanned));
+        assertNull("nothing to filter",WatcherFilter.of(Arrays.asList(Cmd.log("line"))));
+    }
+
+    @Test
+    public void scan_never_rejects_a_match(){
+        List<String> patterns = Arrays.asList(
+           "ab+c",
+           "a(b|c)d",
+           "ca?t|dog",
+           "[abc]ba\\.",
+           "^bca",
+           "c{2}ab",
+           "(?s)a.b"
+        );
+        List<Cmd> watchers = new java.util.ArrayList<>();
+        patterns.forEach(pattern->watchers.add(new Regex(pattern)));
+        WatcherFilter filter = WatcherFilter.of(watchers);
+        Random random = new Random(7);
+        String alphabet = "abcdgot.\n";
+        for(int n=0; n<20_000; n++){
+            StringBuilder line = new StringBuilder();
+            int length = random.nextInt(12);
+            for(int i=0; i<length; i++){
+                line.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            }
+            long scanned = filter.scan(line);
+            for(int p=0; p<patterns.size(); p++){
+                if(Pattern.compile(patterns.get(p)).matcher(line).find()){
+                    assertTrue(patterns.get(p)+" should match "+line,filter.mayMatch(p,scanned));
+                }
+            }
+        }
+    }
+}
@@ -86,6 +86,47 @@ public class ForEachTest extends SshTestBase {
 
     }
 
+    @Test
+    public void parallel_iterations_join_before_next() {
+        Parser parser = Parser.getInstance();
+        RunConfigBuilder builder = getBuilder();
+        builder.loadYaml(parser.loadFile("", stream("" +
+                "scripts:",
+                "  foo:",
+                "  - for-each:",
+                "      name: item",
+                "      input: [a, b, c, d]",
+                "      parallel: 2",
+                "    then:",
+                "    - sh: sleep 2; echo ${{item}}",
+                "    - set-state: RUN.seen_${{item}} ${{item}}",
+                "  - set-state: RUN.after ${{RUN.seen_a}}${{RUN.seen_b}}${{RUN.seen_c}}${{RUN.seen_d}}",
+                "hosts:",
+                "  local: " + getHost(),
+                "roles:",
+                "  doit:",
+                "    hosts: [local]",
+                "    run-scripts: [foo]"
+        )));
+
+        RunConfig config = builder.buildConfig(parser);
+        assertFalse("unexpected errors:\n"+config.getErrorStrings().stream().collect(Collectors.joining("\n")),config.hasErrors());
+        Cmd forEach = config.getScript("foo").getThens().get(0);
+        assertTrue("expect a for-each not "+forEach,forEach instanceof ForEach);
+        assertEquals(2,((ForEach)forEach).getParallel());
+
+        Dispatcher dispatcher = new Dispatcher();
+        Run doit = new Run(tmpDir.toString(), config, dispatcher);
+        long start = System.currentTimeMillis();
+        doit.run();
+        long duration = System.currentTimeMillis() - start;
+        dispatcher.shutdown();
+
+        State state = config.getState();
+        assertEquals("every iteration should finish before the next command\n"+state.tree(),"abcd",state.getString("after"));
+        assertTrue("two iterations at a time should take less than 4 sequential sleeps "+duration,duration < 7_000);
+    }
+
     @Test
     public void empty_array_of_integers() {
         Parser parser = Parser.getInstance();
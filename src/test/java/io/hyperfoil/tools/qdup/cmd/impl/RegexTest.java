@@ -319,6 +319,33 @@ public class RegexTest extends SshTestBase {
         assertTrue("regex should call net", context.hasNext());
     }
 
+    @Test
+    public void compiled_once_without_references() {
+        Regex regex = new Regex("cat=(?<cat_name>\\w+)");
+        Regex.CompiledPattern compiled = regex.compile("cat=(?<cat_name>\\w+)");
+        assertSame("copy should share the compiled pattern", compiled, ((Regex) regex.copy()).compile("cat=(?<cat_name>\\w+)"));
+
+        SpyContext context = new SpyContext();
+        regex.run("cat=tom", context);
+        assertTrue("regex should call next", context.hasNext());
+        assertEquals("tom", context.getState().get("cat_name"));
+        assertSame("run should not recompile", compiled, regex.compile("cat=(?<cat_name>\\w+)"));
+    }
+
+    @Test
+    public void compiled_again_when_populated_pattern_changes() {
+        Regex regex = new Regex("${{prefix}}=(?<value>\\w+)");
+        SpyContext context = new SpyContext();
+        context.getState().set("prefix", "cat");
+        regex.run("cat=tom", context);
+        assertTrue("regex should match cat", context.hasNext());
+
+        context.clear();
+        context.getState().set("prefix", "dog");
+        regex.run("cat=tom", context);
+        assertFalse("regex should not match after prefix changed", context.hasNext());
+    }
+
     @Test
     public void regex_match_pattern() {
         Regex regex = new Regex("^\\s*auth_tcp\\s*=\\s*\"none\"");
@@ -50,6 +50,32 @@ public class RoleConstructTest {
         assertEquals("hostRef[0]=hostName","hostName",loaded.getHostRefs().iterator().next());
     }
     @Test
+    public void max_concurrent_hosts(){
+        Role loaded = yaml.loadAs(
+                "roleName:\n"+
+                "  hosts: [hostName]\n"+
+                "  max-concurrent-hosts: 50", Role.class);
+        assertEquals("50",loaded.getMaxConcurrentHosts());
+        assertEquals(50,loaded.getMaxConcurrentHosts(500));
+        assertEquals("limit should not exceed the host count",10,loaded.getMaxConcurrentHosts(10));
+    }
+    @Test
+    public void max_concurrent_hosts_percent(){
+        Role loaded = yaml.loadAs(
+                "roleName:\n"+
+                "  hosts: [hostName]\n"+
+                "  max-concurrent-hosts: 10%", Role.class);
+        assertEquals(50,loaded.getMaxConcurrentHosts(500));
+        assertEquals("percent should round up",1,loaded.getMaxConcurrentHosts(3));
+    }
+    @Test(expected = YAMLException.class)
+    public void max_concurrent_hosts_invalid(){
+        yaml.loadAs(
+                "roleName:\n"+
+                "  hosts: [hostName]\n"+
+                "  max-concurrent-hosts: all", Role.class);
+    }
+    @Test
     public void setup_only(){
         Role loaded = yaml.loadAs(
                 "roleName:\n"+
@@ -107,4 +107,59 @@ public class FilteredStreamTest {
         read = new String(bao.toByteArray());
         assertEquals("should read party after match on BARN","party",read);
     }
+
+    @Test
+    public void sharedPrefix_longestFilterWins(){
+        FilteredStream filteredStream = new FilteredStream();
+        filteredStream.addFilter("foo","FOO");
+        filteredStream.addFilter("food","FOOD","-");
+        ByteArrayOutputStream bao = new ByteArrayOutputStream();
+        filteredStream.addStream("bao",bao);
+        try {
+            filteredStream.write("FOODFOOX".getBytes());
+            filteredStream.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        String read = new String(bao.toByteArray());
+        assertEquals("should filter the longest match at each position","-X",read);
+    }
+
+    @Test
+    public void replaceFilter_sameName(){
+        FilteredStream filteredStream = new FilteredStream();
+        filteredStream.addFilter("command","FOO");
+        filteredStream.addFilter("command","BAR");
+        ByteArrayOutputStream bao = new ByteArrayOutputStream();
+        filteredStream.addStream("bao",bao);
+        try {
+            filteredStream.write("FOOBARBIZ".getBytes());
+            filteredStream.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        String read = new String(bao.toByteArray());
+        assertEquals("should only filter the latest value for the name","FOOBIZ",read);
+    }
+
+    @Test
+    public void removeFilter(){
+        FilteredStream filteredStream = new FilteredStream();
+        filteredStream.addFilter("foo","FOO");
+        filteredStream.addFilter("food","FOOD");
+        filteredStream.remove("food");
+        ByteArrayOutputStream bao = new ByteArrayOutputStream();
+        filteredStream.addStream("bao",bao);
+        try {
+            filteredStream.write("FOODFOO".getBytes());
+            filteredStream.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        String read = new String(bao.toByteArray());
+        assertEquals("should no longer filter the removed filter","D",read);
+    }
 }
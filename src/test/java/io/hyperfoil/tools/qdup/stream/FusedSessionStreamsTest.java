@@ -0,0 +1,118 @@
+package io.hyperfoil.tools.qdup.stream;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class FusedSessionStreamsTest {
+
+   private static final String PROMPT = "<_qdup_> ";
+   private static final String ENVELOPE = "<_#%@_qdup_env_@%#_>";
+
+   /**
+    * records what SshSession would observe from the streams
+    */
+   private static List<String> observe(SessionStreams streams){
+      List<String> events = new ArrayList<>();
+      streams.addPrompt(PROMPT, PROMPT, "");
+      streams.addPromptEnvelope(PROMPT, ENVELOPE);
+      streams.addPromptCallback(name -> {
+         streams.flushBuffer();
+         events.add("prompt " + name + " [" + streams.getPromptEnvelope() + "] " + streams.currentOutput());
+      });
+      streams.addLineConsumer(line -> events.add("line " + line));
+      streams.addInlinePrompts(Collections.singleton("Password: "), name -> events.add("inline " + name));
+      return events;
+   }
+
+   private static void write(SessionStreams streams, byte[] b, int off, int len){
+      try {
+         streams.write(b, off, len);
+      } catch (IOException e) {
+         fail(e.getMessage());
+      }
+   }
+
+   private static String prompt(String exitCode){
+      return ENVELOPE + "ec=" + exitCode + ";cwd=/tmp" + PROMPT;
+   }
+
+   /**
+    * steps starting with "$ " are commands, everything else is output from the shell
+    */
+   private static final List<String> SESSION = Arrays.asList(
+      "Last login: Mon\r\n\u001b[?2004h" + prompt("0"),
+      "$ ls --color",
+      "ls --color\r\n\u001b[01;34mbin\u001b[0m  \u001b[01;34mlib\u001b[0m\r\nREADME.md\r\n" + prompt("0"),
+      "$ sleep 10",
+      "sleep 10\r\n^C" + new String(new byte[]{0, 0, 0, 3}) + "\r\n" + prompt("130"),
+      "$ sudo whoami",
+      "sudo whoami\r\n[sudo] Password: ",
+      "root\r\n" + prompt("0"),
+      "$ echo <_qdup_",
+      "echo <_qdup_\r\n<_qdup_\r\n\u001b[1;31mred\u001b[m\rline\n" + prompt("1"),
+      "$ printf 'no newline'",
+      "printf 'no newline'\r\nno newline" + prompt("0")
+   );
+
+   private static void run(SessionStreams streams, Random random){
+      for(String step : SESSION){
+         if(step.startsWith("$ ")){
+            streams.setCommand(step.substring(2));
+            streams.reset();
+         }else{
+            byte[] b = step.getBytes();
+            int off = 0;
+            while(off < b.length){
+               int len = random == null ? b.length - off : 1 + random.nextInt(Math.min(12, b.length - off));
+               write(streams, b, off, len);
+               off += len;
+            }
+         }
+      }
+   }
+
+   @Test
+   public void sameAsReference_wholeWrites(){
+      SessionStreams reference = new SessionStreams("reference", null);
+      SessionStreams fused = new FusedSessionStreams("fused", null);
+      List<String> expected = observe(reference);
+      List<String> actual = observe(fused);
+      run(reference, null);
+      run(fused, null);
+      assertEquals(expected, actual);
+      assertEquals(reference.currentOutput(), fused.currentOutput());
+   }
+
+   @Test
+   public void sameAsReference_randomWrites(){
+      for(int seed = 0; seed < 500; seed++){
+         SessionStreams reference = new SessionStreams("reference", null);
+         SessionStreams fused = new FusedSessionStreams("fused", null);
+         List<String> expected = observe(reference);
+         List<String> actual = observe(fused);
+         run(reference, new Random(seed));
+         run(fused, new Random(seed));
+         assertEquals("seed " + seed, expected, actual);
+         assertEquals("seed " + seed, reference.currentOutput(), fused.currentOutput());
+      }
+   }
+
+   @Test
+   public void envelope_removedFromOutput(){
+      SessionStreams fused = new FusedSessionStreams("fused", null);
+      List<String> events = observe(fused);
+      fused.setCommand("pwd");
+      byte[] b = ("pwd\r\n/tmp\r\n" + prompt("0")).getBytes();
+      write(fused, b, 0, b.length);
+      assertEquals(Arrays.asList("line /tmp", "prompt " + PROMPT + " [ec=0;cwd=/tmp] /tmp\r\n"), events);
+   }
+}
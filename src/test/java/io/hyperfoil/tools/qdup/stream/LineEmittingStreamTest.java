@@ -3,6 +3,7 @@ package io.hyperfoil.tools.qdup.stream;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -97,4 +98,45 @@ public class LineEmittingStreamTest {
             e.printStackTrace();
         }
     }
+
+    @Test
+    public void utf8_split_across_writes(){
+        LineEmittingStream stream = new LineEmittingStream();
+        List<String> lines = new ArrayList<>();
+        stream.addConsumer(line->lines.add(line));
+        byte[] b = "caf\u00e9 \u2603\n".getBytes(StandardCharsets.UTF_8);
+        for(int i=0; i<b.length; i++){
+            stream.write(b,i,1);
+        }
+        assertEquals("expect 1 line\n"+lines,1,lines.size());
+        assertEquals("caf\u00e9 \u2603",lines.get(0));
+    }
+
+    @Test
+    public void viewConsumer_reusedView(){
+        LineEmittingStream stream = new LineEmittingStream();
+        List<String> lines = new ArrayList<>();
+        List<CharSequence> views = new ArrayList<>();
+        stream.addViewConsumer(line->{
+            views.add(line);
+            lines.add(line.toString());
+        });
+        byte[] b = "uno\ndos\n\u00ff\n".getBytes(StandardCharsets.UTF_8);
+        stream.write(b,0,b.length);
+        assertEquals(3,lines.size());
+        assertEquals("uno",lines.get(0));
+        assertEquals("dos",lines.get(1));
+        assertEquals("\u00ff",lines.get(2));
+        assertTrue("views should be reused",views.get(0) == views.get(1));
+    }
+
+    @Test
+    public void viewConsumer_malformedReplaced(){
+        LineEmittingStream stream = new LineEmittingStream();
+        List<String> lines = new ArrayList<>();
+        stream.addViewConsumer(line->lines.add(line.toString()));
+        stream.write(new byte[]{'a',(byte)0xC3,'b','\n'},0,4);
+        assertEquals(1,lines.size());
+        assertEquals("a\ufffdb",lines.get(0));
+    }
 }
@@ -131,4 +131,38 @@ public class SessionStreamsTest {
 
       assertEquals("expect 2 entries in array: "+emitted.toString(),2,emitted.size());
    }
+
+   @Test
+   public void command_output_trims_newlines(){
+      SessionStreams sessionStreams = getStreams();
+      byte[] output = "\r\n\nfoo\r\nbar\r\n\r\n".getBytes();
+      sessionStreams.getShStream().write(output,0,output.length);
+      assertEquals("foo\nbar",sessionStreams.commandOutput());
+   }
+
+   @Test
+   public void command_output_limit(){
+      String previous = System.getProperty(SessionStreams.OUTPUT_LIMIT_PROPERTY);
+      System.setProperty(SessionStreams.OUTPUT_LIMIT_PROPERTY,""+SpillingOutputStream.SEGMENT_SIZE);
+      try {
+         SessionStreams sessionStreams = getStreams();
+         byte[] line = "0123456789abcde\n".getBytes();
+         for(int i=0; i<3*SpillingOutputStream.SEGMENT_SIZE/line.length; i++){
+            sessionStreams.getShStream().write(line,0,line.length);
+         }
+         byte[] end = "end\n\n".getBytes();
+         sessionStreams.getShStream().write(end,0,end.length);
+         String output = sessionStreams.commandOutput();
+         assertEquals("output should be limited",SpillingOutputStream.SEGMENT_SIZE,output.length());
+         assertTrue("output should end with the last line",output.endsWith("abcde\nend"));
+         assertEquals("size should be the full output so sh can tell it was limited",3*SpillingOutputStream.SEGMENT_SIZE+3,sessionStreams.getCommandOutputSize());
+         assertEquals("current output should be limited",SpillingOutputStream.SEGMENT_SIZE,sessionStreams.currentOutput().length());
+      } finally {
+         if(previous == null){
+            System.clearProperty(SessionStreams.OUTPUT_LIMIT_PROPERTY);
+         }else{
+            System.setProperty(SessionStreams.OUTPUT_LIMIT_PROPERTY,previous);
+         }
+      }
+   }
 }
@@ -0,0 +1,102 @@
+package io.hyperfoil.tools.qdup.stream;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SpillingOutputStreamTest {
+
+   private static String lines(int count){
+      StringBuilder sb = new StringBuilder();
+      for(int i=0; i<count; i++){
+         sb.append("line ").append(i).append("\r\n");
+      }
+      return sb.toString();
+   }
+
+   @Test
+   public void underLimit_staysInMemory(){
+      SpillingOutputStream output = new SpillingOutputStream("test");
+      output.write("foo\nbar".getBytes(),0,7);
+      assertEquals("foo\nbar",output.toString());
+      assertEquals(7,output.size());
+      assertNull(output.getSpillPath());
+   }
+
+   @Test
+   public void overLimit_spillsToDirectory() throws IOException {
+      Path directory = Files.createTempDirectory("qdup-spill");
+      SpillingOutputStream output = new SpillingOutputStream("test",2*SpillingOutputStream.SEGMENT_SIZE);
+      output.setSpillDirectory(directory);
+      String expected = lines(50_000);
+      byte[] b = expected.getBytes();
+      for(int off=0; off<b.length; off+=1000){
+         output.write(b,off,Math.min(1000,b.length-off));
+      }
+      assertNotNull("output should spill",output.getSpillPath());
+      assertEquals(directory,output.getSpillPath().getParent());
+      assertTrue(output.getSpilled() > 0);
+      assertTrue("memory should stay under the limit",output.size() - output.getMemoryStart() <= 2*SpillingOutputStream.SEGMENT_SIZE);
+      assertEquals(expected,output.toString());
+
+      ByteArrayOutputStream read = new ByteArrayOutputStream();
+      try(InputStream input = output.newInputStream()){
+         input.transferTo(read);
+      }
+      assertEquals(expected,read.toString());
+
+      output.reset();
+      assertEquals("",output.toString());
+      assertEquals(0,Files.size(output.getSpillPath()));
+
+      Path spillPath = output.getSpillPath();
+      output.close();
+      assertFalse("close should delete the spill file",Files.exists(spillPath));
+   }
+
+   @Test
+   public void tail_onlyReadsMemory() throws IOException {
+      SessionStreams streams = new SessionStreams("test",null);
+      streams.setSpillDirectory(Files.createTempDirectory("qdup-spill"));
+      String expected = lines(100_000);
+      streams.getShStream().write(expected.getBytes(),0,expected.length());
+      assertEquals("the trailing newline counts as a line","\nline 99998\r\nline 99999\r\n",streams.tail(3));
+      assertEquals("\nline 99999",streams.lastLine());
+      assertTrue(streams.outputContains("line 0\r\n"));
+      assertTrue(streams.outputContains("line 99999"));
+      assertFalse(streams.outputContains("line 100000"));
+      streams.close();
+   }
+
+   @Test
+   public void tailContains_onlyReadsMemory() throws IOException {
+      String previous = System.getProperty(SpillingOutputStream.MEMORY_PROPERTY);
+      System.setProperty(SpillingOutputStream.MEMORY_PROPERTY,""+2*SpillingOutputStream.SEGMENT_SIZE);
+      try {
+         SessionStreams streams = new SessionStreams("test",null);
+         streams.setSpillDirectory(Files.createTempDirectory("qdup-spill"));
+         String expected = lines(100_000);
+         streams.getShStream().write(expected.getBytes(),0,expected.length());
+         assertTrue(streams.outputContains("line 0\r\n"));
+         assertFalse("line 0 is spilled to disk",streams.tailContains("line 0\r\n"));
+         assertTrue(streams.tailContains("line 99999"));
+         streams.close();
+      } finally {
+         if(previous == null){
+            System.clearProperty(SpillingOutputStream.MEMORY_PROPERTY);
+         }else{
+            System.setProperty(SpillingOutputStream.MEMORY_PROPERTY,previous);
+         }
+      }
+   }
+}
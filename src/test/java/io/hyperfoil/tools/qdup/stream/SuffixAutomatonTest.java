@@ -0,0 +1,90 @@
+package io.hyperfoil.tools.qdup.stream;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SuffixAutomatonTest {
+
+    private static SuffixAutomaton automaton(String...suffixes){
+        return new SuffixAutomaton(Arrays.asList(suffixes), Arrays.stream(suffixes).map(String::getBytes).collect(Collectors.toList()));
+    }
+
+    @Test
+    public void fullMatch(){
+        SuffixAutomaton automaton = automaton("FOO","BAR");
+        byte[] input = "xxBAR".getBytes();
+        automaton.update(input,0,input.length);
+        assertTrue(automaton.isMatch());
+        assertEquals("BAR",automaton.getMatchName());
+        assertEquals(3,automaton.getMatchLength());
+    }
+
+    @Test
+    public void longestMatch(){
+        SuffixAutomaton automaton = automaton("O","FOO");
+        byte[] input = "xFOO".getBytes();
+        automaton.update(input,0,input.length);
+        assertEquals("FOO",automaton.getMatchName());
+    }
+
+    @Test
+    public void partialMatch_acrossUpdates(){
+        SuffixAutomaton automaton = automaton("<_qdup_> ","Password:");
+        byte[] input = "output <_qd".getBytes();
+        automaton.update(input,0,input.length);
+        assertFalse(automaton.isMatch());
+        assertEquals(4,automaton.getTrailingLength());
+        input = "up_> ".getBytes();
+        automaton.update(input,0,input.length);
+        assertEquals("<_qdup_> ",automaton.getMatchName());
+    }
+
+    @Test
+    public void sameBytes_firstNameWins(){
+        SuffixAutomaton automaton = new SuffixAutomaton(Arrays.asList("first","second"),Arrays.asList("FOO".getBytes(),"FOO".getBytes()));
+        byte[] input = "FOO".getBytes();
+        automaton.update(input,0,input.length);
+        assertEquals("first",automaton.getMatchName());
+    }
+
+    @Test
+    public void matches_suffixLength(){
+        SuffixStream stream = new SuffixStream();
+        List<String> suffixes = Arrays.asList("aab","ab","abab","ba","bbb");
+        SuffixAutomaton automaton = automaton(suffixes.toArray(new String[0]));
+        Random random = new Random(1);
+        byte[] input = new byte[2000];
+        for(int i=0; i<input.length; i++){
+            input[i] = (byte)(random.nextBoolean() ? 'a' : 'b');
+        }
+        for(int end=1; end<=input.length; end++){
+            automaton.update(input,end-1,1);
+            int longestFull = 0;
+            String fullName = null;
+            int longestPartial = 0;
+            for(String suffix : suffixes){
+                int length = stream.suffixLength(input,suffix.getBytes(),end);
+                if(length == suffix.length()){
+                    if(fullName == null || length > longestFull){
+                        fullName = suffix;
+                        longestFull = length;
+                    }
+                }else if (length > longestPartial){
+                    longestPartial = length;
+                }
+            }
+            assertEquals("match at "+end,fullName,automaton.getMatchName());
+            if(fullName == null){
+                assertEquals("partial at "+end,longestPartial,automaton.getTrailingLength());
+            }
+        }
+    }
+}
@@ -138,4 +138,65 @@ public class SuffixStreamTest {
         }
     }
 
+    @Test
+    public void envelope_removedFromOutput(){
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        SuffixStream stream = new SuffixStream();
+        stream.addSuffix("FOO","FOO","");
+        stream.addEnvelope("FOO","<env>");
+        stream.addStream("baos",baos);
+        StringBuilder envelope = new StringBuilder();
+        stream.addConsumer((s)->{envelope.append(stream.getEnvelope());});
+        try {
+            stream.write("output\n<env>ec=1".getBytes());
+            assertEquals("open envelope should not be written","output\n",baos.toString());
+            stream.write(";cwd=/tmp FO".getBytes());
+            stream.write("O".getBytes());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        assertEquals("output\n",baos.toString());
+        assertEquals("ec=1;cwd=/tmp ",envelope.toString());
+    }
+
+    @Test
+    public void envelope_newlineReleasesOutput(){
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        SuffixStream stream = new SuffixStream();
+        stream.addSuffix("FOO","FOO","");
+        stream.addEnvelope("FOO","<env>");
+        stream.addStream("baos",baos);
+        StringBuilder envelope = new StringBuilder();
+        stream.addConsumer((s)->{envelope.append(stream.getEnvelope());});
+        try {
+            stream.write("echo <env>".getBytes());
+            stream.write("\nbar FOO".getBytes());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        assertEquals("echo <env>\nbar ",baos.toString());
+        assertEquals("null",envelope.toString());
+    }
+
+    @Test
+    public void envelope_confirmed_skipsDelay(){
+        ScheduledThreadPoolExecutor sfe = new ScheduledThreadPoolExecutor(1);
+        SuffixStream stream = new SuffixStream("",sfe);
+        stream.setExecutorDelay(60_000);
+        stream.addSuffix("FOO","FOO","");
+        stream.addEnvelope("FOO","<env>");
+        stream.setEnvelopeConfirmation((envelope)->envelope.startsWith("nonce=abc;"));
+        AtomicBoolean called = new AtomicBoolean(false);
+        stream.addConsumer((s)->{called.set(true);});
+        try {
+            stream.write("<env>nonce=xyz;FOO".getBytes());
+            assertFalse("wrong nonce should wait for the delay",called.get());
+            stream.write("\n<env>nonce=abc;FOO".getBytes());
+            assertTrue("matching nonce should not wait for the delay",called.get());
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            sfe.shutdownNow();
+        }
+    }
 }